@@ -0,0 +1,116 @@
+package message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long it takes to create a chat message and to encrypt and decrypt it with the session key.
+ *
+ * The legacy benchmarks look up a new AES Cipher for every message, the way messages were encrypted before the
+ * CipherEngine kept a pool of them, so the two can be compared.
+ * The compressed benchmarks compress the message before it is encrypted, as the client does for long messages.
+ * The text is made of ordinary words, since how well it compresses depends on what it says.
+ * Run with -prof gc to see how many bytes every operation allocates. The time of a message is only formatted when it
+ * is shown, which format measures on its own.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageBenchmark {
+
+    private static final String SENDER = "alice";
+
+    //How many characters the user typed
+    @Param({"16", "256", "4096"})
+    public int messageSize;
+
+    private String text;
+    private Message plain;
+    private SecretKey sessionKey;
+    private CipherEngine cipherEngine;
+    private PayloadCompression compression;
+    private Message encrypted;
+    private Message encryptedCompressed;
+    private byte[] legacyCiphertext;
+
+    @Setup
+    public void setUp() throws Exception {
+        String words = "did anyone see the match last night, I think we should meet at the station at eight ";
+        StringBuilder builder = new StringBuilder(messageSize);
+        while (builder.length() < messageSize) {
+            builder.append(words, 0, Math.min(words.length(), messageSize - builder.length()));
+        }
+        text = builder.toString();
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        sessionKey = keyGenerator.generateKey();
+        cipherEngine = new CipherEngine(sessionKey);
+        compression = new PayloadCompression(PayloadCompression.DEFAULT_THRESHOLD, null);
+        plain = new Message(SENDER, text);
+        encrypted = new Message(SENDER, text, cipherEngine);
+        encryptedCompressed = new Message(SENDER, text, cipherEngine, compression);
+        legacyCiphertext = legacyEncrypt();
+    }
+
+    @Benchmark
+    public Message construct() {
+        return new Message(SENDER, text);
+    }
+
+    @Benchmark
+    public String format() {
+        return plain.toString();
+    }
+
+    @Benchmark
+    public Message encrypt() throws Exception {
+        return new Message(SENDER, text, cipherEngine);
+    }
+
+    @Benchmark
+    public Message decrypt() throws Exception {
+        return encrypted.decrypt(cipherEngine);
+    }
+
+    @Benchmark
+    public Message encryptCompressed() throws Exception {
+        return new Message(SENDER, text, cipherEngine, compression);
+    }
+
+    @Benchmark
+    public Message decryptCompressed() throws Exception {
+        return encryptedCompressed.decrypt(cipherEngine);
+    }
+
+    @Benchmark
+    public byte[] legacyEncrypt() throws Exception {
+        Cipher cipher = Cipher.getInstance("AES");
+        cipher.init(Cipher.ENCRYPT_MODE, sessionKey);
+        return cipher.doFinal(new Message(SENDER, text).toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public String legacyDecrypt() throws Exception {
+        Cipher cipher = Cipher.getInstance("AES");
+        cipher.init(Cipher.DECRYPT_MODE, sessionKey);
+        return new String(cipher.doFinal(legacyCiphertext), StandardCharsets.UTF_8);
+    }
+}
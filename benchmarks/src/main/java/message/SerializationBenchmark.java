@@ -0,0 +1,95 @@
+package message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.KeyGenerator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long a round trip through Java serialization takes for what clients used to send and receive before the binary
+ * wire protocol replaced it: an encrypted message, and the list of online users.
+ *
+ * Every round trip uses new streams, so the stream and class descriptor headers are part of what is measured, the
+ * same as for a single object written to a new client.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Messages {
+
+        //How many characters the user typed
+        @Param({"16", "256", "4096"})
+        public int messageSize;
+
+        Message message;
+
+        @Setup
+        public void setUp() throws Exception {
+            char[] chars = new char[messageSize];
+            Arrays.fill(chars, 'a');
+            KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+            keyGenerator.init(256);
+            message = new Message("alice", new String(chars), new CipherEngine(keyGenerator.generateKey()));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Users {
+
+        //How many users are online
+        @Param({"10", "100", "1000"})
+        public int userCount;
+
+        ArrayList<String> users;
+
+        @Setup
+        public void setUp() {
+            users = new ArrayList<>(userCount);
+            for (int i = 0; i < userCount; i++) {
+                users.add("user" + i);
+            }
+        }
+    }
+
+    @Benchmark
+    public Object message(Messages messages) throws IOException, ClassNotFoundException {
+        return roundTrip(messages.message);
+    }
+
+    @Benchmark
+    public Object userList(Users users) throws IOException, ClassNotFoundException {
+        return roundTrip(users.users);
+    }
+
+    private static Object roundTrip(Object object) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream outputStream = new ObjectOutputStream(bytes)) {
+            outputStream.writeObject(object);
+        }
+        try (ObjectInputStream inputStream = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return inputStream.readObject();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the key exchange part of a handshake costs: the client generating its key pair, the server wrapping the
+ * session key for the client's public key, and the client unwrapping it again. This is done once per connection.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionKeyBenchmark {
+
+    @Param({"X25519", "RSA"})
+    public KeyExchange keyExchange;
+
+    private KeyPair keyPair;
+    private SecretKey sessionKey;
+    private byte[] wrapped;
+
+    @Setup
+    public void setUp() throws Exception {
+        keyPair = keyExchange.generateKeyPair();
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        sessionKey = keyGenerator.generateKey();
+        wrapped = keyExchange.wrapSessionKey(sessionKey, keyPair.getPublic());
+    }
+
+    @Benchmark
+    public KeyPair generateKeyPair() {
+        return keyExchange.generateKeyPair();
+    }
+
+    @Benchmark
+    public byte[] wrapSessionKey() throws Exception {
+        return keyExchange.wrapSessionKey(sessionKey, keyPair.getPublic());
+    }
+
+    @Benchmark
+    public SecretKey unwrapSessionKey() throws Exception {
+        return keyExchange.unwrapSessionKey(wrapped, keyPair);
+    }
+}
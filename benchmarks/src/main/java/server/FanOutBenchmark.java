@@ -0,0 +1,117 @@
+package server;
+
+import message.CipherEngine;
+import message.FrameType;
+import message.Handshake;
+import message.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long it takes to send one chat message to every connected client, without the network: every client is a
+ * real ClientHandler whose connection writes straight away into a stream that throws the bytes away.
+ *
+ * sharedFrame broadcasts through the ClientRegistry, which encodes the frame once for all clients. The
+ * perRecipientSerialization benchmark serializes the message again for every client with an ObjectOutputStream of
+ * its own, the way the server used to send messages, so the two can be compared.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanOutBenchmark {
+
+    //How many clients the message is sent to
+    @Param({"1", "10", "100", "1000"})
+    public int recipients;
+
+    //How many characters the user typed
+    @Param({"16", "256", "4096"})
+    public int messageSize;
+
+    private ServerModel serverModel;
+    private Message message;
+    private ObjectOutputStream[] outputStreams;
+
+    @Setup
+    public void setUp() throws Exception {
+        ServerSettings settings = new ServerSettings();
+        settings.setJournalDirectory(null);
+        settings.setReplaySize(0);
+        serverModel = new ServerModel(settings);
+
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        PublicKey publicKey = keyPairGenerator.generateKeyPair().getPublic();
+        outputStreams = new ObjectOutputStream[recipients];
+        for (int i = 0; i < recipients; i++) {
+            ClientHandler clientHandler = new ClientHandler(new SinkConnection(), serverModel);
+            clientHandler.handleObject(new Handshake("user" + i, publicKey, 0));
+            outputStreams[i] = new ObjectOutputStream(OutputStream.nullOutputStream());
+        }
+
+        char[] chars = new char[messageSize];
+        Arrays.fill(chars, 'a');
+        message = new Message("alice", new String(chars), new CipherEngine(serverModel.getSessionKey()));
+    }
+
+    @Benchmark
+    public void sharedFrame() {
+        serverModel.getClientRegistry().broadCastChat(FrameType.CHAT, message);
+    }
+
+    @Benchmark
+    public void perRecipientSerialization() throws IOException {
+        for (ObjectOutputStream outputStream : outputStreams) {
+            outputStream.writeObject(message);
+            outputStream.reset();
+        }
+    }
+
+    /**
+     * A connection that writes every frame as soon as it is queued, to a stream that throws the bytes away
+     */
+    private static class SinkConnection implements ClientConnection {
+
+        @Override
+        public void write(OutboundFrame frame, boolean mayWait) {
+            try {
+                frame.writeTo(OutputStream.nullOutputStream(), null);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void awaitRoom(long deadlineNanos) {
+        }
+
+        @Override
+        public int getBacklog() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
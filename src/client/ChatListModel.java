@@ -0,0 +1,72 @@
+package client;
+
+import javax.swing.*;
+import java.util.List;
+
+/**
+ * The rows of the chat pane, one per line of a message. Only the most recent rows are kept, in a ring buffer of a
+ * fixed size, so a busy chat does not keep growing the heap; the chat log in the model still has every message.
+ *
+ * Rows are added in batches, and the list is told about a batch with a single event, so that it is only laid out and
+ * painted once however many messages came in. Only used on the event dispatch thread.
+ */
+class ChatListModel extends AbstractListModel<String> {
+
+    private final String[] rows;
+    //Where the oldest row is in the ring buffer, and how many rows there are
+    private int first = 0;
+    private int size = 0;
+
+    /**
+     * @param maxRows how many rows are kept, the oldest ones are dropped beyond that
+     */
+    ChatListModel(int maxRows) {
+        if (maxRows < 1) {
+            throw new IllegalArgumentException("The chat must hold at least 1 row");
+        }
+        rows = new String[maxRows];
+    }
+
+    /**
+     * Adds rows after the existing ones, dropping the oldest rows if there are too many
+     */
+    void addAll(List<String> added) {
+        if (added.isEmpty()) {
+            return;
+        }
+        //only the last rows of a batch that doesn't fit at all would survive
+        int from = Math.max(0, added.size() - rows.length);
+        int count = added.size() - from;
+        int dropped = Math.max(0, size + count - rows.length);
+        if (dropped > 0) {
+            for (int i = 0; i < dropped; i++) {
+                rows[(first + i) % rows.length] = null;
+            }
+            first = (first + dropped) % rows.length;
+            size -= dropped;
+            fireIntervalRemoved(this, 0, dropped - 1);
+        }
+        for (int i = from; i < added.size(); i++) {
+            rows[(first + size) % rows.length] = added.get(i);
+            size++;
+        }
+        fireIntervalAdded(this, size - count, size - 1);
+    }
+
+    /**
+     * @return the most rows the list holds
+     */
+    int getMaxRows() {
+        return rows.length;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return rows[(first + index) % rows.length];
+    }
+}
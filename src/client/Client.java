@@ -1,10 +1,25 @@
-package client;
-
-/**
- * The main class for running our client
- */
-public class Client {
-    public static void main(String[] args) {
-        new ClientController();
-    }
-}
+package client;
+
+import message.KeyExchange;
+
+/**
+ * The main class for running our client
+ * Start it with --max-rows=&lt;n&gt; to change how many rows of the chat are kept on screen (default 2000), and with
+ * --compression-threshold=&lt;bytes&gt; to change from which length on messages are compressed (default 256, 0 for never).
+ * --key-exchange=rsa exchanges the session key with RSA instead of X25519.
+ */
+public class Client {
+    public static void main(String[] args) {
+        ClientModel clientModel = new ClientModel();
+        for (String arg : args){
+            if (arg.startsWith("--max-rows=")){
+                clientModel.setMaxChatRows(Integer.parseInt(arg.substring("--max-rows=".length())));
+            } else if (arg.startsWith("--compression-threshold=")){
+                clientModel.setCompressionThreshold(Integer.parseInt(arg.substring("--compression-threshold=".length())));
+            } else if (arg.startsWith("--key-exchange=")){
+                clientModel.setKeyExchange(KeyExchange.fromString(arg.substring("--key-exchange=".length())));
+            }
+        }
+        new ClientController(clientModel);
+    }
+}
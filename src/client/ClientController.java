@@ -1,180 +1,205 @@
-package client;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.swing.*;
-import java.awt.*;
-import java.awt.event.*;
-import java.io.IOException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-
-/**
- * The client controller will connect the client view and the client model.
- * When a user clicks on a button or interacts with the client view, it will call methods in the client model
- * and update the client view.
- * Ex: When a user clicks the send button to send a message in the client view, it will call the logic
- * method in the client model that actually sends the message to the server.
- */
-public class ClientController extends JFrame {
-
-    private ClientModel clientModel;
-    private ClientView clientView;
-
-    public ClientController(){
-        this.clientModel = new ClientModel();
-        this.clientView = new ClientView(clientModel);
-
-        //Add the client view as observer to the client model
-        clientModel.addObserver(clientView);
-
-        clientView.getConnectButton().addActionListener(new ActionListener() {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                String username = clientView.getUserName();
-                String serverIPAddress = clientView.getServerIPAddress();
-                if (username.isBlank()){
-                    clientView.setErrorMessage("Please provide a valid username");
-                } else {
-                    try {
-                        clientModel.connect(username,serverIPAddress);
-                        clientModel.listenForMessages();
-                        //System.out.println("Change to chatPanel");
-                        clientView.showChat();
-                        setTitle("Client- "+username);
-                    } catch (IOException exception) {
-                        clientView.setErrorMessage("Failed to connect to the server");
-                        exception.printStackTrace();
-                    } catch (NoSuchPaddingException noSuchPaddingException) {
-                        noSuchPaddingException.printStackTrace();
-                    } catch (IllegalBlockSizeException illegalBlockSizeException) {
-                        illegalBlockSizeException.printStackTrace();
-                    } catch (NoSuchAlgorithmException noSuchAlgorithmException) {
-                        noSuchAlgorithmException.printStackTrace();
-                    } catch (BadPaddingException badPaddingException) {
-                        badPaddingException.printStackTrace();
-                    } catch (InvalidKeyException invalidKeyException) {
-                        invalidKeyException.printStackTrace();
-                    } catch (ClassNotFoundException classNotFoundException) {
-                        classNotFoundException.printStackTrace();
-                    }
-                }
-
-            }
-        });
-
-        clientView.getBackButton().addActionListener(new ActionListener() {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                //System.out.println("Change to connect panel");
-                clientModel.disconnect();
-                clientView.showHome();
-            }
-        });
-
-        clientView.getHomeMenuItem().addActionListener(new ActionListener() {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                //System.out.println("Change to connect panel");
-                clientModel.disconnect();
-                clientView.showHome();
-            }
-        });
-
-        clientView.getSendButton().addActionListener(new ActionListener() {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                String message = clientView.getMessage();
-                try {
-                    clientModel.sendMessage(message);
-                    //clear the text in the message field after a client has sent a message
-                    clientView.getMessageField().setText("");
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                    clientModel.disconnect();
-                    clientView.showHome();
-                } catch (IllegalBlockSizeException illegalBlockSizeException) {
-                    illegalBlockSizeException.printStackTrace();
-                } catch (NoSuchPaddingException noSuchPaddingException) {
-                    noSuchPaddingException.printStackTrace();
-                } catch (BadPaddingException badPaddingException) {
-                    badPaddingException.printStackTrace();
-                } catch (NoSuchAlgorithmException noSuchAlgorithmException) {
-                    noSuchAlgorithmException.printStackTrace();
-                } catch (InvalidKeyException invalidKeyException) {
-                    invalidKeyException.printStackTrace();
-                }
-            }
-        });
-
-        //Also allow the client to send messages by pressing enter on the keyboard
-        clientView.getMessageField().addKeyListener(new KeyAdapter() {
-            @Override
-            public void keyPressed(KeyEvent e) {
-                String message = clientView.getMessage();
-                if (e.getKeyChar() == KeyEvent.VK_ENTER){
-                    try {
-                        clientModel.sendMessage(message);
-                        clientView.getMessageField().setText("");
-                    } catch (IOException ex) {
-                        ex.printStackTrace();
-                    } catch (IllegalBlockSizeException illegalBlockSizeException) {
-                        illegalBlockSizeException.printStackTrace();
-                    } catch (NoSuchPaddingException noSuchPaddingException) {
-                        noSuchPaddingException.printStackTrace();
-                    } catch (BadPaddingException badPaddingException) {
-                        badPaddingException.printStackTrace();
-                    } catch (NoSuchAlgorithmException noSuchAlgorithmException) {
-                        noSuchAlgorithmException.printStackTrace();
-                    } catch (InvalidKeyException invalidKeyException) {
-                        invalidKeyException.printStackTrace();
-                    }
-                }
-            }
-        });
-
-        clientView.getSaveMenuItem().addActionListener(new ActionListener() {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                try {
-                    clientModel.saveChat();
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                }
-            }
-        });
-
-
-        clientView.getServerAddressField().addFocusListener(new FocusListener() {
-            @Override
-            public void focusGained(FocusEvent e) {
-                if (clientView.getServerAddressField().getText().equals("Default: Localhost")){
-                    clientView.getServerAddressField().setText("");
-                    clientView.getServerAddressField().setForeground(Color.black);
-                }
-            }
-
-            @Override
-            public void focusLost(FocusEvent e) {
-                if (clientView.getServerAddressField().getText().isBlank()){
-                    clientView.getServerAddressField().setForeground(Color.gray);
-                    clientView.getServerAddressField().setText("Default: Localhost");
-                }
-            }
-        });
-
-        //JFRAME Methods
-        add(clientView.getClientPanel());
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        setJMenuBar(clientView.getMenuBar());
-        setTitle("Client");
-        //Pack() makes sure the JFrame gets the same size as the preferred size of the client view.
-        pack();
-        //Centers the JFrame at the center of the window
-        setLocationRelativeTo(null);
-        setVisible(true);
-
-    }
-
-}
+package client;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The client controller will connect the client view and the client model.
+ * When a user clicks on a button or interacts with the client view, it will call methods in the client model
+ * and update the client view.
+ * Ex: When a user clicks the send button to send a message in the client view, it will call the logic
+ * method in the client model that actually sends the message to the server.
+ */
+public class ClientController extends JFrame {
+
+    private ClientModel clientModel;
+    private ClientView clientView;
+
+    public ClientController(){
+        this(new ClientModel());
+    }
+
+    /**
+     * @param clientModel the client model to show, for example one that has been set up from the command line
+     */
+    public ClientController(ClientModel clientModel){
+        this.clientModel = clientModel;
+        this.clientView = new ClientView(clientModel);
+
+        //Add the client view as observer to the client model
+        clientModel.addObserver(clientView);
+        //the key pair is generated while the user types their name, instead of before the window appears
+        clientModel.generateKeyPairInBackground();
+
+        clientView.getConnectButton().addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                String username = clientView.getUserName();
+                String serverIPAddress = clientView.getServerIPAddress();
+                if (username.isBlank()){
+                    clientView.setErrorMessage("Please provide a valid username");
+                } else {
+                    try {
+                        clientModel.connect(username,serverIPAddress);
+                        clientModel.listenForMessages();
+                        //System.out.println("Change to chatPanel");
+                        clientView.showChat();
+                        setTitle("Client- "+username);
+                    } catch (ProtocolException exception) {
+                        //the server has explained what went wrong, e.g. that the username is taken
+                        clientView.setErrorMessage(exception.getMessage());
+                        exception.printStackTrace();
+                    } catch (IOException exception) {
+                        clientView.setErrorMessage("Failed to connect to the server");
+                        exception.printStackTrace();
+                    } catch (NoSuchPaddingException noSuchPaddingException) {
+                        noSuchPaddingException.printStackTrace();
+                    } catch (IllegalBlockSizeException illegalBlockSizeException) {
+                        illegalBlockSizeException.printStackTrace();
+                    } catch (NoSuchAlgorithmException noSuchAlgorithmException) {
+                        noSuchAlgorithmException.printStackTrace();
+                    } catch (BadPaddingException badPaddingException) {
+                        badPaddingException.printStackTrace();
+                    } catch (InvalidKeyException invalidKeyException) {
+                        invalidKeyException.printStackTrace();
+                    }
+                }
+
+            }
+        });
+
+        clientView.getBackButton().addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                //System.out.println("Change to connect panel");
+                clientModel.disconnect();
+                clientView.showHome();
+            }
+        });
+
+        clientView.getHomeMenuItem().addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                //System.out.println("Change to connect panel");
+                clientModel.disconnect();
+                clientView.showHome();
+            }
+        });
+
+        clientView.getSendButton().addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                String message = clientView.getMessage();
+                try {
+                    clientModel.sendMessage(message);
+                    //clear the text in the message field after a client has sent a message
+                    clientView.getMessageField().setText("");
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    clientModel.disconnect();
+                    clientView.showHome();
+                } catch (IllegalBlockSizeException illegalBlockSizeException) {
+                    illegalBlockSizeException.printStackTrace();
+                } catch (NoSuchPaddingException noSuchPaddingException) {
+                    noSuchPaddingException.printStackTrace();
+                } catch (BadPaddingException badPaddingException) {
+                    badPaddingException.printStackTrace();
+                } catch (NoSuchAlgorithmException noSuchAlgorithmException) {
+                    noSuchAlgorithmException.printStackTrace();
+                } catch (InvalidKeyException invalidKeyException) {
+                    invalidKeyException.printStackTrace();
+                }
+            }
+        });
+
+        //Also allow the client to send messages by pressing enter on the keyboard
+        clientView.getMessageField().addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                String message = clientView.getMessage();
+                if (e.getKeyChar() == KeyEvent.VK_ENTER){
+                    try {
+                        clientModel.sendMessage(message);
+                        clientView.getMessageField().setText("");
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                    } catch (IllegalBlockSizeException illegalBlockSizeException) {
+                        illegalBlockSizeException.printStackTrace();
+                    } catch (NoSuchPaddingException noSuchPaddingException) {
+                        noSuchPaddingException.printStackTrace();
+                    } catch (BadPaddingException badPaddingException) {
+                        badPaddingException.printStackTrace();
+                    } catch (NoSuchAlgorithmException noSuchAlgorithmException) {
+                        noSuchAlgorithmException.printStackTrace();
+                    } catch (InvalidKeyException invalidKeyException) {
+                        invalidKeyException.printStackTrace();
+                    }
+                }
+            }
+        });
+
+        //Double clicking a user in the online users list starts a direct message to them
+        clientView.getOnlineUsersArea().addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2){
+                    String user = clientView.getUserAt(e.getPoint());
+                    if (user != null){
+                        clientView.addressUser(user);
+                    }
+                }
+            }
+        });
+
+        clientView.getSaveMenuItem().addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                try {
+                    clientModel.saveChat();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        });
+
+
+        clientView.getServerAddressField().addFocusListener(new FocusListener() {
+            @Override
+            public void focusGained(FocusEvent e) {
+                if (clientView.getServerAddressField().getText().equals("Default: Localhost")){
+                    clientView.getServerAddressField().setText("");
+                    clientView.getServerAddressField().setForeground(Color.black);
+                }
+            }
+
+            @Override
+            public void focusLost(FocusEvent e) {
+                if (clientView.getServerAddressField().getText().isBlank()){
+                    clientView.getServerAddressField().setForeground(Color.gray);
+                    clientView.getServerAddressField().setText("Default: Localhost");
+                }
+            }
+        });
+
+        //JFRAME Methods
+        add(clientView.getClientPanel());
+        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        setJMenuBar(clientView.getMenuBar());
+        setTitle("Client");
+        //Pack() makes sure the JFrame gets the same size as the preferred size of the client view.
+        pack();
+        //Centers the JFrame at the center of the window
+        setLocationRelativeTo(null);
+        setVisible(true);
+
+    }
+
+}
@@ -1,179 +1,750 @@
-package client;
-
-import message.Message;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
-import javax.swing.*;
-import java.io.*;
-import java.net.Socket;
-import java.security.*;
-import java.util.ArrayList;
-import java.util.Base64;
-
-/**
- * Stores all the data of our application such as the chat log between the client and the server as well
- * as a list of all the online users
- * Contains methods for communicating with the server: Methods for the client to send messages to the server
- * and methods for the client to read messages from the server
- */
-public class ClientModel {
-
-    //messages can't be null because otherwise we will not be able to add any elements to it
-    //Initialize it to an empty arraylist
-    private ArrayList<String> messages = new ArrayList<>();
-    private ArrayList<String> onlineUsers = new ArrayList<>();
-    private ObjectOutputStream objectOutputStream;
-    private ObjectInputStream objectInputStream;
-    private Socket clientSocket;
-    private String username;
-
-    //NEW FIELDS
-    //The private and public RSA key will be used to securely exchange the session key with the server
-    private PublicKey publicKey;
-    private PrivateKey privateKey;
-    private SecretKey sessionKey;
-
-    private static KeyPair generateKeyPair(){
-        //Create a new keypair generator that generates an RSA key pair
-        KeyPairGenerator keyPairGenerator = null;
-        try {
-            keyPairGenerator = KeyPairGenerator.getInstance("RSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-        //Set the key size to 2048 bits, this will be enough for our 1-time use of the key
-        keyPairGenerator.initialize(2048);
-        return keyPairGenerator.generateKeyPair();
-    }
-
-    public ClientModel(){
-        KeyPair keyPair = generateKeyPair();
-        this.privateKey = keyPair.getPrivate();
-        this.publicKey = keyPair.getPublic();
-    }
-
-
-    //OBSERVER. ClientView observes the clientModel. The clientModel is OBSERVABLE
-    private ClientView clientView;
-
-    public void connect(String username, String serverAddress) throws IOException, ClassNotFoundException, NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
-        clientSocket = new Socket(serverAddress,1234);
-        this.username = username;
-        objectOutputStream = new ObjectOutputStream(clientSocket.getOutputStream());
-        objectInputStream = new ObjectInputStream(clientSocket.getInputStream());
-        //The first thing the client writes to the server is their username
-        //this is so that the server can add them to their online user list
-        objectOutputStream.writeObject(username);
-
-        //write the public key to the server so that it can use it to encrypt the secret session key
-        //we will then use the private key to decrypt the session key
-        //the public key is not written in encrypted form, but this is not an issue since it can only be used
-        //for encryption. Only the person with the private key(i.e. client) can decrypt messages encrypted with public key
-        objectOutputStream.writeObject(this.publicKey);
-
-        //Read the encrypted session key which is sent as a message from the server to the client
-        //this is the first message that the server will send from the client
-        Message encryptedSessionKey = (Message) objectInputStream.readObject();
-        //Decrypt the message to obtain a string representation of the unencrypted session key
-        String sessionKey = encryptedSessionKey.decrypt(this.privateKey);
-        //Turn the String representation of the session key into a real AES session key that can
-        //be used for encryption/decryption. Store it in a private field(very important)
-        this.sessionKey = new SecretKeySpec(Base64.getDecoder().decode(sessionKey),"AES");
-
-    }
-
-    public void sendMessage(String message) throws IOException, IllegalBlockSizeException, NoSuchPaddingException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException {
-        //send a message that is encrypted using the symmetric session AES session key
-        objectOutputStream.writeObject(new Message(username+": "+message,this.sessionKey));
-    }
-
-    public void readMessage() throws IOException, ClassNotFoundException, NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
-        Object obj = objectInputStream.readObject();
-        if (obj instanceof Message){
-            Message message = (Message) obj;
-            //Decrypt all messages that the server sends to us(client) and add them to the client log in plain text
-            //so that the client can read the messages
-            messages.add(message.decrypt(this.sessionKey));
-            clientView.updateMessages();
-        } else {
-            ArrayList<String> onlineUsers = (ArrayList<String>) obj;
-            this.onlineUsers = onlineUsers;
-            clientView.updateUserList();
-        }
-    }
-
-    public void listenForMessages(){
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    while (true){
-                        readMessage();
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                } catch (ClassNotFoundException e) {
-                    e.printStackTrace();
-                } catch (NoSuchPaddingException e) {
-                    e.printStackTrace();
-                } catch (IllegalBlockSizeException e) {
-                    e.printStackTrace();
-                } catch (NoSuchAlgorithmException e) {
-                    e.printStackTrace();
-                } catch (BadPaddingException e) {
-                    e.printStackTrace();
-                } catch (InvalidKeyException e) {
-                    e.printStackTrace();
-                }
-            }
-        }).start();
-    }
-
-    public void disconnect() {
-        try {
-            if (clientSocket.isConnected()) {
-                clientSocket.close();
-            }
-            if (objectOutputStream != null) {
-                objectOutputStream.close();
-            }
-            if (objectInputStream != null) {
-                objectInputStream.close();
-            }
-        } catch (IOException e){
-            e.printStackTrace();
-        }
-    }
-
-    public String getLatestMessage(){
-        return messages.get(messages.size()-1);
-    }
-
-    public ArrayList<String> getOnlineUsers(){
-        return onlineUsers;
-    }
-    //Observer pattern will be necessary because the ClientModel needs to notify the ClientView when
-    //it has read a new message. The client controller can not do that because the client controller does not know
-    // when the client has read a new message from the server. Therefore the Client Model needs to notify the view.
-    public void addObserver(ClientView clientView){
-        this.clientView = clientView;
-    }
-
-
-    public void saveChat() throws IOException {
-        JFileChooser jFileChooser = new JFileChooser();
-
-        if (jFileChooser.showSaveDialog(null) == JFileChooser.APPROVE_OPTION){
-            File file = jFileChooser.getSelectedFile();
-            BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(file));
-            for (String msg : messages){
-                bufferedWriter.write(msg);
-            }
-            bufferedWriter.close();
-        }
-    }
-}
+package client;
+
+import message.ArchiveTask;
+import message.ChannelMessage;
+import message.ChannelRequest;
+import message.CipherEngine;
+import message.DirectMessage;
+import message.FrameType;
+import message.KeyExchange;
+import message.Message;
+import message.MessageHistory;
+import message.MessageLog;
+import message.PayloadCompression;
+import message.Preamble;
+import message.PresenceUpdate;
+import message.ResumptionTicket;
+import message.WireProtocol;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.swing.*;
+import java.io.*;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Stores all the data of our application such as the chat log between the client and the server as well
+ * as a list of all the online users
+ * Contains methods for communicating with the server: Methods for the client to send messages to the server
+ * and methods for the client to read messages from the server
+ */
+public class ClientModel {
+
+    //A message that starts with this is sent to one user only, e.g. "/msg alice hello"
+    public static final String DIRECT_MESSAGE_COMMAND = "/msg ";
+    //"/join games" joins a channel and "/leave games" leaves it again, "#games hello" is sent to its members only
+    public static final String JOIN_COMMAND = "/join ";
+    public static final String LEAVE_COMMAND = "/leave ";
+    public static final String CHANNEL_PREFIX = "#";
+    //How many rows the chat pane keeps unless told otherwise
+    public static final int DEFAULT_MAX_CHAT_ROWS = 2000;
+    //The port the server listens on unless the address names another one, e.g. "chat.example.com:4000"
+    public static final int DEFAULT_PORT = 1234;
+    //How long the first attempt to connect again waits, every further attempt waits twice as long up to the maximum
+    private static final long RECONNECT_MIN_DELAY_MILLIS = 250;
+    private static final long RECONNECT_MAX_DELAY_MILLIS = 30000;
+
+    //messages can't be null because otherwise we will not be able to add any elements to it
+    //Initialize it to an empty arraylist
+    //The most recent messages are kept in memory, older ones are read back from disk when they are needed
+    private MessageHistory messages = new MessageHistory(MessageHistory.DEFAULT_CAPACITY);
+    private PresenceList onlineUsers = new PresenceList();
+    //The members of every channel we have joined. Joining and leaving happen on the UI thread, while the updates
+    //arrive on the listening thread
+    private ConcurrentHashMap<String, PresenceList> channels = new ConcurrentHashMap<>();
+    //The sequence number of the last chat message from the server. When we connect again, the server only sends the
+    //recent messages after it.
+    private long chatSequence = 0;
+    private int maxChatRows = DEFAULT_MAX_CHAT_ROWS;
+    //Our messages are compressed from this length on, if the server agrees to it. 0 never compresses them.
+    private int compressionThreshold = PayloadCompression.DEFAULT_THRESHOLD;
+    private PayloadCompression compression = PayloadCompression.NONE;
+    //A client without a window, such as a simulated client of the load generator, keeps neither
+    private boolean keepChatLog = true;
+    private boolean trackPresence = true;
+    private DataInputStream dataInputStream;
+    private OutputStream outputStream;
+    private Socket clientSocket;
+    private String username;
+    //Where we connect to again when the connection is lost
+    private String serverAddress;
+    //Set by disconnect(), so that a connection we have closed ourselves is not taken for a lost one
+    private volatile boolean disconnecting = false;
+    //False while the handshake is under way, so that nothing else is written before it, see write()
+    private volatile boolean connected = false;
+    //Whether listenForMessages() connects again by itself when the connection is lost
+    private boolean autoReconnect = true;
+    //The resumption ticket the server gave us for the binary wire protocol, null until we have one. It lets us
+    //connect again without a new key exchange.
+    private volatile byte[] ticket;
+    //The key that came with the ticket, we sign the server's challenge with it when we resume. Null with the ticket.
+    private volatile SecretKey resumeKey;
+    //Whether the current connection was resumed, the next ticket's key is then encrypted with the last resume key
+    private boolean resumed = false;
+
+    //NEW FIELDS
+    //The key pair is used to securely exchange the session key with the server, see KeyExchange. It is generated in
+    //the background while the login window is shown, or at the latest when we connect.
+    private KeyExchange keyExchange = KeyExchange.X25519;
+    private FutureTask<KeyPair> keyPair;
+    private SecretKey sessionKey;
+    //Encrypts and decrypts with the session key, created once the session key has arrived
+    private CipherEngine cipherEngine;
+    //How long the steps of the last handshake took, null until we have connected
+    private HandshakeTimings handshakeTimings;
+
+    public ClientModel(){
+    }
+
+    /**
+     * @param keyPair the key pair to exchange the session key with, its kind picks the key exchange. Many clients in
+     *                one program can share one key pair, since an RSA key pair takes a while to generate.
+     */
+    public ClientModel(KeyPair keyPair){
+        this.keyExchange = KeyExchange.forKey(keyPair.getPublic());
+        this.keyPair = keyPairTask(keyPair);
+        this.keyPair.run();
+    }
+
+    //A task that generates a key pair, or hands out the one it was given
+    private static FutureTask<KeyPair> keyPairTask(final KeyPair keyPair){
+        return new FutureTask<>(new Callable<KeyPair>() {
+            @Override
+            public KeyPair call() {
+                return keyPair;
+            }
+        });
+    }
+
+    private static FutureTask<KeyPair> keyPairTask(final KeyExchange keyExchange){
+        return new FutureTask<>(new Callable<KeyPair>() {
+            @Override
+            public KeyPair call() {
+                return keyExchange.generateKeyPair();
+            }
+        });
+    }
+
+    /**
+     * Starts generating the key pair on a background thread, so that it is ready by the time the user connects.
+     * Does nothing if there is one already.
+     */
+    public synchronized void generateKeyPairInBackground(){
+        if (keyPair == null){
+            keyPair = keyPairTask(keyExchange);
+            Thread thread = new Thread(keyPair, "key-generator");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    //Waits for the key pair, or generates it right here if that has not been started yet
+    private KeyPair getKeyPair() throws InterruptedIOException {
+        FutureTask<KeyPair> task;
+        synchronized (this){
+            if (keyPair == null){
+                keyPair = keyPairTask(keyExchange);
+            }
+            task = keyPair;
+        }
+        //does nothing if the task has already run, or is running on the background thread
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the key pair");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not generate a key pair", e.getCause());
+        }
+    }
+
+
+    //OBSERVER. ClientView observes the clientModel. The clientModel is OBSERVABLE
+    private ClientObserver clientView;
+
+    public void connect(String username, String serverAddress) throws IOException, NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        if (!username.equals(this.username)){
+            //a ticket is only good for the user it was issued to
+            ticket = null;
+            resumeKey = null;
+        }
+        this.username = username;
+        this.serverAddress = serverAddress;
+        disconnecting = false;
+        openSession();
+    }
+
+    //Connects to the server and gets the session key, with the ticket if we have one and the whole handshake otherwise
+    private void openSession() throws IOException, NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        //waits for a write that is under way on the old connection
+        synchronized (this){
+            connected = false;
+        }
+        String host = serverAddress;
+        int port = DEFAULT_PORT;
+        int separator = serverAddress.lastIndexOf(':');
+        //an address with more than one colon is an IPv6 address without a port
+        if (separator > 0 && serverAddress.indexOf(':') == separator){
+            try {
+                port = Integer.parseInt(serverAddress.substring(separator + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Not a port number: " + serverAddress.substring(separator + 1), e);
+            }
+            host = serverAddress.substring(0, separator);
+        }
+        if (ticket != null && resumeKey != null){
+            try {
+                resumeSession(host, port);
+                resumed = true;
+                connected = true;
+                return;
+            } catch (ProtocolException e) {
+                //the server does not take the ticket, e.g. because it has expired, so do the whole handshake instead
+                ticket = null;
+                resumeKey = null;
+                closeSocket();
+            }
+        }
+        resumed = false;
+        long start = System.nanoTime();
+        KeyPair keyPair = getKeyPair();
+        long keyGenerated = System.nanoTime();
+        openSocket(host, port);
+        long socketConnected = System.nanoTime();
+        Message encryptedSessionKey = connectWithFrames(WireProtocol.encodeHandshake(username, keyPair.getPublic(), chatSequence), null);
+        long keyExchanged = System.nanoTime();
+        //Unwrap the session key with our private key and store it in a private field(very important)
+        this.sessionKey = KeyExchange.forKey(keyPair.getPublic()).unwrapSessionKey(encryptedSessionKey.getCiphertext(), keyPair);
+        this.cipherEngine = new CipherEngine(this.sessionKey);
+        handshakeTimings = new HandshakeTimings(keyGenerated - start, socketConnected - keyGenerated, keyExchanged - socketConnected,
+                System.nanoTime() - keyExchanged, false);
+        connected = true;
+    }
+
+    //Skips the key pair and the key exchange: once we have signed its challenge with the resume key, the server sends
+    //the current session key encrypted with the resume key
+    private void resumeSession(String host, int port) throws IOException, NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        long start = System.nanoTime();
+        openSocket(host, port);
+        long socketConnected = System.nanoTime();
+        Message encryptedSessionKey = connectWithFrames(WireProtocol.encodeResume(username, ticket, chatSequence), resumeKey);
+        long keyExchanged = System.nanoTime();
+        this.sessionKey = new CipherEngine(resumeKey).unwrapKey(encryptedSessionKey.getCiphertext());
+        this.cipherEngine = new CipherEngine(this.sessionKey);
+        handshakeTimings = new HandshakeTimings(0, socketConnected - start, keyExchanged - socketConnected,
+                System.nanoTime() - keyExchanged, true);
+    }
+
+    private void openSocket(String host, int port) throws IOException {
+        clientSocket = new Socket(host, port);
+        //every message is written and flushed as a whole, so there is nothing to gain from waiting for more to send
+        clientSocket.setTcpNoDelay(true);
+    }
+
+    //Closes a connection that is broken anyway
+    private void closeSocket() {
+        try {
+            if (clientSocket != null) {
+                clientSocket.close();
+            }
+        } catch (IOException e) {
+            //it is being thrown away
+        }
+    }
+
+    /**
+     * Does the handshake with the binary wire protocol
+     * @param handshake the HANDSHAKE frame with our public key, or the RESUME frame with our ticket
+     * @param resumeKey the key that came with the ticket to answer the server's challenge with, null without a ticket
+     * @return the session key, wrapped for our key pair or with the resume key
+     */
+    private Message connectWithFrames(ByteBuffer handshake, SecretKey resumeKey) throws IOException {
+        outputStream = new BufferedOutputStream(clientSocket.getOutputStream());
+        dataInputStream = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+        //Offer the highest protocol version we support, and send our username and public key (or ticket) right away
+        //so that the whole handshake only takes one round trip
+        byte flags = compressionThreshold > 0 ? Preamble.COMPRESSION : 0;
+        outputStream.write(WireProtocol.encodePreamble(new Preamble(WireProtocol.VERSION, flags)).array());
+        outputStream.write(handshake.array());
+        outputStream.flush();
+
+        //The server answers with the version and features it has picked, followed by the encrypted session key
+        Preamble agreed = WireProtocol.readPreamble(dataInputStream);
+        if (agreed.getVersion() < WireProtocol.MIN_VERSION || agreed.getVersion() > WireProtocol.VERSION){
+            throw new ProtocolException("The server picked an unsupported protocol version: " + agreed.getVersion());
+        }
+        compression = agreed.supports(Preamble.COMPRESSION) ? new PayloadCompression(compressionThreshold, null) : PayloadCompression.NONE;
+        ByteBuffer frame = WireProtocol.readFrame(dataInputStream);
+        FrameType frameType = WireProtocol.readFrameType(frame);
+        if (frameType == FrameType.RESUME_CHALLENGE && resumeKey != null){
+            //prove that the ticket is ours, the server only sends the session key after that
+            try {
+                outputStream.write(WireProtocol.encodeResumeProof(resumeKey, WireProtocol.decodeResumeChallenge(frame), username).array());
+            } catch (GeneralSecurityException e) {
+                throw new ProtocolException("Could not answer the resume challenge: " + e);
+            }
+            outputStream.flush();
+            frame = WireProtocol.readFrame(dataInputStream);
+            frameType = WireProtocol.readFrameType(frame);
+        }
+        if (frameType == FrameType.ERROR){
+            //the server has turned us away, e.g. because the username is taken
+            throw new ProtocolException(WireProtocol.decodeError(frame));
+        }
+        if (frameType != FrameType.HANDSHAKE){
+            throw new ProtocolException("Expected the session key from the server");
+        }
+        return WireProtocol.decodeMessage(frame);
+    }
+
+    /**
+     * Sends a message to everybody, or to one user only if the message starts with "/msg username ", or to the members
+     * of a channel if it starts with "#channel ". "/join channel" and "/leave channel" join and leave a channel.
+     */
+    public void sendMessage(String message) throws IOException, IllegalBlockSizeException, NoSuchPaddingException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+        if (message.startsWith(DIRECT_MESSAGE_COMMAND)){
+            String[] recipientAndMessage = message.substring(DIRECT_MESSAGE_COMMAND.length()).split(" ", 2);
+            if (recipientAndMessage.length == 2 && !recipientAndMessage[0].isEmpty()){
+                sendDirectMessage(recipientAndMessage[0], recipientAndMessage[1]);
+                return;
+            }
+        } else if (message.startsWith(JOIN_COMMAND) && ChannelRequest.isValidChannelName(message.substring(JOIN_COMMAND.length()))){
+            joinChannel(message.substring(JOIN_COMMAND.length()));
+            return;
+        } else if (message.startsWith(LEAVE_COMMAND) && ChannelRequest.isValidChannelName(message.substring(LEAVE_COMMAND.length()))){
+            leaveChannel(message.substring(LEAVE_COMMAND.length()));
+            return;
+        } else if (message.startsWith(CHANNEL_PREFIX)){
+            String[] channelAndMessage = message.substring(CHANNEL_PREFIX.length()).split(" ", 2);
+            if (channelAndMessage.length == 2 && channels.containsKey(channelAndMessage[0])){
+                sendChannelMessage(channelAndMessage[0], channelAndMessage[1]);
+                return;
+            }
+        }
+        //send a message that is encrypted using the symmetric session AES session key
+        Message encryptedMessage = new Message(username,message,this.cipherEngine,compression);
+        write(WireProtocol.encodeMessage(FrameType.CHAT, encryptedMessage));
+    }
+
+    /**
+     * Sends a message that only the given user (and we ourselves) will see
+     * @param recipient the username of the user to send it to
+     * @param message the text of the message
+     */
+    public void sendDirectMessage(String recipient, String message) throws IOException, IllegalBlockSizeException, NoSuchPaddingException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+        Message encryptedMessage = new Message(username,message,this.cipherEngine,compression);
+        DirectMessage directMessage = new DirectMessage(recipient, encryptedMessage);
+        write(WireProtocol.encodeDirectMessage(directMessage));
+    }
+
+    /**
+     * Joins a channel, the server creates it if nobody is in it yet.
+     * From then on the channel's messages arrive and its members are kept up to date.
+     */
+    public void joinChannel(String channel) throws IOException {
+        channels.putIfAbsent(channel, new PresenceList());
+        sendChannelRequest(new ChannelRequest(ChannelRequest.Kind.JOIN, channel));
+    }
+
+    public void leaveChannel(String channel) throws IOException {
+        if (channels.remove(channel) != null){
+            sendChannelRequest(new ChannelRequest(ChannelRequest.Kind.LEAVE, channel));
+        }
+    }
+
+    /**
+     * Sends a message that only the members of a channel we have joined will see
+     */
+    public void sendChannelMessage(String channel, String message) throws IOException, IllegalBlockSizeException, NoSuchPaddingException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+        Message encryptedMessage = new Message(username,message,this.cipherEngine,compression);
+        ChannelMessage channelMessage = new ChannelMessage(channel, encryptedMessage);
+        write(WireProtocol.encodeChannelMessage(channelMessage));
+    }
+
+    private void sendChannelRequest(ChannelRequest channelRequest) throws IOException {
+        write(WireProtocol.encodeChannelRequest(channelRequest));
+    }
+
+    //The UI thread sends messages while the listening thread may ask for a presence resync, so writes are synchronized.
+    //While we connect again, messages fail instead of getting in the way of the handshake.
+    private synchronized void write(ByteBuffer frame) throws IOException {
+        if (!connected){
+            throw new IOException("Not connected to the server");
+        }
+        outputStream.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        outputStream.flush();
+    }
+
+    /**
+     * Blocks until the server has sent the next frame, and handles it
+     */
+    public void readMessage() throws IOException, NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        ByteBuffer frame = WireProtocol.readFrame(dataInputStream);
+        FrameType frameType = WireProtocol.readFrameType(frame);
+        if (frameType == FrameType.COMPRESSED){
+            //a large frame, such as the list of online users, that the server has compressed for us
+            frame = WireProtocol.decodeCompressed(frame);
+            frameType = WireProtocol.readFrameType(frame);
+        }
+        switch (frameType){
+            case CHAT:
+            case SERVER_NOTICE:
+                addChatMessage(WireProtocol.decodeMessage(frame));
+                break;
+            case DIRECT:
+                showDirectMessage(WireProtocol.decodeDirectMessage(frame));
+                break;
+            case CHANNEL:
+                showChannelMessage(WireProtocol.decodeChannelMessage(frame));
+                break;
+            case PRESENCE:
+            case PRESENCE_DELTA:
+                applyPresence(WireProtocol.decodePresence(frameType, frame));
+                break;
+            case TICKET:
+                //replaces the one we had, so that it does not expire while we stay connected
+                acceptTicket(WireProtocol.decodeTicket(frame));
+                break;
+            default:
+                throw new ProtocolException("Unexpected frame from the server: " + frameType);
+        }
+    }
+
+    //The resume key is encrypted for us alone, with our key pair after a whole handshake or with the resume key we have
+    //just resumed with
+    private void acceptTicket(ResumptionTicket resumptionTicket) throws IOException {
+        try {
+            SecretKey key;
+            if (resumed){
+                key = new CipherEngine(resumeKey).unwrapKey(resumptionTicket.getWrappedKey());
+            } else {
+                KeyPair keyPair = getKeyPair();
+                key = KeyExchange.forKey(keyPair.getPublic()).unwrapSessionKey(resumptionTicket.getWrappedKey(), keyPair);
+            }
+            resumeKey = key;
+            ticket = resumptionTicket.getTicket();
+        } catch (GeneralSecurityException e) {
+            //we do the whole handshake the next time
+            ticket = null;
+            resumeKey = null;
+        }
+    }
+
+    private void addChatMessage(Message message) throws NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        if (message.getSequence() != 0){
+            if (message.getSequence() <= chatSequence){
+                //we already have it from before we reconnected
+                return;
+            }
+            chatSequence = message.getSequence();
+        }
+        //Decrypt all messages that the server sends to us(client) and add them to the client log in plain text
+        //so that the client can read the messages
+        showMessage(message.decrypt(this.cipherEngine));
+    }
+
+    //Adds a message to the chat log and hands it to the view, this is where it is formatted as text
+    //The sender is the one the server put into the frame, the user it has authenticated, and not whatever the
+    //encrypted message says
+    private void showDirectMessage(DirectMessage directMessage) throws NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException, ProtocolException {
+        if (directMessage.getSender() == null){
+            throw new ProtocolException("The server sent a direct message without its sender");
+        }
+        Message message = directMessage.getMessage().decrypt(this.cipherEngine);
+        showMessage(message.toString(directMessage.getSender()+" -> "+directMessage.getRecipient()));
+    }
+
+    private void showChannelMessage(ChannelMessage channelMessage) throws NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException, ProtocolException {
+        if (channelMessage.getSender() == null){
+            throw new ProtocolException("The server sent a channel message without its sender");
+        }
+        Message message = channelMessage.getMessage().decrypt(this.cipherEngine);
+        showMessage(message.toString(channelMessage.getSender()+" #"+channelMessage.getChannel()));
+    }
+
+    private void showMessage(Message message) {
+        showMessage(message.toString());
+    }
+
+    private void showMessage(String text) {
+        if (keepChatLog){
+            messages.add(text);
+        }
+        clientView.addMessage(text);
+    }
+
+    /**
+     * Applies a presence update to the list of online users, or to the members of a channel.
+     * If the update shows that an earlier one has been missed, the list is asked for again.
+     */
+    private void applyPresence(PresenceUpdate update) throws IOException {
+        if (!trackPresence){
+            return;
+        }
+        PresenceList presenceList = update.getChannel() == null ? onlineUsers : channels.get(update.getChannel());
+        if (presenceList == null){
+            //a channel we have left in the meantime
+            return;
+        }
+        if (presenceList.apply(update)){
+            if (update.getChannel() == null){
+                clientView.updateUserList(update);
+            } else {
+                clientView.updateChannelMembers(update);
+            }
+        } else if (presenceList.needsResync(update)){
+            requestPresenceResync(update.getChannel());
+        }
+    }
+
+    //Asks the server for the whole list of online users, or of a channel's members
+    private void requestPresenceResync(String channel) throws IOException {
+        if (channel != null){
+            sendChannelRequest(new ChannelRequest(ChannelRequest.Kind.RESYNC, channel));
+        } else {
+            write(WireProtocol.encodePresenceResync());
+        }
+    }
+
+    /**
+     * Reads from the server on a thread of its own. When the connection is lost, it connects again (see reconnect())
+     * and goes on reading, unless that has been turned off or we have disconnected ourselves.
+     */
+    public void listenForMessages(){
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true){
+                        try {
+                            readMessage();
+                        } catch (IOException e) {
+                            if (!reconnectAfter(e)){
+                                return;
+                            }
+                        } catch (BadPaddingException | IllegalBlockSizeException e) {
+                            //The frame has been read as a whole, so only this message is lost and the ones after it
+                            //can still be decrypted
+                            e.printStackTrace();
+                            showMessage(new Message(Message.SERVER, "A message could not be decrypted and was skipped"));
+                        }
+                    }
+                } catch (NoSuchPaddingException e) {
+                    e.printStackTrace();
+                } catch (NoSuchAlgorithmException e) {
+                    e.printStackTrace();
+                } catch (InvalidKeyException e) {
+                    e.printStackTrace();
+                }
+            }
+        }).start();
+    }
+
+    //Called by the listening thread when reading failed. Returns whether we are connected again.
+    private boolean reconnectAfter(IOException e) {
+        if (disconnecting){
+            //we have closed the connection ourselves
+            return false;
+        }
+        e.printStackTrace();
+        if (!autoReconnect){
+            return false;
+        }
+        clientView.connectionLost();
+        if (!reconnect()){
+            return false;
+        }
+        clientView.reconnected();
+        return true;
+    }
+
+    /**
+     * Connects to the server again as the same user, after the connection was lost. An attempt that fails is retried
+     * after twice the delay of the one before, up to 30 seconds, and every attempt waits a random part of its delay so
+     * that the clients of a restarted server do not all come back at the same moment. With a resumption ticket the key
+     * exchange is skipped, and either way the server only sends the messages after the last one we have.
+     * @return true once we are connected again, false if disconnect() was called first
+     */
+    public boolean reconnect() {
+        long delay = RECONNECT_MIN_DELAY_MILLIS;
+        while (!disconnecting){
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(delay + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            closeSocket();
+            try {
+                openSession();
+                if (disconnecting){
+                    //disconnect() has closed the old socket while we were opening this one
+                    closeSocket();
+                    return false;
+                }
+                //the server has forgotten which channels we were in
+                for (String channel : channels.keySet()){
+                    sendChannelRequest(new ChannelRequest(ChannelRequest.Kind.JOIN, channel));
+                }
+                return true;
+            } catch (IOException e) {
+                //the server is not back yet, or has turned us away for now
+            } catch (GeneralSecurityException e) {
+                e.printStackTrace();
+            }
+            delay = Math.min(delay * 2, RECONNECT_MAX_DELAY_MILLIS);
+        }
+        return false;
+    }
+
+    public void disconnect() {
+        disconnecting = true;
+        try {
+            if (clientSocket.isConnected()) {
+                clientSocket.close();
+            }
+        } catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Chooses how the session key is exchanged with the server: X25519 (the default), or RSA which takes much longer
+     * to generate a key pair for. Must be called before connect(), a key pair of the other kind is thrown away.
+     */
+    public synchronized void setKeyExchange(KeyExchange keyExchange){
+        if (keyExchange != this.keyExchange){
+            this.keyExchange = keyExchange;
+            this.keyPair = null;
+        }
+    }
+
+    /**
+     * Whether listenForMessages() connects again by itself when the connection is lost (the default)
+     */
+    public void setAutoReconnect(boolean autoReconnect){
+        this.autoReconnect = autoReconnect;
+    }
+
+    /**
+     * @return how long the steps of the last handshake took, or null if we have not connected yet
+     */
+    public HandshakeTimings getHandshakeTimings(){
+        return handshakeTimings;
+    }
+
+    /**
+     * Sets how long our messages have to be, in bytes, before they are compressed (default 256), or 0 to never
+     * compress them. The server has to agree to compression too. Must be called before connect().
+     */
+    public void setCompressionThreshold(int compressionThreshold){
+        if (compressionThreshold < 0){
+            throw new IllegalArgumentException("The compression threshold can't be negative");
+        }
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Sets how many rows the chat pane keeps, the chat log itself keeps every message regardless.
+     * Must be called before the view is created.
+     */
+    public void setMaxChatRows(int maxChatRows){
+        if (maxChatRows < 1){
+            throw new IllegalArgumentException("The chat must show at least 1 row");
+        }
+        this.maxChatRows = maxChatRows;
+    }
+
+    public int getMaxChatRows(){
+        return maxChatRows;
+    }
+
+    /**
+     * Whether the messages are kept in a chat log that can be saved and scrolled back through (the default).
+     * A client without a window has no use for it, and thousands of them would each write their own to disk.
+     */
+    public void setKeepChatLog(boolean keepChatLog){
+        this.keepChatLog = keepChatLog;
+    }
+
+    /**
+     * Whether the online users and the members of our channels are kept up to date (the default). Every client
+     * keeps a list of every other client, so thousands of clients in one program would keep millions of names.
+     * Without it, presence updates are read and ignored.
+     */
+    public void setTrackPresence(boolean trackPresence){
+        this.trackPresence = trackPresence;
+    }
+
+    /**
+     * @return how many messages the chat log holds, including those that are no longer in memory
+     */
+    public long getMessageCount(){
+        return messages.size();
+    }
+
+    /**
+     * Reads older messages for scrolling back through the chat
+     * @param before the index of the message after the page, getMessageCount() for the most recent messages
+     * @param maxCount how many messages to read at most
+     */
+    public List<String> getMessagesBefore(long before, int maxCount) throws IOException {
+        return messages.getPageBefore(before, maxCount);
+    }
+
+    public ArrayList<String> getOnlineUsers(){
+        return onlineUsers.getUsers();
+    }
+
+    /**
+     * @return the members of a channel we have joined, or null if we are not in the channel
+     */
+    public ArrayList<String> getChannelMembers(String channel){
+        PresenceList members = channels.get(channel);
+        return members == null ? null : members.getUsers();
+    }
+    //Observer pattern will be necessary because the ClientModel needs to notify the ClientView when
+    //it has read a new message. The client controller can not do that because the client controller does not know
+    // when the client has read a new message from the server. Therefore the Client Model needs to notify the view.
+    public void addObserver(ClientObserver clientView){
+        this.clientView = clientView;
+    }
+
+
+    /**
+     * Saves the chat to a file, in the background. A file ending in .txt gets one message per line, any other
+     * file a chat archive, compressed if it ends in .chatz.
+     */
+    public void saveChat() throws IOException {
+        JFileChooser jFileChooser = new JFileChooser();
+
+        if (jFileChooser.showSaveDialog(null) == JFileChooser.APPROVE_OPTION){
+            //only the messages so far are saved, messages that arrive while saving are not
+            final long size = messages.size();
+            ArchiveTask.export(null, new MessageLog() {
+                @Override
+                public long size() {
+                    return size;
+                }
+
+                @Override
+                public List<String> getPage(long first, int maxCount) throws IOException {
+                    return messages.getPage(first, (int) Math.min(maxCount, size - first));
+                }
+            }, jFileChooser.getSelectedFile()).execute();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package client;
+
+import message.PresenceUpdate;
+
+/**
+ * Is told by the client model when something arrives from the server that should be shown. The window of the client
+ * is one, the simulated clients of the load generator are others. The methods are called from the thread that
+ * listens to the server and must not wait for anything.
+ */
+public interface ClientObserver {
+
+    /**
+     * A message has been added to the chat
+     */
+    void addMessage(String message);
+
+    /**
+     * A user has come online or gone offline
+     * @param update the update that has just been applied to the model
+     */
+    void updateUserList(PresenceUpdate update);
+
+    /**
+     * A user has joined or left a channel that we are in, or we have just joined it
+     * @param update the update that has just been applied to the model
+     */
+    void updateChannelMembers(PresenceUpdate update);
+
+    /**
+     * The connection to the server has been lost, and the model is trying to connect again
+     */
+    void connectionLost();
+
+    /**
+     * The model has connected to the server again after the connection was lost
+     */
+    void reconnected();
+}
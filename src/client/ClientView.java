@@ -1,107 +1,272 @@
-package client;
-
-import javax.swing.*;
-import java.awt.*;
-
-public class ClientView {
-    private JPanel clientPanel;
-    private JPanel connectPanel;
-    private JTextField usernameField;
-    private JTextField serverAddressField;
-    private JButton connectButton;
-    private JLabel errorMessage;
-    private JPanel chatPanel;
-    private JTextArea chatArea;
-    private JTextArea onlineUsersArea;
-    private JTextField messageField;
-    private JButton sendButton;
-    private JButton backButton;
-    private JMenuBar menuBar;
-    private JMenuItem saveMenuItem;
-    private JMenuItem homeMenuItem;
-
-    private ClientModel clientModel;
-
-    public ClientView(ClientModel clientModel){
-        this.clientModel = clientModel;
-    }
-
-    //GETTER METHODS
-
-    public JPanel getClientPanel(){
-        return clientPanel;
-    }
-
-    public String getUserName(){
-        return usernameField.getText().trim();
-    }
-
-    public String getServerIPAddress(){
-        if (serverAddressField.getText().isBlank() || serverAddressField.getText().equals("Default: Localhost")){
-            return "localhost";
-        } else {
-            return serverAddressField.getText();
-        }
-    }
-
-    public JButton getConnectButton(){
-        return connectButton;
-    }
-
-    public JButton getBackButton(){
-        return backButton;
-    }
-
-    public String getMessage(){
-        return messageField.getText();
-    }
-
-    public JMenuBar getMenuBar(){
-        return menuBar;
-    }
-
-    public JButton getSendButton(){
-        return sendButton;
-    }
-
-    public JTextField getServerAddressField() {
-        return serverAddressField;
-    }
-
-    public void showChat() {
-        CardLayout cardLayout = (CardLayout) clientPanel.getLayout();
-        cardLayout.show(clientPanel,"chat");
-    }
-
-    public void showHome() {
-        CardLayout cardLayout = (CardLayout) clientPanel.getLayout();
-        cardLayout.show(clientPanel,"home");
-    }
-
-    public void updateMessages() {
-        chatArea.append(clientModel.getLatestMessage());
-    }
-
-    public void updateUserList() {
-        onlineUsersArea.setText("");
-        for (String user : clientModel.getOnlineUsers()){
-            onlineUsersArea.append(user);
-        }
-    }
-
-    public JTextField getMessageField(){
-        return messageField;
-    }
-
-    public JMenuItem getSaveMenuItem(){
-        return saveMenuItem;
-    }
-
-    public void setErrorMessage(String errorMessage) {
-        this.errorMessage.setText(errorMessage);
-    }
-
-    public JMenuItem getHomeMenuItem() {
-        return homeMenuItem;
-    }
-}
+package client;
+
+import message.PresenceUpdate;
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The window of the client. Messages arrive on the thread that listens to the server, hundreds a second in a busy
+ * chat, while Swing may only be touched on the event dispatch thread. They are therefore queued here and added to the
+ * chat pane in batches, at most once every frame interval.
+ *
+ * The chat pane is a list with one row per line and rows of a fixed size, so that Swing only lays out and paints the
+ * rows that are visible, and it keeps a limited number of rows. Older messages stay in the chat log of the model.
+ */
+public class ClientView implements ClientObserver {
+
+    //How often the chat pane is brought up to date at most, about 30 times a second
+    private static final int FRAME_INTERVAL_MILLIS = 33;
+
+    private JPanel clientPanel;
+    private JPanel connectPanel;
+    private JTextField usernameField;
+    private JTextField serverAddressField;
+    private JButton connectButton;
+    private JLabel errorMessage;
+    private JPanel chatPanel;
+    private JList<String> chatList;
+    private JTextArea onlineUsersArea;
+    private JTextField messageField;
+    private JButton sendButton;
+    private JButton backButton;
+    private JMenuBar menuBar;
+    private JMenuItem saveMenuItem;
+    private JMenuItem homeMenuItem;
+
+    private ClientModel clientModel;
+    private final ChatListModel chatRows;
+
+    //The lines that have not been shown yet, and whether the online users have changed since the last update
+    private final ConcurrentLinkedQueue<String> pendingRows = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean usersChanged = new AtomicBoolean();
+    //Set while an update is waiting for its turn, so that a burst of messages only schedules one
+    private final AtomicBoolean updateScheduled = new AtomicBoolean();
+    private final Timer updateTimer;
+
+    public ClientView(ClientModel clientModel){
+        this.clientModel = clientModel;
+        this.chatRows = new ChatListModel(clientModel.getMaxChatRows());
+        chatList.setModel(chatRows);
+        //with a fixed row size the list doesn't measure every row, only the visible ones are laid out and painted.
+        //The width is only a minimum, the list stretches to the width of the pane.
+        chatList.setFixedCellHeight(chatList.getFontMetrics(chatList.getFont()).getHeight() + 2);
+        chatList.setFixedCellWidth(100);
+        chatList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+                super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+                //a line that is too long for the pane is cut off, hovering over it shows all of it
+                setToolTipText((String) value);
+                return this;
+            }
+        });
+        ToolTipManager.sharedInstance().registerComponent(chatList);
+        updateTimer = new Timer(FRAME_INTERVAL_MILLIS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                applyUpdates();
+            }
+        });
+        updateTimer.setRepeats(false);
+    }
+
+    //GETTER METHODS
+
+    public JPanel getClientPanel(){
+        return clientPanel;
+    }
+
+    public String getUserName(){
+        return usernameField.getText().trim();
+    }
+
+    public String getServerIPAddress(){
+        if (serverAddressField.getText().isBlank() || serverAddressField.getText().equals("Default: Localhost")){
+            return "localhost";
+        } else {
+            return serverAddressField.getText();
+        }
+    }
+
+    public JButton getConnectButton(){
+        return connectButton;
+    }
+
+    public JButton getBackButton(){
+        return backButton;
+    }
+
+    public String getMessage(){
+        return messageField.getText();
+    }
+
+    public JMenuBar getMenuBar(){
+        return menuBar;
+    }
+
+    public JButton getSendButton(){
+        return sendButton;
+    }
+
+    public JTextField getServerAddressField() {
+        return serverAddressField;
+    }
+
+    public void showChat() {
+        CardLayout cardLayout = (CardLayout) clientPanel.getLayout();
+        cardLayout.show(clientPanel,"chat");
+    }
+
+    public void showHome() {
+        CardLayout cardLayout = (CardLayout) clientPanel.getLayout();
+        cardLayout.show(clientPanel,"home");
+    }
+
+    /**
+     * Adds a message to the chat pane with the next update. Can be called from any thread, it never waits.
+     */
+    @Override
+    public void addMessage(String message) {
+        for (String line : message.split("\n")){
+            pendingRows.add(line);
+            //if the pane has fallen this far behind, the oldest waiting rows would be dropped right away anyway
+            if (pendingCount.incrementAndGet() > chatRows.getMaxRows() && pendingRows.poll() != null){
+                pendingCount.decrementAndGet();
+            }
+        }
+        scheduleUpdate();
+    }
+
+    /**
+     * Updates the list of online users with the next update. However many users join or leave in between, the list
+     * is redrawn once. Can be called from any thread.
+     * @param update the update that has just been applied to the model
+     */
+    @Override
+    public void updateUserList(PresenceUpdate update) {
+        usersChanged.set(true);
+        scheduleUpdate();
+    }
+
+    /**
+     * Shows in the chat who has joined or left a channel, or who is in it when we join it
+     * @param update the update that has just been applied to the model
+     */
+    @Override
+    public void updateChannelMembers(PresenceUpdate update) {
+        switch (update.getKind()){
+            case SNAPSHOT:
+                StringBuilder members = new StringBuilder();
+                for (String member : update.getOnlineUsers()){
+                    members.append(members.length() == 0 ? "" : ", ").append(member);
+                }
+                addMessage("#"+update.getChannel()+" members: "+members);
+                break;
+            case JOINED:
+                addMessage(update.getUsername()+" has joined #"+update.getChannel());
+                break;
+            case LEFT:
+                addMessage(update.getUsername()+" has left #"+update.getChannel());
+                break;
+        }
+    }
+
+    @Override
+    public void connectionLost() {
+        addMessage("Lost the connection to the server, reconnecting...");
+    }
+
+    @Override
+    public void reconnected() {
+        addMessage("Connected to the server again");
+    }
+
+    private void scheduleUpdate() {
+        if (updateScheduled.compareAndSet(false, true)) {
+            updateTimer.start();
+        }
+    }
+
+    //Applies everything that has come in since the last update, on the event dispatch thread
+    private void applyUpdates() {
+        //cleared first, so that anything that comes in from here on schedules the next update
+        updateScheduled.set(false);
+        if (usersChanged.getAndSet(false)) {
+            StringBuilder users = new StringBuilder();
+            for (String user : clientModel.getOnlineUsers()){
+                users.append(user);
+            }
+            onlineUsersArea.setText(users.toString());
+        }
+        ArrayList<String> rows = new ArrayList<>();
+        String row;
+        while ((row = pendingRows.poll()) != null) {
+            pendingCount.decrementAndGet();
+            rows.add(row);
+        }
+        if (rows.isEmpty()) {
+            return;
+        }
+        //only follow the chat if the user hasn't scrolled up to read something
+        int lastVisible = chatList.getLastVisibleIndex();
+        boolean following = lastVisible < 0 || lastVisible >= chatRows.getSize() - 1;
+        chatRows.addAll(rows);
+        if (following) {
+            chatList.ensureIndexIsVisible(chatRows.getSize() - 1);
+        }
+    }
+
+    public JTextField getMessageField(){
+        return messageField;
+    }
+
+    public JTextArea getOnlineUsersArea(){
+        return onlineUsersArea;
+    }
+
+    /**
+     * @param point a point in the online users area, e.g. where the user clicked
+     * @return the username on the line at that point, or null if there is no user there
+     */
+    public String getUserAt(Point point){
+        try {
+            int offset = onlineUsersArea.viewToModel2D(point);
+            int line = onlineUsersArea.getLineOfOffset(offset);
+            int start = onlineUsersArea.getLineStartOffset(line);
+            int end = onlineUsersArea.getLineEndOffset(line);
+            String user = onlineUsersArea.getText(start, end-start).strip();
+            return user.isEmpty() ? null : user;
+        } catch (BadLocationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts a direct message to the given user in the message field
+     */
+    public void addressUser(String username){
+        messageField.setText(ClientModel.DIRECT_MESSAGE_COMMAND+username+" ");
+        messageField.requestFocusInWindow();
+    }
+
+    public JMenuItem getSaveMenuItem(){
+        return saveMenuItem;
+    }
+
+    public void setErrorMessage(String errorMessage) {
+        this.errorMessage.setText(errorMessage);
+    }
+
+    public JMenuItem getHomeMenuItem() {
+        return homeMenuItem;
+    }
+}
@@ -0,0 +1,60 @@
+package client;
+
+/**
+ * How long the steps of a handshake took on the client, in nanoseconds
+ */
+public class HandshakeTimings {
+
+    private final long keyGenerationNanos;
+    private final long connectNanos;
+    private final long keyExchangeNanos;
+    private final long sessionKeyNanos;
+    private final boolean resumed;
+
+    HandshakeTimings(long keyGenerationNanos, long connectNanos, long keyExchangeNanos, long sessionKeyNanos, boolean resumed) {
+        this.keyGenerationNanos = keyGenerationNanos;
+        this.connectNanos = connectNanos;
+        this.keyExchangeNanos = keyExchangeNanos;
+        this.sessionKeyNanos = sessionKeyNanos;
+        this.resumed = resumed;
+    }
+
+    /**
+     * @return how long connecting waited for the key pair, close to 0 if it was generated in the background
+     */
+    public long getKeyGenerationNanos() {
+        return keyGenerationNanos;
+    }
+
+    /**
+     * @return how long opening the connection to the server took
+     */
+    public long getConnectNanos() {
+        return connectNanos;
+    }
+
+    /**
+     * @return how long it took from sending our public key (or ticket) until the wrapped session key arrived
+     */
+    public long getKeyExchangeNanos() {
+        return keyExchangeNanos;
+    }
+
+    /**
+     * @return how long unwrapping the session key took
+     */
+    public long getSessionKeyNanos() {
+        return sessionKeyNanos;
+    }
+
+    /**
+     * @return whether the session was resumed with a ticket, then there was no key pair to wait for
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    public long getTotalNanos() {
+        return keyGenerationNanos + connectNanos + keyExchangeNanos + sessionKeyNanos;
+    }
+}
@@ -0,0 +1,61 @@
+package client;
+
+import message.PresenceUpdate;
+
+import java.util.ArrayList;
+
+/**
+ * The users in one list of presence updates: all online users, or the members of one channel.
+ * A snapshot replaces the list, a delta only adds or removes one user. If a delta shows that an update has been missed,
+ * the list is left alone until a new snapshot arrives.
+ */
+class PresenceList {
+
+    //Every username ends with a line break, the way the view shows them
+    private ArrayList<String> users = new ArrayList<>();
+    //The sequence number of the last presence update applied to the list
+    private long sequence = -1;
+    private boolean resyncRequested = false;
+
+    /**
+     * @return true if the update has changed the list, false if it was already part of the list or an update has
+     * been missed. Check needsResync() in the latter case.
+     */
+    boolean apply(PresenceUpdate update) {
+        if (update.isSnapshot()){
+            ArrayList<String> users = new ArrayList<>(update.getOnlineUsers().size());
+            for (String user : update.getOnlineUsers()){
+                users.add(user+"\n");
+            }
+            this.users = users;
+            resyncRequested = false;
+        } else if (update.getSequence() <= sequence){
+            //already part of the snapshot we have
+            return false;
+        } else if (update.getSequence() != sequence+1){
+            return false;
+        } else if (update.getKind() == PresenceUpdate.Kind.JOINED){
+            users.add(update.getUsername()+"\n");
+        } else {
+            users.remove(update.getUsername()+"\n");
+        }
+        sequence = update.getSequence();
+        return true;
+    }
+
+    /**
+     * @return true if the update shows that an earlier one has been missed and no snapshot has been asked for yet,
+     * so that a snapshot is only asked for once per gap
+     */
+    boolean needsResync(PresenceUpdate update) {
+        if (resyncRequested || update.isSnapshot() || update.getSequence() <= sequence+1){
+            return false;
+        }
+        resyncRequested = true;
+        return true;
+    }
+
+    ArrayList<String> getUsers() {
+        return users;
+    }
+}
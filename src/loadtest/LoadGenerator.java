@@ -0,0 +1,337 @@
+package loadtest;
+
+import client.HandshakeTimings;
+import message.KeyExchange;
+import server.LatencyHistogram;
+import server.LatencySummary;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Puts a chat server under load from the same machine. It connects many simulated clients with the real client
+ * handshake, lets them send messages at a fixed rate, and reports how long the messages took to reach every client,
+ * how many were sent and delivered a second, how long the handshakes took and how much memory the server uses.
+ *
+ * Messages are sent at fixed times, whether or not the server keeps up, and every message carries the time it was
+ * meant to be sent rather than the time it went out. Otherwise a server that stalls would also stall the sender, and
+ * the messages that should have been sent during the stall, which would have waited longest, would never be measured.
+ *
+ * In soak mode the heap of the server is measured after a garbage collection at every report, and the test fails if
+ * it keeps growing. The first quarter of the run is left for the heap to settle, e.g. for the chat history to fill up.
+ *
+ * Example: java loadtest.LoadGenerator --clients=2000 --rate=200 --message-size=256 --duration=120
+ */
+public class LoadGenerator {
+
+    //The clients only read and parse frames, so they make do with a much smaller stack than the default
+    private static final long READER_STACK_SIZE = 256 * 1024;
+    //After this many lost connections the rest are only counted
+    private static final int MAX_REPORTED_LOSSES = 10;
+
+    private final LoadSettings settings;
+    private final List<SimulatedClient> clients = new ArrayList<>();
+    private final LatencyHistogram handshakes = new LatencyHistogram();
+    //The steps of the handshakes, see HandshakeTimings
+    private final LatencyHistogram keyGeneration = new LatencyHistogram();
+    private final LatencyHistogram connecting = new LatencyHistogram();
+    private final LatencyHistogram keyExchange = new LatencyHistogram();
+    private final LatencyHistogram sessionKey = new LatencyHistogram();
+    //The latencies since the last report, and since the warmup
+    private final LatencyHistogram intervalLatency = new LatencyHistogram();
+    private final LatencyHistogram totalLatency = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final AtomicInteger lost = new AtomicInteger();
+    //The clients that connected again after losing their connection, and how long they were gone
+    private final AtomicInteger reconnected = new AtomicInteger();
+    private final AtomicInteger resumed = new AtomicInteger();
+    private final LatencyHistogram reconnectTime = new LatencyHistogram();
+    private volatile boolean sending = true;
+    //The heap of the server after every report since the warmup, in soak mode
+    private final List<Long> heapSamples = new ArrayList<>();
+
+    public LoadGenerator(LoadSettings settings) {
+        this.settings = settings;
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        System.setProperty("java.awt.headless", "true");
+        LoadSettings settings;
+        try {
+            settings = LoadSettings.fromArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        System.exit(new LoadGenerator(settings).run());
+    }
+
+    /**
+     * Runs the test and reports on standard output
+     * @return 0 if the test has run, 1 if the heap of the server kept growing in soak mode, 2 if no client could connect
+     */
+    public int run() throws InterruptedException, IOException {
+        ServerProbe serverProbe = ServerProbe.find(settings.getServerPid());
+        if (serverProbe == null) {
+            System.out.println("No server process found on this machine, its memory is not measured (see --server-pid)");
+        }
+        connectClients();
+        if (clients.isEmpty()) {
+            System.err.println("No client could connect to " + settings.getServerAddress());
+            return 2;
+        }
+        Thread sender = null;
+        if (settings.getRate() > 0) {
+            sender = startSender();
+        }
+
+        long start = System.nanoTime();
+        long end = start + settings.getDurationSeconds() * 1000000000L;
+        long warmupEnd = start + settings.getWarmupSeconds() * 1000000000L;
+        long interval = settings.getReportIntervalSeconds() * 1000000000L;
+        long nextReport = start + interval;
+        boolean warm = settings.getWarmupSeconds() == 0;
+        //the counters when the last report was made and when the warmup ended
+        long lastReport = start;
+        long lastSent = 0;
+        long lastDelivered = 0;
+        long warmSent = 0;
+        long warmDelivered = 0;
+        long warmStart = start;
+        while (true) {
+            long now = System.nanoTime();
+            long wakeUp = Math.min(Math.min(nextReport, end), warm ? Long.MAX_VALUE : warmupEnd);
+            if (wakeUp > now) {
+                Thread.sleep((wakeUp - now) / 1000000, (int) ((wakeUp - now) % 1000000));
+            }
+            now = System.nanoTime();
+            if (!warm && now >= warmupEnd) {
+                warm = true;
+                totalLatency.reset();
+                warmSent = sent.sum();
+                warmDelivered = delivered.sum();
+                warmStart = now;
+            }
+            if (now >= nextReport || now >= end) {
+                long sentNow = sent.sum();
+                long deliveredNow = delivered.sum();
+                double seconds = (now - lastReport) / 1e9;
+                System.out.println(String.format("[%5ds] %d clients, sent %.0f/s, delivered %.0f/s, latency %s%s",
+                        (now - start) / 1000000000L, clients.size() - lost.get() + reconnected.get(), (sentNow - lastSent) / seconds,
+                        (deliveredNow - lastDelivered) / seconds, intervalLatency.summarize(),
+                        describeServer(serverProbe, warm)));
+                intervalLatency.reset();
+                lastReport = now;
+                lastSent = sentNow;
+                lastDelivered = deliveredNow;
+                nextReport += interval;
+            }
+            if (now >= end) {
+                break;
+            }
+        }
+
+        sending = false;
+        if (sender != null) {
+            sender.join();
+        }
+        double seconds = (System.nanoTime() - warmStart) / 1e9;
+        System.out.println("Results after the warmup:");
+        System.out.println(String.format("  sent %d (%.0f/s), delivered %d (%.0f/s), lost connections %d",
+                sent.sum() - warmSent, (sent.sum() - warmSent) / seconds, delivered.sum() - warmDelivered,
+                (delivered.sum() - warmDelivered) / seconds, lost.get()));
+        if (lost.get() > 0) {
+            System.out.println(String.format("  reconnected %d (%d with a ticket), after %s", reconnected.get(),
+                    resumed.get(), reconnectTime.summarize()));
+        }
+        System.out.println("  delivery latency: " + totalLatency.summarize());
+        printHandshakes();
+        int result = 0;
+        if (settings.getMode() == LoadSettings.Mode.SOAK) {
+            result = checkHeap();
+        }
+        for (SimulatedClient client : clients) {
+            client.close();
+        }
+        if (serverProbe != null) {
+            serverProbe.close();
+        }
+        return result;
+    }
+
+    //Connects the clients one after the other, so that every handshake is timed on its own
+    private void connectClients() {
+        //An RSA key pair takes so long to generate that the clients share one, an X25519 one is cheap enough to
+        //generate for every client like a real client does
+        KeyPair keyPair = settings.getKeyExchange() == KeyExchange.RSA ? KeyExchange.RSA.generateKeyPair() : null;
+        long start = System.nanoTime();
+        int failed = 0;
+        for (int i = 0; i < settings.getClients(); i++) {
+            SimulatedClient client = new SimulatedClient(settings.getNamePrefix() + i, settings.getKeyExchange(), keyPair,
+                    settings.isReconnect(), this);
+            try {
+                HandshakeTimings timings = client.connect(settings.getServerAddress());
+                handshakes.record(timings.getTotalNanos());
+                keyGeneration.record(timings.getKeyGenerationNanos());
+                connecting.record(timings.getConnectNanos());
+                keyExchange.record(timings.getKeyExchangeNanos());
+                sessionKey.record(timings.getSessionKeyNanos());
+            } catch (IOException | GeneralSecurityException e) {
+                if (++failed <= MAX_REPORTED_LOSSES) {
+                    System.err.println(client.getUsername() + " could not connect: " + e);
+                }
+                continue;
+            }
+            Thread reader = new Thread(null, client, "reader-" + client.getUsername(), READER_STACK_SIZE);
+            reader.setDaemon(true);
+            reader.start();
+            clients.add(client);
+        }
+        System.out.println(String.format("Connected %d clients in %.1fs (%d failed), %s key exchange", clients.size(),
+                (System.nanoTime() - start) / 1e9, failed, settings.getKeyExchange()));
+        printHandshakes();
+    }
+
+    private void printHandshakes() {
+        System.out.println("  handshake: " + handshakes.summarize());
+        System.out.println("    key generation: " + keyGeneration.summarize());
+        System.out.println("    connect: " + connecting.summarize());
+        System.out.println("    key exchange: " + keyExchange.summarize());
+        System.out.println("    session key: " + sessionKey.summarize());
+    }
+
+    //Sends the messages at their times, taking turns between the clients
+    private Thread startSender() {
+        final long interval = (long) (1e9 / settings.getRate());
+        char[] padding = new char[Math.max(0, settings.getMessageSize() - SimulatedClient.overhead())];
+        Arrays.fill(padding, 'x');
+        final String paddingText = new String(padding);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<SimulatedClient> senders = new ArrayList<>(clients);
+                long sendAt = System.nanoTime();
+                int next = 0;
+                while (sending && !senders.isEmpty()) {
+                    long wait = sendAt - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                        continue;
+                    }
+                    //a sender that has fallen behind catches up with messages that are already late
+                    next = next % senders.size();
+                    SimulatedClient client = senders.get(next);
+                    try {
+                        client.send(sendAt, paddingText);
+                        sent.increment();
+                        next++;
+                    } catch (IOException | GeneralSecurityException e) {
+                        //a client that connects again stays in turn, its messages fail until it is back
+                        if (!settings.isReconnect()) {
+                            senders.remove(next);
+                        } else {
+                            next++;
+                        }
+                        client.connectionLost(e);
+                    }
+                    sendAt += interval;
+                }
+            }
+        }, "sender");
+        thread.start();
+        return thread;
+    }
+
+    //The memory of the server, and in soak mode its heap after the warmup
+    private String describeServer(ServerProbe serverProbe, boolean warm) {
+        if (serverProbe == null) {
+            return "";
+        }
+        StringBuilder description = new StringBuilder(", server rss ").append(megabytes(serverProbe.getRssBytes()));
+        if (settings.getMode() == LoadSettings.Mode.SOAK) {
+            try {
+                long heap = serverProbe.getHeapAfterGc();
+                if (warm) {
+                    heapSamples.add(heap);
+                }
+                description.append(", heap after gc ").append(megabytes(heap));
+            } catch (IOException e) {
+                description.append(", heap unknown (").append(e.getMessage()).append(')');
+            }
+        }
+        return description.toString();
+    }
+
+    /**
+     * Compares the heap of the server at the end of the run with the heap once it had settled
+     * @return 0 if it stayed within the allowed growth, 1 if it kept growing
+     */
+    private int checkHeap() {
+        if (heapSamples.size() < 4) {
+            System.out.println("  heap: too few samples to tell whether it is bounded, run longer or report more often");
+            return 0;
+        }
+        //the second quarter of the run, after the heap has settled, against the last quarter
+        int quarter = heapSamples.size() / 4;
+        long settled = average(heapSamples.subList(quarter, 2 * quarter));
+        long last = average(heapSamples.subList(heapSamples.size() - quarter, heapSamples.size()));
+        double growth = settled == 0 ? 0 : (last - settled) * 100.0 / settled;
+        boolean bounded = growth <= settings.getHeapGrowthPercent();
+        System.out.println(String.format("  heap after gc: settled at %s, ended at %s (%+.1f%%), %s", megabytes(settled),
+                megabytes(last), growth, bounded ? "bounded" : "GROWING, more than " + settings.getHeapGrowthPercent() + "%"));
+        return bounded ? 0 : 1;
+    }
+
+    private static long average(List<Long> values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum / values.size();
+    }
+
+    private static String megabytes(long bytes) {
+        return bytes < 0 ? "unknown" : String.format("%.1f MiB", bytes / (1024.0 * 1024.0));
+    }
+
+    /**
+     * Called by the clients for every message of the test that they read
+     * @param nanos how long ago the message was meant to be sent
+     */
+    void delivered(long nanos) {
+        intervalLatency.record(nanos);
+        totalLatency.record(nanos);
+        delivered.increment();
+    }
+
+    /**
+     * Called when a client has connected again after losing its connection
+     * @param nanos how long the client was without a connection
+     * @param timings how long the steps of its new handshake took
+     */
+    void reconnected(long nanos, HandshakeTimings timings) {
+        reconnected.incrementAndGet();
+        if (timings.isResumed()) {
+            resumed.incrementAndGet();
+        }
+        reconnectTime.record(nanos);
+    }
+
+    /**
+     * Called when a client has lost its connection to the server
+     */
+    void connectionLost(String username, Exception e) {
+        if (lost.incrementAndGet() <= MAX_REPORTED_LOSSES) {
+            System.err.println(username + " lost its connection: " + e);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package loadtest;
+
+import message.KeyExchange;
+
+/**
+ * The settings the load generator is started with, from command line arguments of the form --name=value.
+ */
+public class LoadSettings {
+
+    /**
+     * A load test runs for a fixed time and reports latencies and throughput. A soak test also checks that the heap of
+     * the server stays the same size, and runs for hours by default.
+     */
+    public enum Mode {
+        LOAD, SOAK
+    }
+
+    private String serverAddress = "localhost:1234";
+    private int clients = 100;
+    private double rate = 100;
+    private int messageSize = 64;
+    private Mode mode = Mode.LOAD;
+    //-1 until set, so the mode can pick the default
+    private long durationSeconds = -1;
+    private long reportIntervalSeconds = -1;
+    private long warmupSeconds = 5;
+    private KeyExchange keyExchange = KeyExchange.X25519;
+    private boolean reconnect = true;
+    private String namePrefix = "load";
+    //0 looks for a server running on this machine
+    private long serverPid = 0;
+    private int heapGrowthPercent = 20;
+
+    /**
+     * Supported arguments: --server (host:port), --clients, --rate (messages a second from all clients together),
+     * --message-size (characters), --mode (load or soak), --duration and --report-interval and --warmup (seconds),
+     * --key-exchange (x25519 or rsa), --reconnect (true or false), --name-prefix,
+     * --server-pid and --heap-growth (percent)
+     * @param args the command line arguments
+     * @return the settings, with defaults for every argument that was not given
+     */
+    public static LoadSettings fromArguments(String[] args) {
+        LoadSettings settings = new LoadSettings();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected an argument of the form --name=value but got: " + arg);
+            }
+            settings.set(arg.substring(2, separator), arg.substring(separator + 1).trim());
+        }
+        return settings;
+    }
+
+    /**
+     * Sets one setting by name
+     * @param name the name of the setting, e.g. "clients"
+     * @param value the value of the setting as text
+     */
+    public void set(String name, String value) {
+        switch (name) {
+            case "server":
+                serverAddress = value;
+                break;
+            case "clients":
+                setClients(Integer.parseInt(value));
+                break;
+            case "rate":
+                setRate(Double.parseDouble(value));
+                break;
+            case "message-size":
+                setMessageSize(Integer.parseInt(value));
+                break;
+            case "mode":
+                mode = Mode.valueOf(value.toUpperCase());
+                break;
+            case "duration":
+                setDurationSeconds(Long.parseLong(value));
+                break;
+            case "report-interval":
+                setReportIntervalSeconds(Long.parseLong(value));
+                break;
+            case "warmup":
+                setWarmupSeconds(Long.parseLong(value));
+                break;
+            case "key-exchange":
+                keyExchange = KeyExchange.fromString(value);
+                break;
+            case "reconnect":
+                reconnect = Boolean.parseBoolean(value);
+                break;
+            case "name-prefix":
+                namePrefix = value;
+                break;
+            case "server-pid":
+                serverPid = Long.parseLong(value);
+                break;
+            case "heap-growth":
+                setHeapGrowthPercent(Integer.parseInt(value));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown load generator setting: " + name);
+        }
+    }
+
+    /**
+     * @return the address of the server, e.g. localhost:1234
+     */
+    public String getServerAddress() {
+        return serverAddress;
+    }
+
+    /**
+     * @return how many simulated clients connect to the server
+     */
+    public int getClients() {
+        return clients;
+    }
+
+    public void setClients(int clients) {
+        if (clients < 1) {
+            throw new IllegalArgumentException("At least 1 client is needed");
+        }
+        this.clients = clients;
+    }
+
+    /**
+     * @return how many messages all clients together send a second, every message goes to every client.
+     * 0 only connects the clients.
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    public void setRate(double rate) {
+        if (rate < 0) {
+            throw new IllegalArgumentException("The rate can't be negative");
+        }
+        this.rate = rate;
+    }
+
+    /**
+     * @return how many characters every message has, including the time it was sent
+     */
+    public int getMessageSize() {
+        return messageSize;
+    }
+
+    public void setMessageSize(int messageSize) {
+        if (messageSize < 1) {
+            throw new IllegalArgumentException("A message must have at least 1 character");
+        }
+        this.messageSize = messageSize;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return how long the clients send messages, 1 minute for a load test and 4 hours for a soak test unless set
+     */
+    public long getDurationSeconds() {
+        if (durationSeconds >= 0) {
+            return durationSeconds;
+        }
+        return mode == Mode.SOAK ? 4 * 60 * 60 : 60;
+    }
+
+    public void setDurationSeconds(long durationSeconds) {
+        if (durationSeconds < 1) {
+            throw new IllegalArgumentException("The test must run for at least 1 second");
+        }
+        this.durationSeconds = durationSeconds;
+    }
+
+    /**
+     * @return how often the results so far are reported, every 10 seconds for a load test and every minute for a soak
+     * test unless set
+     */
+    public long getReportIntervalSeconds() {
+        if (reportIntervalSeconds >= 0) {
+            return reportIntervalSeconds;
+        }
+        return mode == Mode.SOAK ? 60 : 10;
+    }
+
+    public void setReportIntervalSeconds(long reportIntervalSeconds) {
+        if (reportIntervalSeconds < 1) {
+            throw new IllegalArgumentException("The report interval must be at least 1 second");
+        }
+        this.reportIntervalSeconds = reportIntervalSeconds;
+    }
+
+    /**
+     * @return how long the clients send messages before the totals start counting, so that the JIT compiler and the
+     * caches of the server have settled
+     */
+    public long getWarmupSeconds() {
+        return warmupSeconds;
+    }
+
+    public void setWarmupSeconds(long warmupSeconds) {
+        if (warmupSeconds < 0) {
+            throw new IllegalArgumentException("The warmup can't be negative");
+        }
+        this.warmupSeconds = warmupSeconds;
+    }
+
+    /**
+     * @return how the clients exchange the session key with the server
+     */
+    public KeyExchange getKeyExchange() {
+        return keyExchange;
+    }
+
+    /**
+     * @return whether a client connects again when its connection is lost
+     */
+    public boolean isReconnect() {
+        return reconnect;
+    }
+
+    /**
+     * @return what the usernames of the clients start with, they are numbered after it
+     */
+    public String getNamePrefix() {
+        return namePrefix;
+    }
+
+    /**
+     * @return the process id of the server, or 0 to look for a server running on this machine
+     */
+    public long getServerPid() {
+        return serverPid;
+    }
+
+    /**
+     * @return by how many percent the heap of the server may grow during a soak test before the test fails
+     */
+    public int getHeapGrowthPercent() {
+        return heapGrowthPercent;
+    }
+
+    public void setHeapGrowthPercent(int heapGrowthPercent) {
+        if (heapGrowthPercent < 0) {
+            throw new IllegalArgumentException("The heap growth can't be negative");
+        }
+        this.heapGrowthPercent = heapGrowthPercent;
+    }
+}
@@ -0,0 +1,117 @@
+package loadtest;
+
+import com.sun.tools.attach.AttachNotSupportedException;
+import com.sun.tools.attach.VirtualMachine;
+
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+
+/**
+ * Looks at the server process from the outside while the load generator runs on the same machine: how much memory
+ * the operating system has given it, from /proc, and how large its heap is, over JMX. The server doesn't need to be
+ * started with any JMX options, the probe attaches to it and starts its local management agent.
+ */
+class ServerProbe implements Closeable {
+
+    private final long pid;
+    //Connected the first time the heap is asked for
+    private JMXConnector connector;
+    private MemoryMXBean memory;
+
+    private ServerProbe(long pid) {
+        this.pid = pid;
+    }
+
+    /**
+     * @param pid the process id of the server, or 0 to look for a chat server running on this machine
+     * @return the probe, or null if no server was found
+     */
+    static ServerProbe find(long pid) {
+        if (pid > 0) {
+            return new ServerProbe(pid);
+        }
+        Iterator<ProcessHandle> processes = ProcessHandle.allProcesses().iterator();
+        while (processes.hasNext()) {
+            ProcessHandle process = processes.next();
+            if (process.pid() == ProcessHandle.current().pid()) {
+                continue;
+            }
+            //only the JVM itself, not e.g. a shell script that started it
+            boolean java = process.info().command().orElse("").endsWith("java");
+            String commandLine = process.info().commandLine().orElse("");
+            if (java && (commandLine.contains("server.HeadlessServer") || commandLine.contains("server.Server"))) {
+                return new ServerProbe(process.pid());
+            }
+        }
+        return null;
+    }
+
+    long getPid() {
+        return pid;
+    }
+
+    /**
+     * @return the resident set size of the server, how much memory it really uses, or -1 if it can't be read
+     */
+    long getRssBytes() {
+        Path status = Paths.get("/proc", String.valueOf(pid), "status");
+        try {
+            for (String line : Files.readAllLines(status, StandardCharsets.UTF_8)) {
+                //e.g. "VmRSS:	  123456 kB"
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.substring("VmRSS:".length()).replace("kB", "").trim()) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            //not Linux, or the server has stopped
+        }
+        return -1;
+    }
+
+    /**
+     * Makes the server collect its garbage and then measures its heap, so that only what is still in use counts.
+     * The collection pauses the server, so it shows up in the latencies.
+     * @return how many bytes of the heap are in use
+     */
+    long getHeapAfterGc() throws IOException {
+        if (memory == null) {
+            connect();
+        }
+        memory.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private void connect() throws IOException {
+        String address;
+        try {
+            VirtualMachine virtualMachine = VirtualMachine.attach(String.valueOf(pid));
+            try {
+                address = virtualMachine.startLocalManagementAgent();
+            } finally {
+                virtualMachine.detach();
+            }
+        } catch (AttachNotSupportedException e) {
+            throw new IOException("Can't attach to the server process " + pid, e);
+        }
+        connector = JMXConnectorFactory.connect(new JMXServiceURL(address));
+        memory = ManagementFactory.newPlatformMXBeanProxy(connector.getMBeanServerConnection(),
+                ManagementFactory.MEMORY_MXBEAN_NAME, MemoryMXBean.class);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (connector != null) {
+            connector.close();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package loadtest;
+
+import client.ClientModel;
+import client.ClientObserver;
+import client.HandshakeTimings;
+import message.KeyExchange;
+import message.PresenceUpdate;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One client of the load generator. It connects with the same handshake as the chat client and sends and reads the
+ * same messages, but shows nothing: it only keeps track of how long its messages took to arrive.
+ *
+ * A message it sends carries the time it was meant to be sent, e.g. "@t=123456789 xxxx", and every client that
+ * reads one records how long ago that was. All clients run in the same program, so they share one clock.
+ */
+class SimulatedClient implements ClientObserver, Runnable {
+
+    private static final String SENT_AT = "@t=";
+
+    private final ClientModel clientModel;
+    private final String username;
+    private final LoadGenerator loadGenerator;
+    //Set before the connection is closed on purpose, so that the reading thread doesn't report it as lost
+    private volatile boolean stopping = false;
+    //Both the sender and the reading thread may notice a lost connection, it is only counted once
+    private final AtomicBoolean lost = new AtomicBoolean();
+    //When the connection was lost, from System.nanoTime()
+    private volatile long lostAt;
+    private final boolean reconnect;
+
+    /**
+     * @param keyPair shared by all clients for RSA, since generating one for every client takes too long.
+     *                Null to let the client generate its own when it connects, as a real client does.
+     * @param reconnect whether the client connects again when its connection is lost, as a real client does
+     */
+    SimulatedClient(String username, KeyExchange keyExchange, KeyPair keyPair, boolean reconnect, LoadGenerator loadGenerator) {
+        this.username = username;
+        this.loadGenerator = loadGenerator;
+        this.reconnect = reconnect;
+        clientModel = keyPair != null ? new ClientModel(keyPair) : new ClientModel();
+        clientModel.setKeyExchange(keyExchange);
+        clientModel.setKeepChatLog(false);
+        clientModel.setTrackPresence(false);
+        clientModel.addObserver(this);
+    }
+
+    /**
+     * Connects and does the handshake
+     * @return how long the steps of the handshake took
+     */
+    HandshakeTimings connect(String serverAddress) throws IOException, GeneralSecurityException {
+        clientModel.connect(username, serverAddress);
+        return clientModel.getHandshakeTimings();
+    }
+
+    /**
+     * Sends a message to everybody
+     * @param sentAt the time the message was meant to be sent, from System.nanoTime()
+     * @param padding what makes the message as long as it should be
+     */
+    void send(long sentAt, String padding) throws IOException, GeneralSecurityException {
+        clientModel.sendMessage(SENT_AT + sentAt + " " + padding);
+    }
+
+    /**
+     * @return how many characters a message has besides its padding, at most
+     */
+    static int overhead() {
+        return SENT_AT.length() + String.valueOf(Long.MIN_VALUE).length() + 1;
+    }
+
+    /**
+     * Reads from the server until the connection is closed. A lost connection is connected again, with the ticket
+     * from the server, unless the client was told not to.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!stopping) {
+                try {
+                    clientModel.readMessage();
+                } catch (IOException e) {
+                    if (stopping) {
+                        return;
+                    }
+                    connectionLost(e);
+                    if (!reconnect || !clientModel.reconnect()) {
+                        return;
+                    }
+                    lost.set(false);
+                    loadGenerator.reconnected(System.nanoTime() - lostAt, clientModel.getHandshakeTimings());
+                }
+            }
+        } catch (GeneralSecurityException e) {
+            connectionLost(e);
+        }
+    }
+
+    /**
+     * Tells the load generator that the connection is gone, unless it has already been told
+     */
+    void connectionLost(Exception e) {
+        if (lost.compareAndSet(false, true)) {
+            lostAt = System.nanoTime();
+            loadGenerator.connectionLost(username, e);
+        }
+    }
+
+    @Override
+    public void addMessage(String message) {
+        //e.g. "<12:00:00> load7: @t=123456789 xxxx"
+        int start = message.indexOf(SENT_AT);
+        if (start < 0) {
+            //a server notice, or somebody else chatting on the same server
+            return;
+        }
+        start += SENT_AT.length();
+        int end = message.indexOf(' ', start);
+        try {
+            long sentAt = Long.parseLong(message.substring(start, end < 0 ? message.length() : end).trim());
+            loadGenerator.delivered(System.nanoTime() - sentAt);
+        } catch (NumberFormatException e) {
+            //somebody typed "@t=" themselves
+        }
+    }
+
+    @Override
+    public void updateUserList(PresenceUpdate update) {
+    }
+
+    @Override
+    public void updateChannelMembers(PresenceUpdate update) {
+    }
+
+    @Override
+    public void connectionLost() {
+    }
+
+    @Override
+    public void reconnected() {
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    void close() {
+        stopping = true;
+        clientModel.disconnect();
+    }
+}
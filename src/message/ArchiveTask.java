@@ -0,0 +1,88 @@
+package message;
+
+import javax.swing.*;
+import java.awt.*;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Reads or writes a chat archive on a background thread, so that the window keeps responding however large the
+ * archive is. A progress dialog shows up if it takes longer than a moment, and it can be cancelled from there.
+ * @param <T> what the task produces, e.g. the archive that has been opened
+ */
+public abstract class ArchiveTask<T> extends SwingWorker<T, Void> implements ChatArchive.ProgressListener {
+
+    private final ProgressMonitor progressMonitor;
+
+    /**
+     * @param parent the window the progress dialog belongs to, may be null
+     * @param title what the task does, e.g. "Saving the chat"
+     * @param file the file it is done with
+     */
+    protected ArchiveTask(Component parent, String title, File file) {
+        progressMonitor = new ProgressMonitor(parent, title, file.getName(), 0, 100);
+        addPropertyChangeListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                if ("progress".equals(evt.getPropertyName())) {
+                    progressMonitor.setProgress((Integer) evt.getNewValue());
+                    if (progressMonitor.isCanceled()) {
+                        cancel(true);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Does the work, on a background thread
+     */
+    protected abstract T work() throws IOException;
+
+    /**
+     * Called on the event dispatch thread once the work is done
+     */
+    protected void succeeded(T result) {
+    }
+
+    @Override
+    protected T doInBackground() throws IOException {
+        return work();
+    }
+
+    @Override
+    public void progress(long done, long total) {
+        setProgress(total <= 0 ? 100 : (int) Math.min(100, done * 100 / total));
+    }
+
+    @Override
+    protected void done() {
+        progressMonitor.close();
+        try {
+            succeeded(get());
+        } catch (CancellationException e) {
+            //cancelled from the progress dialog
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            JOptionPane.showMessageDialog(null, e.getCause().getMessage(), "Chat archive", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Creates a task that saves a whole chat log, in the format that the file's extension asks for
+     */
+    public static ArchiveTask<Long> export(Component parent, final MessageLog log, final File file) {
+        return new ArchiveTask<Long>(parent, "Saving the chat", file) {
+            @Override
+            protected Long work() throws IOException {
+                return ChatArchive.export(log, file, ChatArchive.Format.forFile(file), this);
+            }
+        };
+    }
+}
@@ -0,0 +1,49 @@
+package message;
+
+import java.io.Serializable;
+
+/**
+ * A chat message for the members of one channel. The server only delivers it to the clients that have joined
+ * the channel, instead of broadcasting it to everybody.
+ */
+public class ChannelMessage implements Serializable {
+
+    private final String sender;
+    private final String channel;
+    private final Message message;
+
+    /**
+     * A message as a client sends it. The server fills in the sender, since it knows who the client is.
+     * @param channel the name of the channel, without the leading '#'
+     * @param message the message, encrypted with the session key
+     */
+    public ChannelMessage(String channel, Message message) {
+        this(null, channel, message);
+    }
+
+    /**
+     * @param sender the user the message is from, as the server has authenticated it
+     * @param channel the name of the channel, without the leading '#'
+     * @param message the message, encrypted with the session key
+     */
+    public ChannelMessage(String sender, String channel, Message message) {
+        this.sender = sender;
+        this.channel = channel;
+        this.message = message;
+    }
+
+    /**
+     * @return the user the message is from, or null if a client sent it
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+}
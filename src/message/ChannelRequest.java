@@ -0,0 +1,50 @@
+package message;
+
+import java.io.Serializable;
+
+/**
+ * Sent by a client to join or leave a channel, or to get the list of a channel's members again after it has missed
+ * a presence update for that channel.
+ */
+public class ChannelRequest implements Serializable {
+
+    public enum Kind {
+        JOIN,
+        LEAVE,
+        RESYNC
+    }
+
+    //The longest channel name the server accepts
+    public static final int MAX_CHANNEL_NAME_LENGTH = 64;
+
+    private final Kind kind;
+    private final String channel;
+
+    public ChannelRequest(Kind kind, String channel) {
+        this.kind = kind;
+        this.channel = channel;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    /**
+     * A channel name is 1 to MAX_CHANNEL_NAME_LENGTH characters long and has no whitespace in it
+     */
+    public static boolean isValidChannelName(String channel) {
+        if (channel == null || channel.isEmpty() || channel.length() > MAX_CHANNEL_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < channel.length(); i++) {
+            if (Character.isWhitespace(channel.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
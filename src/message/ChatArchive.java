@@ -0,0 +1,454 @@
+package message;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A saved chat log that is read straight from a memory-mapped file, a page at a time, so that opening even a very
+ * large archive neither reads all of it nor keeps it on the heap.
+ *
+ * Two formats can be read. A text file has one message per line, the way chats have always been saved. An archive
+ * stores the messages in blocks of about 64 KiB, every message as its length followed by its UTF-8 bytes, and the
+ * blocks can be compressed:
+ * <pre>
+ *     "CHATARC1" | byte flags
+ *     block: int stored length | int length | the messages, deflated if the archive is compressed
+ *     ...
+ *     index: long offset of the block | long index of its first message, for every block
+ *     long offset of the index | int number of blocks | long number of messages | "CHATARC1"
+ * </pre>
+ * The index at the end lets a page be found with a binary search, so only the blocks of that page are decoded.
+ * For a text file the index is built when it is opened, it holds where every 64th line starts.
+ */
+public abstract class ChatArchive implements MessageLog {
+
+    public enum Format {
+        TEXT,
+        ARCHIVE,
+        COMPRESSED_ARCHIVE;
+
+        /**
+         * @return the format a file is saved in, chosen by its extension: .txt for text, .chatz for a compressed
+         * archive, and an archive for anything else
+         */
+        public static Format forFile(File file) {
+            String name = file.getName().toLowerCase();
+            if (name.endsWith(".txt")) {
+                return TEXT;
+            }
+            return name.endsWith(".chatz") ? COMPRESSED_ARCHIVE : ARCHIVE;
+        }
+    }
+
+    /**
+     * Told how far reading or writing an archive has got
+     */
+    public interface ProgressListener {
+        void progress(long done, long total);
+    }
+
+    private static final byte[] MAGIC = "CHATARC1".getBytes(StandardCharsets.US_ASCII);
+    private static final int FLAG_COMPRESSED = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 1;
+    private static final int FOOTER_SIZE = 8 + 4 + 8 + MAGIC.length;
+    private static final int BLOCK_SIZE = 64 * 1024;
+    //A text file's index holds where every this many lines start
+    private static final int TEXT_INDEX_INTERVAL = 64;
+    //How many messages are exported per page, and how many bytes of a text file are scanned between progress reports
+    private static final int EXPORT_PAGE_SIZE = 1000;
+    private static final int SCAN_PROGRESS_INTERVAL = 1024 * 1024;
+
+    /**
+     * @return the messages from first to first+maxCount-1, every message ends with a line break
+     */
+    @Override
+    public abstract List<String> getPage(long first, int maxCount) throws IOException;
+
+    /**
+     * Reads the page that ends right before the given message, e.g. size() for the most recent messages
+     */
+    public List<String> getPageBefore(long before, int maxCount) throws IOException {
+        long first = Math.max(0, before - maxCount);
+        return getPage(first, (int) (before - first));
+    }
+
+    /**
+     * Opens a text file or archive. An archive only has its index read, a text file is scanned once to build one.
+     * @param listener told how many bytes of a text file have been scanned, may be null
+     */
+    public static ChatArchive open(File file, ProgressListener listener) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Chat archives larger than 2 GiB are not supported: " + file);
+            }
+            //the mapping stays valid after the channel is closed
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (startsWithMagic(mapped)) {
+            return new BlockArchive(mapped);
+        }
+        return new TextArchive(mapped, listener);
+    }
+
+    private static boolean startsWithMagic(ByteBuffer buffer) {
+        if (buffer.limit() < HEADER_SIZE + FOOTER_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes a whole chat log to a file, streaming it a page at a time
+     * @param format how the file is written, see Format.forFile()
+     * @param listener told how many messages have been written, may be null
+     * @return how many messages were written
+     * @throws InterruptedIOException if the thread was interrupted, the file is then incomplete
+     */
+    public static long export(MessageLog log, File file, Format format, ProgressListener listener) throws IOException {
+        long total = log.size();
+        long written = 0;
+        try (Writer writer = new Writer(new FileOutputStream(file), format)) {
+            while (written < total) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Saving the chat was cancelled");
+                }
+                List<String> page = log.getPage(written, (int) Math.min(EXPORT_PAGE_SIZE, total - written));
+                if (page.isEmpty()) {
+                    //the log has been cleared in the meantime
+                    break;
+                }
+                for (String message : page) {
+                    writer.add(message);
+                }
+                written += page.size();
+                if (listener != null) {
+                    listener.progress(written, total);
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Writes messages to a text file or an archive, one at a time, without keeping them around
+     */
+    public static class Writer implements Closeable {
+
+        private final DataOutputStream outputStream;
+        private final Format format;
+        //The messages of the block that is being filled, only used for archives
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE + 1024);
+        private final DataOutputStream blockOutputStream = new DataOutputStream(block);
+        private final Deflater deflater;
+        private byte[] deflated = new byte[BLOCK_SIZE];
+        private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+        private final DataOutputStream indexOutputStream = new DataOutputStream(index);
+        private int blocks = 0;
+        private long messages = 0;
+        private long blockStart = 0;
+
+        public Writer(OutputStream outputStream, Format format) throws IOException {
+            this.outputStream = new DataOutputStream(new BufferedOutputStream(outputStream, BLOCK_SIZE));
+            this.format = format;
+            this.deflater = format == Format.COMPRESSED_ARCHIVE ? new Deflater(Deflater.BEST_SPEED) : null;
+            if (format != Format.TEXT) {
+                this.outputStream.write(MAGIC);
+                this.outputStream.writeByte(format == Format.COMPRESSED_ARCHIVE ? FLAG_COMPRESSED : 0);
+            }
+        }
+
+        /**
+         * @param message a message, as it is shown in the chat, ending with a line break
+         */
+        public void add(String message) throws IOException {
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+            if (format == Format.TEXT) {
+                outputStream.write(bytes);
+                messages++;
+                return;
+            }
+            if (block.size() == 0) {
+                blockStart = messages;
+            }
+            blockOutputStream.writeInt(bytes.length);
+            blockOutputStream.write(bytes);
+            messages++;
+            if (block.size() >= BLOCK_SIZE) {
+                writeBlock();
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            //DataOutputStream counts the bytes written in an int, which is also why archives are limited to 2 GiB
+            if (outputStream.size() == Integer.MAX_VALUE) {
+                throw new IOException("Chat archives larger than 2 GiB are not supported");
+            }
+            indexOutputStream.writeLong(outputStream.size());
+            indexOutputStream.writeLong(blockStart);
+            byte[] raw = block.toByteArray();
+            if (deflater != null) {
+                deflater.reset();
+                deflater.setInput(raw);
+                deflater.finish();
+                int length = 0;
+                while (!deflater.finished()) {
+                    if (length == deflated.length) {
+                        deflated = Arrays.copyOf(deflated, deflated.length * 2);
+                    }
+                    length += deflater.deflate(deflated, length, deflated.length - length);
+                }
+                outputStream.writeInt(length);
+                outputStream.writeInt(raw.length);
+                outputStream.write(deflated, 0, length);
+            } else {
+                outputStream.writeInt(raw.length);
+                outputStream.writeInt(raw.length);
+                outputStream.write(raw);
+            }
+            blocks++;
+            block.reset();
+        }
+
+        public long getMessageCount() {
+            return messages;
+        }
+
+        /**
+         * Writes the last block and the index, and closes the file
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                if (format != Format.TEXT) {
+                    if (block.size() > 0) {
+                        writeBlock();
+                    }
+                    long indexOffset = outputStream.size();
+                    index.writeTo(outputStream);
+                    outputStream.writeLong(indexOffset);
+                    outputStream.writeInt(blocks);
+                    outputStream.writeLong(messages);
+                    outputStream.write(MAGIC);
+                }
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+                outputStream.close();
+            }
+        }
+    }
+
+    /**
+     * An archive in blocks, only the blocks of the pages that are asked for are read and decoded
+     */
+    private static class BlockArchive extends ChatArchive {
+
+        private final ByteBuffer mapped;
+        private final boolean compressed;
+        private final long[] blockOffsets;
+        private final long[] firstMessages;
+        private final long size;
+        //The last block that was decoded, pages usually continue where the previous one stopped
+        private int cachedBlock = -1;
+        private String[] cachedMessages;
+
+        BlockArchive(ByteBuffer mapped) throws IOException {
+            this.mapped = mapped;
+            this.compressed = (mapped.get(MAGIC.length) & FLAG_COMPRESSED) != 0;
+            int footer = mapped.limit() - FOOTER_SIZE;
+            long indexOffset = mapped.getLong(footer);
+            int blocks = mapped.getInt(footer + 8);
+            this.size = mapped.getLong(footer + 12);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (mapped.get(footer + 20 + i) != MAGIC[i]) {
+                    throw new StreamCorruptedException("The chat archive is incomplete, it has no index");
+                }
+            }
+            if (blocks < 0 || indexOffset < HEADER_SIZE || indexOffset + 16L * blocks != footer) {
+                throw new StreamCorruptedException("The index of the chat archive is damaged");
+            }
+            this.blockOffsets = new long[blocks];
+            this.firstMessages = new long[blocks];
+            for (int i = 0; i < blocks; i++) {
+                blockOffsets[i] = mapped.getLong((int) indexOffset + 16 * i);
+                firstMessages[i] = mapped.getLong((int) indexOffset + 16 * i + 8);
+            }
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public synchronized List<String> getPage(long first, int maxCount) throws IOException {
+            long end = Math.min(size, first + maxCount);
+            ArrayList<String> page = new ArrayList<>((int) Math.max(0, end - first));
+            long next = first;
+            while (next < end) {
+                int block = blockOf(next);
+                String[] messages = decode(block);
+                int from = (int) (next - firstMessages[block]);
+                int to = (int) Math.min(messages.length, end - firstMessages[block]);
+                page.addAll(Arrays.asList(messages).subList(from, to));
+                next = firstMessages[block] + to;
+            }
+            return page;
+        }
+
+        //The block that holds the message with this index
+        private int blockOf(long message) {
+            int found = Arrays.binarySearch(firstMessages, message);
+            return found >= 0 ? found : -found - 2;
+        }
+
+        private String[] decode(int block) throws IOException {
+            if (block == cachedBlock) {
+                return cachedMessages;
+            }
+            int offset = (int) blockOffsets[block];
+            int storedLength = mapped.getInt(offset);
+            int length = mapped.getInt(offset + 4);
+            ByteBuffer stored = mapped.slice(offset + 8, storedLength);
+            ByteBuffer raw;
+            if (compressed) {
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(stored);
+                    raw = ByteBuffer.allocate(length);
+                    while (raw.hasRemaining() && !inflater.finished()) {
+                        if (inflater.inflate(raw) == 0 && inflater.needsInput()) {
+                            break;
+                        }
+                    }
+                    raw.flip();
+                } catch (DataFormatException e) {
+                    throw new StreamCorruptedException("Block " + block + " of the chat archive is damaged: " + e.getMessage());
+                } finally {
+                    inflater.end();
+                }
+            } else {
+                raw = stored;
+            }
+            long count = (block + 1 < firstMessages.length ? firstMessages[block + 1] : size) - firstMessages[block];
+            String[] messages = new String[(int) count];
+            for (int i = 0; i < messages.length; i++) {
+                byte[] bytes = new byte[raw.getInt()];
+                raw.get(bytes);
+                messages[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            cachedBlock = block;
+            cachedMessages = messages;
+            return messages;
+        }
+    }
+
+    /**
+     * A text file with one message per line
+     */
+    private static class TextArchive extends ChatArchive {
+
+        private final ByteBuffer mapped;
+        //Where line 0, TEXT_INDEX_INTERVAL, 2*TEXT_INDEX_INTERVAL, ... start
+        private long[] lineStarts = new long[1024];
+        private final long size;
+
+        TextArchive(ByteBuffer mapped, ProgressListener listener) {
+            this.mapped = mapped;
+            int limit = mapped.limit();
+            long lines = 0;
+            int lineStart = 0;
+            for (int i = 0; i < limit; i++) {
+                if (mapped.get(i) == '\n') {
+                    addLine(lines++, lineStart);
+                    lineStart = i + 1;
+                }
+                if (listener != null && i % SCAN_PROGRESS_INTERVAL == 0) {
+                    listener.progress(i, limit);
+                }
+            }
+            if (lineStart < limit) {
+                //the last line has no line break
+                addLine(lines++, lineStart);
+            }
+            this.size = lines;
+        }
+
+        private void addLine(long line, int start) {
+            if (line % TEXT_INDEX_INTERVAL != 0) {
+                return;
+            }
+            int slot = (int) (line / TEXT_INDEX_INTERVAL);
+            if (slot == lineStarts.length) {
+                lineStarts = Arrays.copyOf(lineStarts, lineStarts.length * 2);
+            }
+            lineStarts[slot] = start;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public List<String> getPage(long first, int maxCount) {
+            long end = Math.min(size, first + maxCount);
+            ArrayList<String> page = new ArrayList<>((int) Math.max(0, end - first));
+            if (first >= end) {
+                return page;
+            }
+            int position = (int) lineStarts[(int) (first / TEXT_INDEX_INTERVAL)];
+            //skip to the first line of the page
+            for (long line = first - first % TEXT_INDEX_INTERVAL; line < first; line++) {
+                position = endOfLine(position) + 1;
+            }
+            for (long line = first; line < end; line++) {
+                int lineEnd = endOfLine(position);
+                int length = lineEnd - position;
+                if (length > 0 && mapped.get(position + length - 1) == '\r') {
+                    length--;
+                }
+                byte[] bytes = new byte[length];
+                mapped.get(position, bytes);
+                page.add(new String(bytes, StandardCharsets.UTF_8) + "\n");
+                position = lineEnd + 1;
+            }
+            return page;
+        }
+
+        //The position of the line break that ends the line starting at the given position, or the end of the file
+        private int endOfLine(int position) {
+            int limit = mapped.limit();
+            while (position < limit && mapped.get(position) != '\n') {
+                position++;
+            }
+            return position;
+        }
+    }
+}
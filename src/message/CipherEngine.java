@@ -0,0 +1,168 @@
+package message;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encrypts and decrypts messages with one session key, using AES-GCM so that a tampered message is rejected
+ * instead of being decrypted into garbage.
+ *
+ * Looking up a Cipher is expensive compared to encrypting a short chat message, so the engine keeps a pool of Cipher
+ * instances for its key and reuses them. A Cipher is not thread safe, so every call borrows one from the pool and
+ * gives it back afterwards. A pool is used rather than a ThreadLocal because every client may have a virtual thread
+ * of its own, which would each end up with their own Cipher.
+ *
+ * Every ciphertext starts with the nonce it was encrypted with:
+ * <pre>
+ *     12 byte nonce | encrypted message | 16 byte authentication tag
+ * </pre>
+ * GCM must never see the same nonce twice with the same key, and the server and all of its clients share the session
+ * key. Each engine therefore starts from 4 random bytes followed by an 8 byte counter that starts at a random value,
+ * so two engines would need the same random prefix and overlapping counters before they could pick the same nonce.
+ */
+public final class CipherEngine {
+
+    public static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    public static final int NONCE_LENGTH = 12;
+    public static final int TAG_LENGTH = 16;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKey sessionKey;
+    private final ConcurrentLinkedQueue<Cipher> ciphers = new ConcurrentLinkedQueue<>();
+    private final int noncePrefix;
+    private final AtomicLong nonceCounter;
+
+    /**
+     * @param sessionKey the AES session key shared by the server and its clients
+     */
+    public CipherEngine(SecretKey sessionKey) {
+        this.sessionKey = sessionKey;
+        this.noncePrefix = RANDOM.nextInt();
+        this.nonceCounter = new AtomicLong(RANDOM.nextLong());
+    }
+
+    public SecretKey getSessionKey() {
+        return sessionKey;
+    }
+
+    /**
+     * Encrypts a message with the session key
+     * @param plaintext the bytes of the message
+     * @return the nonce followed by the ciphertext and its authentication tag
+     */
+    public byte[] encrypt(byte[] plaintext) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        byte[] ciphertext = new byte[NONCE_LENGTH + plaintext.length + TAG_LENGTH];
+        ByteBuffer.wrap(ciphertext).putInt(noncePrefix).putLong(nonceCounter.getAndIncrement());
+        Cipher cipher = borrowCipher();
+        try {
+            init(cipher, Cipher.ENCRYPT_MODE, ciphertext);
+            //Encrypt straight into the array after the nonce
+            cipher.doFinal(plaintext, 0, plaintext.length, ciphertext, NONCE_LENGTH);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException("The ciphertext array is sized for the plaintext", e);
+        } finally {
+            ciphers.offer(cipher);
+        }
+        return ciphertext;
+    }
+
+    /**
+     * Decrypts a message that was encrypted with the session key
+     * @param ciphertext the nonce followed by the ciphertext and its authentication tag
+     * @return the bytes of the message
+     * @throws AEADBadTagException if the message has been tampered with, or was encrypted with another key
+     */
+    public byte[] decrypt(byte[] ciphertext) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        if (ciphertext.length < NONCE_LENGTH + TAG_LENGTH) {
+            throw new AEADBadTagException("Ciphertext is too short: " + ciphertext.length + " bytes");
+        }
+        Cipher cipher = borrowCipher();
+        try {
+            init(cipher, Cipher.DECRYPT_MODE, ciphertext);
+            return cipher.doFinal(ciphertext, NONCE_LENGTH, ciphertext.length - NONCE_LENGTH);
+        } finally {
+            ciphers.offer(cipher);
+        }
+    }
+
+    /**
+     * Encrypts another AES key with the session key, e.g. to hand the current session key to a client that resumes
+     * its session with the key it had before
+     */
+    public byte[] wrapKey(SecretKey key) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        return encrypt(key.getEncoded());
+    }
+
+    /**
+     * Decrypts a key encrypted with wrapKey(SecretKey)
+     * @return the AES key
+     * @throws InvalidKeyException if what was wrapped is not an AES key
+     */
+    public SecretKey unwrapKey(byte[] wrapped) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        return aesKey(decrypt(wrapped));
+    }
+
+    /**
+     * Checks the bytes of a key that came over the network, so that a key of the wrong length is rejected here
+     * with a checked exception instead of failing later
+     * @throws InvalidKeyException if the bytes are not 16, 24 or 32 long
+     */
+    static SecretKey aesKey(byte[] bytes) throws InvalidKeyException {
+        if (bytes.length != 16 && bytes.length != 24 && bytes.length != 32) {
+            throw new InvalidKeyException("Not an AES key: " + bytes.length + " bytes");
+        }
+        return new SecretKeySpec(bytes, "AES");
+    }
+
+    private Cipher borrowCipher() throws NoSuchPaddingException, NoSuchAlgorithmException {
+        Cipher cipher = ciphers.poll();
+        return cipher != null ? cipher : Cipher.getInstance(TRANSFORMATION);
+    }
+
+    //The Cipher is initialized for every message, since every message has its own nonce. The AES key schedule is
+    //cached by the provider, so initializing a pooled Cipher with the same key again is cheap.
+    private void init(Cipher cipher, int mode, byte[] ciphertext) throws InvalidKeyException {
+        try {
+            cipher.init(mode, sessionKey, new GCMParameterSpec(TAG_LENGTH * 8, ciphertext, 0, NONCE_LENGTH));
+        } catch (InvalidAlgorithmParameterException e) {
+            //Only thrown for a nonce that is reused for encryption, which the counter rules out
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Encrypts with an asymmetric public key. This is only used once per connection, to send the session key
+     * to a client, so there is no point in keeping the Cipher around.
+     */
+    public static byte[] encrypt(byte[] plaintext, PublicKey publicKey) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        Cipher cipher = Cipher.getInstance("RSA");
+        cipher.init(Cipher.ENCRYPT_MODE, publicKey);
+        return cipher.doFinal(plaintext);
+    }
+
+    /**
+     * Decrypts with an asymmetric private key, the counterpart of encrypt(byte[], PublicKey)
+     */
+    public static byte[] decrypt(byte[] ciphertext, PrivateKey privateKey) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        Cipher cipher = Cipher.getInstance("RSA");
+        cipher.init(Cipher.DECRYPT_MODE, privateKey);
+        return cipher.doFinal(ciphertext);
+    }
+}
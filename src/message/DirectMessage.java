@@ -0,0 +1,49 @@
+package message;
+
+import java.io.Serializable;
+
+/**
+ * A message for one user only. The server looks up the recipient by name and delivers it to that user alone
+ * (and back to the sender), instead of broadcasting it to everybody.
+ */
+public class DirectMessage implements Serializable {
+
+    private final String sender;
+    private final String recipient;
+    private final Message message;
+
+    /**
+     * A message as a client sends it. The server fills in the sender, since it knows who the client is.
+     * @param recipient the user the message is for
+     * @param message the message, encrypted with the session key
+     */
+    public DirectMessage(String recipient, Message message) {
+        this(null, recipient, message);
+    }
+
+    /**
+     * @param sender the user the message is from, as the server has authenticated it
+     * @param recipient the user the message is for
+     * @param message the message, encrypted with the session key
+     */
+    public DirectMessage(String sender, String recipient, Message message) {
+        this.sender = sender;
+        this.recipient = recipient;
+        this.message = message;
+    }
+
+    /**
+     * @return the user the message is from, or null if a client sent it
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+}
@@ -0,0 +1,122 @@
+package message;
+
+import java.net.ProtocolException;
+
+/**
+ * The types of frames in the binary wire protocol, see WireProtocol.
+ * The tag is the byte that is written on the wire right after the length of the frame.
+ */
+public enum FrameType {
+
+    /**
+     * Client to server: the username and the client's public key. Server to client: the encrypted session key.
+     */
+    HANDSHAKE(1),
+
+    /**
+     * A chat message encrypted with the session key
+     */
+    CHAT(2),
+
+    /**
+     * Server to client: the whole list of online users (or of a channel's members), sent when the client connects
+     * or joins the channel, or asks for it
+     */
+    PRESENCE(3),
+
+    /**
+     * Server to client: a message from the server itself, encrypted with the session key
+     */
+    SERVER_NOTICE(4),
+
+    /**
+     * Server to client: one user has joined or left the server (or a channel)
+     */
+    PRESENCE_DELTA(5),
+
+    /**
+     * Client to server: the client has missed a presence delta and wants the whole list of online users again
+     */
+    PRESENCE_RESYNC(6),
+
+    /**
+     * Server to client: the server turns the client away during the handshake, the payload is the reason in UTF-8
+     */
+    ERROR(7),
+
+    /**
+     * A chat message for one user only, encrypted with the session key, see DirectMessage
+     */
+    DIRECT(8),
+
+    /**
+     * A chat message for the members of one channel, encrypted with the session key, see ChannelMessage
+     */
+    CHANNEL(9),
+
+    /**
+     * Client to server: join or leave a channel, or get its members again, see ChannelRequest
+     */
+    CHANNEL_REQUEST(10),
+
+    /**
+     * Server to client: another frame, compressed with PayloadCompression. Only sent to clients that asked for
+     * compression in their preamble.
+     */
+    COMPRESSED(11),
+
+    /**
+     * Server to client: a resumption ticket, which lets the client skip the key exchange when it connects again,
+     * followed by the resume key that goes with it, see ResumptionTicket. Only the server can read what is inside the
+     * ticket, see SessionTickets.
+     */
+    TICKET(12),
+
+    /**
+     * Client to server: instead of a HANDSHAKE, the username, the sequence number of the last chat message the client
+     * has and its resumption ticket. The server answers with a RESUME_CHALLENGE, and once the client has proven that
+     * it holds the resume key with a HANDSHAKE frame as usual, but with the session key encrypted with the resume key.
+     */
+    RESUME(13),
+
+    /**
+     * Server to client: random bytes the client has to sign with the resume key of its ticket, so that a ticket that
+     * was seen on the wire is of no use without the key
+     */
+    RESUME_CHALLENGE(14),
+
+    /**
+     * Client to server: the answer to a RESUME_CHALLENGE, see WireProtocol.resumeProof()
+     */
+    RESUME_PROOF(15);
+
+    private static final FrameType[] BY_TAG = new FrameType[16];
+
+    static {
+        for (FrameType frameType : values()) {
+            BY_TAG[frameType.tag] = frameType;
+        }
+    }
+
+    private final byte tag;
+
+    FrameType(int tag) {
+        this.tag = (byte) tag;
+    }
+
+    public byte getTag() {
+        return tag;
+    }
+
+    /**
+     * @param tag the tag read from the wire
+     * @return the frame type with the given tag
+     * @throws ProtocolException if no frame type has this tag
+     */
+    public static FrameType fromTag(byte tag) throws ProtocolException {
+        if (tag <= 0 || tag >= BY_TAG.length || BY_TAG[tag] == null) {
+            throw new ProtocolException("Unknown frame type: " + tag);
+        }
+        return BY_TAG[tag];
+    }
+}
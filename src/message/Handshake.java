@@ -0,0 +1,58 @@
+package message;
+
+import java.security.PublicKey;
+
+/**
+ * The first frame a client sends in the binary wire protocol: who it is and which key to encrypt the session key with,
+ * or the resumption ticket it was given the last time it was connected
+ */
+public class Handshake {
+
+    private final String username;
+    private final PublicKey publicKey;
+    //null unless the client resumes its session, see FrameType.RESUME
+    private final byte[] ticket;
+    //The sequence number of the last chat message the client has, so that it is only sent what came after it
+    private final long sinceSequence;
+
+    /**
+     * @param sinceSequence the sequence number of the last chat message the client already has, 0 for none
+     */
+    public Handshake(String username, PublicKey publicKey, long sinceSequence) {
+        this.username = username;
+        this.publicKey = publicKey;
+        this.ticket = null;
+        this.sinceSequence = sinceSequence;
+    }
+
+    /**
+     * A client that resumes its session
+     * @param ticket the resumption ticket the server gave the client
+     * @param sinceSequence the sequence number of the last chat message the client already has
+     */
+    public Handshake(String username, byte[] ticket, long sinceSequence) {
+        this.username = username;
+        this.publicKey = null;
+        this.ticket = ticket;
+        this.sinceSequence = sinceSequence;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public PublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    /**
+     * @return the resumption ticket, or null if the client did the whole handshake
+     */
+    public byte[] getTicket() {
+        return ticket;
+    }
+
+    public long getSinceSequence() {
+        return sinceSequence;
+    }
+}
@@ -0,0 +1,193 @@
+package message;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.KeyAgreement;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+
+/**
+ * How the server hands the session key to a client during the handshake. The client picks one, sends the public key
+ * of its key pair in its handshake, and the server answers with the session key wrapped so that only the client can
+ * unwrap it.
+ */
+public enum KeyExchange {
+
+    /**
+     * The session key is encrypted with the client's 2048 bit RSA public key. Generating the key pair takes the client
+     * a noticeable amount of time, so this is only kept for servers and clients that want it.
+     */
+    RSA(0, "RSA"),
+
+    /**
+     * Elliptic curve Diffie-Hellman on Curve25519. For every client the server generates a key pair of its own, and
+     * both sides arrive at the same shared secret from their own private key and the other one's public key. The
+     * session key is encrypted with AES-GCM under a key derived from that secret, and sent together with the
+     * server's public key. An X25519 key pair is generated hundreds of times faster than an RSA one.
+     */
+    X25519(1, "X25519");
+
+    //The wrapping key is derived by hashing the shared secret together with both public keys and this label
+    private static final byte[] KEY_DERIVATION_LABEL = "chat session key".getBytes(StandardCharsets.US_ASCII);
+
+    private final byte tag;
+    private final String algorithm;
+
+    KeyExchange(int tag, String algorithm) {
+        this.tag = (byte) tag;
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * @return the byte that stands for this key exchange in a handshake frame
+     */
+    public byte getTag() {
+        return tag;
+    }
+
+    /**
+     * @param tag the byte read from a handshake frame
+     * @return the key exchange with the given tag
+     * @throws ProtocolException if no key exchange has this tag
+     */
+    public static KeyExchange fromTag(byte tag) throws ProtocolException {
+        for (KeyExchange keyExchange : values()) {
+            if (keyExchange.tag == tag) {
+                return keyExchange;
+            }
+        }
+        throw new ProtocolException("Unknown key exchange: " + tag);
+    }
+
+    /**
+     * @param key a public or private key of either kind
+     * @return the key exchange the key belongs to
+     */
+    public static KeyExchange forKey(Key key) {
+        String algorithm = key.getAlgorithm();
+        if (algorithm.equals("RSA")) {
+            return RSA;
+        } else if (algorithm.equals("X25519") || algorithm.equals("XDH")) {
+            return X25519;
+        }
+        throw new IllegalArgumentException("No key exchange for " + algorithm + " keys");
+    }
+
+    /**
+     * Parses a key exchange given on the command line, e.g. "x25519" or "rsa"
+     * @param value the name of the key exchange, case insensitive
+     * @return the matching key exchange
+     */
+    public static KeyExchange fromString(String value) {
+        return KeyExchange.valueOf(value.trim().toUpperCase());
+    }
+
+    /**
+     * @return a new key pair for the client, or for the server's side of an X25519 exchange
+     */
+    public KeyPair generateKeyPair() {
+        try {
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(algorithm);
+            if (this == RSA) {
+                //2048 bits is enough for our 1-time use of the key
+                keyPairGenerator.initialize(2048);
+            }
+            return keyPairGenerator.generateKeyPair();
+        } catch (NoSuchAlgorithmException e) {
+            //every Java runtime since 11 has both
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads a public key as the client sends it in its handshake
+     * @param encoded the X.509 encoding of the key
+     */
+    public PublicKey decodePublicKey(byte[] encoded) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        return KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    /**
+     * Wraps the session key so that only the owner of the client's private key can unwrap it. Done by the server.
+     * @param sessionKey the AES session key
+     * @param clientKey the public key the client sent in its handshake
+     * @return what the server sends to the client as the ciphertext of its handshake frame
+     */
+    public byte[] wrapSessionKey(SecretKey sessionKey, PublicKey clientKey) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        if (this == RSA) {
+            //the Base64 text of the key, the way the server has always sent it
+            byte[] text = Base64.getEncoder().encodeToString(sessionKey.getEncoded()).getBytes(StandardCharsets.UTF_8);
+            return CipherEngine.encrypt(text, clientKey);
+        }
+        //the server's public key | the session key, encrypted with the derived key
+        KeyPair serverKeyPair = generateKeyPair();
+        byte[] serverKey = serverKeyPair.getPublic().getEncoded();
+        SecretKey wrappingKey = deriveKey(serverKeyPair.getPrivate(), clientKey, clientKey.getEncoded(), serverKey);
+        byte[] wrapped = new CipherEngine(wrappingKey).encrypt(sessionKey.getEncoded());
+        ByteBuffer buffer = ByteBuffer.allocate(2 + serverKey.length + wrapped.length);
+        buffer.putShort((short) serverKey.length);
+        buffer.put(serverKey);
+        buffer.put(wrapped);
+        return buffer.array();
+    }
+
+    /**
+     * Unwraps the session key the server sent. Done by the client.
+     * @param wrapped the ciphertext of the server's handshake frame, see wrapSessionKey()
+     * @param keyPair the key pair whose public key the client sent in its handshake
+     * @return the AES session key
+     */
+    public SecretKey unwrapSessionKey(byte[] wrapped, KeyPair keyPair) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        if (this == RSA) {
+            String text = new String(CipherEngine.decrypt(wrapped, keyPair.getPrivate()), StandardCharsets.UTF_8);
+            try {
+                return CipherEngine.aesKey(Base64.getDecoder().decode(text));
+            } catch (IllegalArgumentException e) {
+                throw new InvalidKeyException("The server sent an invalid session key", e);
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(wrapped);
+        PublicKey serverKey;
+        try {
+            byte[] serverKeyBytes = new byte[buffer.getShort() & 0xffff];
+            buffer.get(serverKeyBytes);
+            serverKey = decodePublicKey(serverKeyBytes);
+        } catch (InvalidKeySpecException | RuntimeException e) {
+            throw new InvalidKeyException("The server sent an invalid public key", e);
+        }
+        SecretKey wrappingKey = deriveKey(keyPair.getPrivate(), serverKey, keyPair.getPublic().getEncoded(), serverKey.getEncoded());
+        byte[] ciphertext = new byte[buffer.remaining()];
+        buffer.get(ciphertext);
+        return CipherEngine.aesKey(new CipherEngine(wrappingKey).decrypt(ciphertext));
+    }
+
+    //Both sides end up with the same AES key: the hash of the shared secret and both public keys, client's first.
+    //Hashing in the public keys ties the key to this one exchange.
+    private static SecretKey deriveKey(PrivateKey privateKey, PublicKey otherKey, byte[] clientKey, byte[] serverKey) throws NoSuchAlgorithmException, InvalidKeyException {
+        KeyAgreement keyAgreement = KeyAgreement.getInstance("X25519");
+        keyAgreement.init(privateKey);
+        keyAgreement.doPhase(otherKey, true);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(keyAgreement.generateSecret());
+        digest.update(clientKey);
+        digest.update(serverKey);
+        digest.update(KEY_DERIVATION_LABEL);
+        return new SecretKeySpec(digest.digest(), "AES");
+    }
+}
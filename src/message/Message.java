@@ -1,149 +1,247 @@
-package message;
-
-import javax.crypto.*;
-import java.io.Serializable;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.PrivateKey;
-import java.security.PublicKey;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.Base64;
-
-/**
- * Class for adding timestamp to messages as well as newline character necessary to display different messages on different lines
- */
-public class Message implements Serializable {
-
-    private final String message;
-
-    /**
-     * Prepends the current time to the string and stores it.
-     * @param message given String
-     */
-    public Message(String message) {
-        String time;
-        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("HH:mm:ss");
-        LocalDateTime now = LocalDateTime.now();
-        time = "<" + dtf.format(now) + "> ";
-        this.message = time + message + "\n";
-    }
-
-    /**
-     * This constructor is used to encrypt a message sent from the client to the server using the symmetric session key generated by the server
-     * @param message
-     * @param sessionKey A symmetric session key generated by the server and securely shared with the client
-     */
-    public Message(String message, SecretKey sessionKey) throws IllegalBlockSizeException, NoSuchPaddingException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException {
-        String time;
-        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("HH:mm:ss");
-        LocalDateTime now = LocalDateTime.now();
-        time = "<" + dtf.format(now) + "> ";
-        this.message = encrypt(time + message + "\n",sessionKey);
-    }
-
-    /**
-     * This constructor is used to encrypt messages sent from the server to the client using the Public key generated by the client
-     * This constructor is only used once by the server to encrypt the session key and share it securely with the client
-     * @param message
-     * @param publicKey An assymetric Public Key generated by the client and shared with the server
-     */
-    public Message(String message, PublicKey publicKey) throws NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException {
-        this.message = encrypt(message,publicKey);
-    }
-
-
-    /**
-     * Helper function used to encrypt messages with a symmetric session key
-     * @param message
-     * @param sessionKey
-     * @return
-     */
-    public static String encrypt(String message, SecretKey sessionKey) throws IllegalBlockSizeException, BadPaddingException, InvalidKeyException, NoSuchPaddingException, NoSuchAlgorithmException {
-        //Create a new cipher instance that uses AES encryption(since our sessionKey is an AES key)
-        Cipher cipher = Cipher.getInstance("AES");
-        //Initialize the cipher to be used with encryption and to use our session key
-        cipher.init(Cipher.ENCRYPT_MODE, sessionKey);
-        //Encrypt the message(you have to provide the message bytes) and store the encrypted bytes
-        byte[] encryptedBytes = cipher.doFinal(message.getBytes());
-        //Convert the encrypted message bytes into its corresponding string representation so that it can be sent as a message
-        return Base64.getEncoder().encodeToString(encryptedBytes);
-    }
-
-    /**
-     * Helper function used to encrypt messages with an assymetric public key
-     * @param message
-     * @param publicKey
-     * @return
-     */
-    public static String encrypt(String message, PublicKey publicKey) throws BadPaddingException, InvalidKeyException, NoSuchPaddingException, NoSuchAlgorithmException, IllegalBlockSizeException {
-        //Create a new Cipher that uses RSA encryption(The reason is that our public key will be an RSA key)
-        Cipher cipher = Cipher.getInstance("RSA");
-        //Initialize the cipher to be used with encryption and to use our public key
-        cipher.init(Cipher.ENCRYPT_MODE,publicKey);
-        //Encrypt the message and store the encrypted message bytes
-        byte[] encryptedBytes = cipher.doFinal(message.getBytes());
-        //Convert the encrypted message bytes into corresponding encrypted string so that it can be sent as message
-        return Base64.getEncoder().encodeToString(encryptedBytes);
-    }
-
-    /**
-     * Instance method used to decrypt message and return decrypted message
-     * @param sessionKey AES symmetric session key
-     * @return
-     */
-    public String decrypt(SecretKey sessionKey) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
-        //Create a new Cipher instance that uses AES encryption
-        Cipher cipher = Cipher.getInstance("AES");
-        //Initialize the cipher to be used for decryption with the provided session key
-        cipher.init(Cipher.DECRYPT_MODE,sessionKey);
-        //Get the encrypted bytes back from the string message
-        //Here you must use Base64.Decoder, since the bytes were encoded to string using
-        //Base64 encoder
-        byte[] encryptedBytes = Base64.getDecoder().decode(this.message);
-        //decrypt the encrypted bytes using cipher
-        byte[] decryptedBytes = cipher.doFinal(encryptedBytes);
-        //return the decrypted bytes as a string message
-        //Here you CAN and SHOULD use the String constructor since the decrypted bytes can
-        //be represented as a string.
-        return new String(decryptedBytes);
-    }
-
-    /**
-     * Instance method used to decrypt message and return decrypted message
-     * This method will be used when the client decrypts the encrypted session key that the server sends to it
-     * @param privateKey RSA assymetric private key
-     * @return
-     */
-    public String decrypt(PrivateKey privateKey) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
-        //Create a new Cipher that uses RSA encryption
-        Cipher cipher = Cipher.getInstance("RSA");
-        //Initialize the cipher to be used with decryption and use the private RSA key
-        cipher.init(Cipher.DECRYPT_MODE,privateKey);
-        //Decode the String message to its corresponding encrypted bytes
-        //Important to use Base64 decoder and not this.message.getBytes()
-        //The reason is that the String has been encoded with Base64.encoder
-        byte[] encryptedBytes = Base64.getDecoder().decode(this.message);
-        //decrypt the encrypted bytes and store the decrypted bytes
-        byte[] decryptedBytes = cipher.doFinal(encryptedBytes);
-        //return the decrypted bytes as a regular String using the String constructor
-        //Do not use Base64.encoder here. We want a regular string.
-        return new String(decryptedBytes);
-    }
-
-
-
-
-    /**
-     * Returns the encapsulated String message
-     * @return String object message
-     */
-    public String toString() {
-        return message;
-    }
-
-    public String getMessagePart(){
-        return message.substring(message.indexOf(">")+1);
-    }
-
-}
\ No newline at end of file
+package message;
+
+import javax.crypto.*;
+import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+
+/**
+ * A chat message: when it was written, who it is from and what it says, and the number the server gave it.
+ * An encrypted message only holds its ciphertext (and number) until it is decrypted.
+ *
+ * The time is kept as milliseconds since the epoch and only turned into text when the message is shown, see
+ * toString(). Encrypting a message writes it as
+ * <pre>
+ *     long timestamp | short sender length | sender UTF-8 | body UTF-8
+ * </pre>
+ * into one array, which is compressed if it is long enough and then encrypted.
+ */
+public class Message implements Serializable {
+
+    //The sender of the messages from the server itself
+    public static final String SERVER = "SERVER";
+    //Shared by every message, a DateTimeFormatter is immutable and thread safe
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+    //The timestamp and the length of the sender
+    private static final int HEADER_LENGTH = 8 + 2;
+
+    //When the message was written, in milliseconds since the epoch. 0 for a message that has not been decrypted.
+    private final long timestamp;
+    //Who the message is from: the username of a user, or SERVER. The recipient or the channel of a direct or channel
+    //message is not part of it, see DirectMessage and ChannelMessage. Null for a message that has not been decrypted.
+    private final String sender;
+    //The UTF-8 text of a plain message, or null for an encrypted message
+    private final byte[] body;
+    //The encrypted bytes of an encrypted message, or null for a plain message
+    private final byte[] ciphertext;
+    //The number the server gave a message it broadcast, so that a client can tell which messages it already has.
+    //0 for every other message.
+    private final long sequence;
+
+    /**
+     * A plain message written now
+     * @param sender who the message is from, e.g. a username or SERVER
+     * @param text what the message says
+     */
+    public Message(String sender, String text) {
+        this(System.currentTimeMillis(), sender, text.getBytes(StandardCharsets.UTF_8), 0);
+    }
+
+    private Message(long timestamp, String sender, byte[] body, long sequence) {
+        this.timestamp = timestamp;
+        this.sender = sender;
+        this.body = body;
+        this.ciphertext = null;
+        this.sequence = sequence;
+    }
+
+    /**
+     * This constructor is used to encrypt a message sent from the client to the server using the symmetric session key generated by the server
+     * @param cipherEngine encrypts with the symmetric session key generated by the server and securely shared with the client
+     */
+    public Message(String sender, String text, CipherEngine cipherEngine) throws IllegalBlockSizeException, NoSuchPaddingException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+        this(sender, text, cipherEngine, PayloadCompression.NONE);
+    }
+
+    /**
+     * Encrypts a message written now with the session key, after compressing it if it is long enough.
+     * Only the plaintext and the ciphertext are allocated on the way, and the UTF-8 bytes of the sender and the text.
+     * @param compression compresses the message before it is encrypted, see PayloadCompression
+     */
+    public Message(String sender, String text, CipherEngine cipherEngine, PayloadCompression compression) throws IllegalBlockSizeException, NoSuchPaddingException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        if (senderBytes.length > 0xffff) {
+            throw new IllegalArgumentException("The sender is too long");
+        }
+        //index 0 is left for PayloadCompression to say how the rest is stored
+        byte[] plaintext = new byte[1 + HEADER_LENGTH + senderBytes.length + textBytes.length];
+        ByteBuffer.wrap(plaintext, 1, plaintext.length - 1)
+                .putLong(System.currentTimeMillis())
+                .putShort((short) senderBytes.length)
+                .put(senderBytes)
+                .put(textBytes);
+        this.timestamp = 0;
+        this.sender = null;
+        this.body = null;
+        this.ciphertext = cipherEngine.encrypt(compression.encodeInPlace(plaintext));
+        this.sequence = 0;
+    }
+
+    /**
+     * This constructor is used to encrypt messages sent from the server to the client using the Public key generated by the client
+     * This constructor is only used once by the server to encrypt the session key and share it securely with the client
+     * @param message
+     * @param publicKey An assymetric Public Key generated by the client and shared with the server
+     */
+    public Message(String message, PublicKey publicKey) throws NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+        this.timestamp = 0;
+        this.sender = null;
+        this.body = null;
+        this.ciphertext = CipherEngine.encrypt(message.getBytes(StandardCharsets.UTF_8), publicKey);
+        this.sequence = 0;
+    }
+
+    /**
+     * This constructor is used for encrypted messages that arrive as raw ciphertext bytes over the binary wire protocol
+     * @param ciphertext the encrypted bytes of the message
+     */
+    public Message(byte[] ciphertext) {
+        this(ciphertext, 0);
+    }
+
+    /**
+     * @param ciphertext the encrypted bytes of the message
+     * @param sequence the number the server gave the message, 0 if it has none
+     */
+    public Message(byte[] ciphertext, long sequence) {
+        this.timestamp = 0;
+        this.sender = null;
+        this.body = null;
+        this.ciphertext = ciphertext;
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return the same encrypted message with the number the server gave it when it was broadcast.
+     * The ciphertext is shared, not copied.
+     */
+    public Message withSequence(long sequence) {
+        return new Message(ciphertext, sequence);
+    }
+
+    /**
+     * @return the number the server gave this message when it was broadcast, or 0
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return when the message was written, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * The array is not copied, so it must not be changed.
+     * @return the UTF-8 bytes of what the message says
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * @return what the message says, without the time and the sender
+     */
+    public String getText() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Instance method used to decrypt message and return decrypted message
+     * @param cipherEngine decrypts with the AES symmetric session key
+     * @return the plain message, with the same sequence number
+     */
+    public Message decrypt(CipherEngine cipherEngine) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        byte[] payload = cipherEngine.decrypt(this.ciphertext);
+        try {
+            ByteBuffer plaintext = PayloadCompression.decodeToBuffer(payload);
+            long timestamp = plaintext.getLong();
+            int senderLength = plaintext.getShort() & 0xffff;
+            int start = plaintext.arrayOffset() + plaintext.position();
+            if (senderLength > plaintext.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            String sender = new String(plaintext.array(), start, senderLength, StandardCharsets.UTF_8);
+            byte[] body = Arrays.copyOfRange(plaintext.array(), start + senderLength, plaintext.arrayOffset() + plaintext.limit());
+            return new Message(timestamp, sender, body, sequence);
+        } catch (DataFormatException | BufferUnderflowException e) {
+            //the sender has encrypted something broken, which is treated like a message that can not be decrypted
+            BadPaddingException badPaddingException = new BadPaddingException("The message can not be read");
+            badPaddingException.initCause(e);
+            throw badPaddingException;
+        }
+    }
+
+    /**
+     * Instance method used to decrypt message and return decrypted message
+     * This method will be used when the client decrypts the encrypted session key that the server sends to it
+     * @param privateKey RSA assymetric private key
+     * @return
+     */
+    public String decrypt(PrivateKey privateKey) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        return new String(CipherEngine.decrypt(this.ciphertext, privateKey), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Formats a plain message the way the chat shows it, e.g. "&lt;12:00:00&gt; alice: hello" followed by a line break.
+     * This is only done when the message is shown, in the time zone of whoever shows it.
+     * @return the formatted message, or the Base64 text of the ciphertext of an encrypted message
+     */
+    public String toString() {
+        if (body == null) {
+            return Base64.getEncoder().encodeToString(ciphertext);
+        }
+        return toString(sender);
+    }
+
+    /**
+     * Formats a plain message like toString(), with something else in place of the sender, e.g. "alice -> bob" for
+     * a direct message. The label is only shown, it is never parsed again.
+     * @param from what the chat shows before the text
+     */
+    public String toString(String from) {
+        String text = getText();
+        StringBuilder formatted = new StringBuilder(14 + from.length() + text.length());
+        formatted.append('<');
+        TIME_FORMAT.formatTo(Instant.ofEpochMilli(timestamp), formatted);
+        return formatted.append("> ").append(from).append(": ").append(text).append('\n').toString();
+    }
+
+    /**
+     * Returns the raw encrypted bytes of an encrypted message, this is what the binary wire protocol sends.
+     * The array is not copied, so it must not be changed.
+     * @return the ciphertext of the message
+     */
+    public byte[] getCiphertext() {
+        return ciphertext;
+    }
+
+}
@@ -0,0 +1,355 @@
+package message;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The chat log of the server or a client. Only the most recent messages are kept in memory, in a ring buffer of a
+ * fixed size. Older messages spill to a file on disk, from where they are read again a page at a time when somebody
+ * scrolls back, so a long running server does not keep every message it has ever seen on the heap.
+ *
+ * Every message has an index, counting from 0 for the first message that was added. The spill file holds the
+ * messages before the ones in memory, every message as its length followed by its UTF-8 bytes, and a second file
+ * holds where every message starts, 8 bytes per message, so that any page can be found without scanning the file.
+ * Both files are deleted again when the history is closed or the program ends.
+ *
+ * The server adds messages from the threads of all of its clients, so adding one only takes a lock for as long as it
+ * takes to put it in the ring buffer. A message that falls out of the ring buffer waits in a queue in memory, and
+ * whichever thread finds the files free writes the queue to disk, outside of that lock. A thread that finds somebody
+ * else writing, or reading a page, does not wait for them. Pages are read from disk under a lock of their own, so
+ * scrolling back never holds up adding messages. The locks are ReentrantLocks rather than synchronized, so that
+ * virtual threads waiting for them don't pin their carrier.
+ */
+public class MessageHistory implements MessageLog, Closeable {
+
+    //How many messages are kept in memory unless told otherwise
+    public static final int DEFAULT_CAPACITY = 1000;
+    //Spilled messages are collected and written to disk together, not one write per message
+    private static final int SPILL_BUFFER_SIZE = 64 * 1024;
+    private static final int OFFSET_SIZE = 8;
+    private static final int LENGTH_SIZE = 4;
+
+    //Guards the ring buffer, the count and the messages waiting to spill
+    private final ReentrantLock lock = new ReentrantLock();
+    private final String[] recent;
+    //The directory the spill files are created in, null for the default temporary directory
+    private final File spillDirectory;
+    //How many messages have been added in total, the index of the next message
+    private long count = 0;
+    //The messages that have left the ring buffer but have not been written to the spill files yet, oldest first.
+    //They come right before the ones in memory.
+    private final ArrayDeque<String> toSpill = new ArrayDeque<>();
+
+    //Guards the spill files and everything below
+    private final ReentrantLock spillLock = new ReentrantLock();
+    //How many messages have been written to the spill files, including what is still in the buffers
+    private long spilled = 0;
+    //Opened when the first message spills
+    private FileChannel data;
+    private FileChannel offsets;
+    private final ByteBuffer dataBuffer = ByteBuffer.allocate(SPILL_BUFFER_SIZE);
+    private final ByteBuffer offsetBuffer = ByteBuffer.allocate(SPILL_BUFFER_SIZE);
+    //Where the next spilled message starts in the data file, including what is still in the buffer
+    private long dataEnd = 0;
+
+    /**
+     * @param capacity how many of the most recent messages are kept in memory
+     */
+    public MessageHistory(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * @param capacity how many of the most recent messages are kept in memory
+     * @param spillDirectory where older messages are written to, or null for the default temporary directory
+     */
+    public MessageHistory(int capacity, File spillDirectory) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The history must hold at least 1 message");
+        }
+        this.recent = new String[capacity];
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Adds a message. If the memory is full, the oldest message in memory spills to disk to make room for it.
+     */
+    public void add(String message) {
+        boolean spills;
+        lock.lock();
+        try {
+            int slot = (int) (count % recent.length);
+            spills = count >= recent.length;
+            if (spills) {
+                toSpill.add(recent[slot]);
+            }
+            recent[slot] = message;
+            count++;
+        } finally {
+            lock.unlock();
+        }
+        if (spills) {
+            spillWaiting();
+        }
+    }
+
+    //Writes the messages waiting to spill, unless another thread is using the files. That thread writes them instead
+    //before it lets go of the files, so no message is left waiting.
+    private void spillWaiting() {
+        while (spillLock.tryLock()) {
+            try {
+                String message = nextToSpill();
+                while (message != null) {
+                    spill(message);
+                    message = nextToSpill();
+                }
+            } catch (IOException e) {
+                //Only the scroll-back is lost, the chat itself keeps going
+                e.printStackTrace();
+            } finally {
+                spillLock.unlock();
+            }
+            //a message may have been queued after we looked for the last time, and before we let go of the files
+            lock.lock();
+            try {
+                if (toSpill.isEmpty()) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private String nextToSpill() {
+        lock.lock();
+        try {
+            return toSpill.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void spill(String message) throws IOException {
+        if (data == null) {
+            openSpillFiles();
+        }
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        if (offsetBuffer.remaining() < OFFSET_SIZE || dataBuffer.remaining() < LENGTH_SIZE + bytes.length) {
+            flushSpill();
+        }
+        offsetBuffer.putLong(dataEnd);
+        if (LENGTH_SIZE + bytes.length > dataBuffer.capacity()) {
+            //too long for the buffer, so it is written straight away
+            ByteBuffer record = ByteBuffer.allocate(LENGTH_SIZE + bytes.length);
+            record.putInt(bytes.length).put(bytes).flip();
+            writeFully(data, record);
+        } else {
+            dataBuffer.putInt(bytes.length).put(bytes);
+        }
+        dataEnd += LENGTH_SIZE + bytes.length;
+        spilled++;
+    }
+
+    private void openSpillFiles() throws IOException {
+        Path directory = spillDirectory != null ? spillDirectory.toPath() : null;
+        Path dataFile = directory != null ? Files.createTempFile(directory, "chat-history", ".dat") : Files.createTempFile("chat-history", ".dat");
+        Path offsetFile = directory != null ? Files.createTempFile(directory, "chat-history", ".idx") : Files.createTempFile("chat-history", ".idx");
+        data = FileChannel.open(dataFile, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        offsets = FileChannel.open(offsetFile, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    //Writes the spilled messages that are still in the buffers to the end of the files
+    private void flushSpill() throws IOException {
+        dataBuffer.flip();
+        writeFully(data, dataBuffer);
+        dataBuffer.clear();
+        offsetBuffer.flip();
+        writeFully(offsets, offsetBuffer);
+        offsetBuffer.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, channel.size());
+        }
+    }
+
+    /**
+     * @return how many messages have been added in total, in memory and on disk
+     */
+    @Override
+    public long size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the index of the oldest message that is still in memory
+     */
+    public long firstInMemory() {
+        lock.lock();
+        try {
+            return Math.max(0, count - recent.length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads a page of messages, from memory or from disk
+     * @param first the index of the first message of the page
+     * @param maxCount the size of the page, fewer messages are returned at the end of the history
+     * @return the messages in the order in which they were added
+     */
+    @Override
+    public List<String> getPage(long first, int maxCount) throws IOException {
+        if (first < 0) {
+            throw new IndexOutOfBoundsException("No message before index 0");
+        }
+        //Whatever is in memory is copied first, the part on disk is read afterwards without holding up add()
+        long end;
+        long onDisk;
+        ArrayList<String> inMemoryPart = new ArrayList<>();
+        lock.lock();
+        try {
+            end = Math.min(count, first + maxCount);
+            long inMemory = Math.max(0, count - recent.length);
+            //Everything before the messages waiting to spill is in the spill files, or is being written to them
+            onDisk = inMemory - toSpill.size();
+            long i = onDisk;
+            for (String waiting : toSpill) {
+                if (i >= end) {
+                    break;
+                }
+                if (i >= first) {
+                    inMemoryPart.add(waiting);
+                }
+                i++;
+            }
+            for (i = Math.max(first, inMemory); i < end; i++) {
+                inMemoryPart.add(recent[(int) (i % recent.length)]);
+            }
+        } finally {
+            lock.unlock();
+        }
+        ArrayList<String> page = new ArrayList<>((int) Math.max(0, end - first));
+        if (first < onDisk) {
+            spillLock.lock();
+            try {
+                //whoever was writing the messages before onDisk has finished with them once we have the files
+                readSpilled(first, (int) (Math.min(end, onDisk) - first), page);
+            } finally {
+                spillLock.unlock();
+            }
+            //add() does not wait for us, so it may have left messages for us to write
+            spillWaiting();
+        }
+        page.addAll(inMemoryPart);
+        return page;
+    }
+
+    /**
+     * Reads the page that ends right before the given message, for scrolling back from there
+     * @param before the index of the message after the page, e.g. size() for the most recent page
+     */
+    public List<String> getPageBefore(long before, int maxCount) throws IOException {
+        long first = Math.max(0, before - maxCount);
+        return getPage(first, (int) (before - first));
+    }
+
+    //Reads the spilled messages first to first+n-1, which all lie next to each other in the data file.
+    //Only called with the spillLock held.
+    private void readSpilled(long first, int n, List<String> page) throws IOException {
+        if (dataBuffer.position() > 0 || offsetBuffer.position() > 0) {
+            flushSpill();
+        }
+        ByteBuffer offsetBytes = ByteBuffer.allocate(n * OFFSET_SIZE);
+        readFully(offsets, offsetBytes, first * OFFSET_SIZE);
+        long start = offsetBytes.getLong(0);
+        //The page ends where the message after it starts, or at the end of the file for the last spilled message
+        long stop;
+        if (first + n < spilled) {
+            ByteBuffer next = ByteBuffer.allocate(OFFSET_SIZE);
+            readFully(offsets, next, (first + n) * OFFSET_SIZE);
+            stop = next.getLong(0);
+        } else {
+            stop = dataEnd;
+        }
+        ByteBuffer records = ByteBuffer.allocate((int) (stop - start));
+        readFully(data, records, start);
+        for (int i = 0; i < n; i++) {
+            byte[] bytes = new byte[records.getInt()];
+            records.get(bytes);
+            page.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("The chat history file ends too early");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Removes all messages, from memory and from disk
+     */
+    public void clear() throws IOException {
+        spillLock.lock();
+        lock.lock();
+        try {
+            Arrays.fill(recent, null);
+            count = 0;
+            toSpill.clear();
+            spilled = 0;
+            dataEnd = 0;
+            dataBuffer.clear();
+            offsetBuffer.clear();
+            if (data != null) {
+                data.truncate(0);
+                offsets.truncate(0);
+            }
+        } finally {
+            lock.unlock();
+            spillLock.unlock();
+        }
+    }
+
+    /**
+     * Closes and deletes the spill files. The history can't be used anymore afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        spillLock.lock();
+        try {
+            if (data != null) {
+                data.close();
+                offsets.close();
+                data = null;
+                offsets = null;
+            }
+        } finally {
+            spillLock.unlock();
+        }
+    }
+}
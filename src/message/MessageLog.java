@@ -0,0 +1,23 @@
+package message;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A chat log that can be read a page at a time, without holding all of it in memory.
+ * Every message has an index, counting from 0 for the oldest message.
+ */
+public interface MessageLog {
+
+    /**
+     * @return how many messages the log holds
+     */
+    long size();
+
+    /**
+     * @param first the index of the first message of the page
+     * @param maxCount the size of the page, fewer messages are returned at the end of the log
+     * @return the messages from oldest to newest
+     */
+    List<String> getPage(long first, int maxCount) throws IOException;
+}
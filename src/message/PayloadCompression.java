@@ -0,0 +1,220 @@
+package message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the text of a message before it is encrypted, since ciphertext can not be compressed any more.
+ *
+ * Every payload starts with a byte that says how the rest of it is stored: STORED as it is, or DEFLATED. A payload
+ * shorter than the threshold is stored, Deflate gains nothing on a few words, and so is a payload that Deflate would
+ * not make any smaller. Deflate starts with a preset dictionary of text that chat messages have in common on both
+ * sides, so that even a message of a few hundred bytes has something to refer back to.
+ *
+ * Every payload is compressed on its own instead of with a context that lasts as long as the connection. The server
+ * sends the very same bytes to every client and the messages are encrypted by the client that wrote them, so there is
+ * no single stream whose history both ends could share. It also means that one message never changes how well
+ * another one compresses, so the length of a ciphertext does not give away what else was said.
+ *
+ * Deflaters and Inflaters hold native memory and are expensive to create, so they are pooled and reset after use.
+ * A pool instead of a ThreadLocal, for the same reason as in CipherEngine.
+ */
+public final class PayloadCompression {
+
+    public static final byte STORED = 0;
+    public static final byte DEFLATED = 1;
+    //Payloads shorter than this are not worth compressing
+    public static final int DEFAULT_THRESHOLD = 256;
+    //Never compresses, but still marks every payload as stored
+    public static final PayloadCompression NONE = new PayloadCompression(0, null);
+
+    //Deflate looks for matches from the end of the dictionary first, so the most common text comes last
+    private static final byte[] DICTIONARY = (" is not a valid channel name You have not joined # is not online"
+            + " Restored messages from the journal Server has been started and is listening for connections on port"
+            + " has disconnected from the server has connected to the server SERVER: "
+            + " http://www. https:// .com the and you that this with have for what are not just about will"
+            + " -> #: ").getBytes(StandardCharsets.UTF_8);
+    private static final ConcurrentLinkedQueue<Inflater> INFLATERS = new ConcurrentLinkedQueue<>();
+
+    private final int threshold;
+    private final Listener listener;
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Told how much every payload that was large enough to be compressed was shrunk, e.g. by the server metrics
+     */
+    public interface Listener {
+
+        /**
+         * @param length the length of the payload
+         * @param compressedLength the length it is sent with, including the byte in front
+         * @param nanos how long compressing it took
+         */
+        void compressed(int length, int compressedLength, long nanos);
+    }
+
+    /**
+     * @param threshold payloads shorter than this many bytes are not compressed, 0 never compresses
+     * @param listener told about every compressed payload, or null
+     */
+    public PayloadCompression(int threshold, Listener listener) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("The compression threshold can't be negative");
+        }
+        this.threshold = threshold;
+        this.listener = listener;
+    }
+
+    /**
+     * @return false if payloads are never compressed
+     */
+    public boolean isEnabled() {
+        return threshold > 0;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @param payload the bytes to send
+     * @return the byte that says how the payload is stored, followed by the payload, compressed if that made it smaller
+     */
+    public byte[] encode(byte[] payload) {
+        if (!isEnabled() || payload.length < threshold) {
+            return stored(payload);
+        }
+        long start = System.nanoTime();
+        byte[] deflated = deflate(payload, 0, payload.length);
+        byte[] encoded = deflated != null ? deflated : stored(payload);
+        if (listener != null) {
+            listener.compressed(payload.length, encoded.length, System.nanoTime() - start);
+        }
+        return encoded;
+    }
+
+    /**
+     * Like encode(byte[]), for a payload that has been written into the buffer from index 1 on. A payload that is
+     * stored as it is gets the byte in front written to index 0, so that it does not have to be copied.
+     * @param buffer index 0 is free, the payload fills the rest
+     * @return the buffer itself, or a new array with the compressed payload
+     */
+    public byte[] encodeInPlace(byte[] buffer) {
+        int length = buffer.length - 1;
+        if (!isEnabled() || length < threshold) {
+            buffer[0] = STORED;
+            return buffer;
+        }
+        long start = System.nanoTime();
+        byte[] encoded = deflate(buffer, 1, length);
+        if (encoded == null) {
+            buffer[0] = STORED;
+            encoded = buffer;
+        }
+        if (listener != null) {
+            listener.compressed(length, encoded.length, System.nanoTime() - start);
+        }
+        return encoded;
+    }
+
+    //Returns null if Deflate does not make the payload smaller. That is known as soon as the output would be as long
+    //as the payload, so the output buffer never has to grow.
+    private byte[] deflate(byte[] payload, int offset, int length) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(payload, offset, length);
+            deflater.finish();
+            byte[] output = new byte[length];
+            output[0] = DEFLATED;
+            int written = 1;
+            while (!deflater.finished() && written < output.length) {
+                written += deflater.deflate(output, written, output.length - written);
+            }
+            return deflater.finished() ? Arrays.copyOf(output, written) : null;
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+    }
+
+    private static byte[] stored(byte[] payload) {
+        byte[] stored = new byte[1 + payload.length];
+        stored[0] = STORED;
+        System.arraycopy(payload, 0, stored, 1, payload.length);
+        return stored;
+    }
+
+    /**
+     * Reverses encode(byte[])
+     * @param encoded the byte that says how the payload is stored, followed by the payload
+     * @return the payload as it was before it was encoded
+     * @throws DataFormatException if the payload is not stored in a known way, or the compressed data is broken
+     */
+    public static byte[] decode(byte[] encoded) throws DataFormatException {
+        if (encoded.length == 0) {
+            throw new DataFormatException("The payload is empty");
+        }
+        if (encoded[0] == STORED) {
+            return Arrays.copyOfRange(encoded, 1, encoded.length);
+        }
+        if (encoded[0] != DEFLATED) {
+            throw new DataFormatException("Unknown payload encoding: " + encoded[0]);
+        }
+        return inflate(encoded);
+    }
+
+    /**
+     * Reverses encode(byte[]) and encodeInPlace(byte[]), without copying a payload that is stored as it is
+     * @return the payload, from the position of the buffer to its limit
+     */
+    public static ByteBuffer decodeToBuffer(byte[] encoded) throws DataFormatException {
+        if (encoded.length > 0 && encoded[0] == STORED) {
+            return ByteBuffer.wrap(encoded, 1, encoded.length - 1);
+        }
+        return ByteBuffer.wrap(decode(encoded));
+    }
+
+    private static byte[] inflate(byte[] encoded) throws DataFormatException {
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        try {
+            inflater.setInput(encoded, 1, encoded.length - 1);
+            //Text usually shrinks to a third or less, the output grows if it needs to
+            byte[] output = new byte[Math.max(64, encoded.length * 4)];
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == output.length) {
+                    //A payload that inflates to more than the largest frame is broken (or malicious)
+                    if (output.length >= WireProtocol.MAX_FRAME_LENGTH) {
+                        throw new DataFormatException("The payload inflates to more than " + WireProtocol.MAX_FRAME_LENGTH + " bytes");
+                    }
+                    output = Arrays.copyOf(output, Math.min(output.length * 2, WireProtocol.MAX_FRAME_LENGTH));
+                }
+                int inflated = inflater.inflate(output, length, output.length - length);
+                length += inflated;
+                if (inflated == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                    } else if (inflater.needsInput()) {
+                        throw new DataFormatException("The compressed payload is cut off");
+                    }
+                }
+            }
+            return length == output.length ? output : Arrays.copyOf(output, length);
+        } finally {
+            inflater.reset();
+            INFLATERS.offer(inflater);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package message;
+
+/**
+ * What a peer says about itself at the start of a connection: the protocol version, and which optional features it
+ * supports. The client offers the highest version it supports and all of its features, the server answers with the
+ * version both of them will use and the features both of them support. See WireProtocol.
+ */
+public final class Preamble {
+
+    //Chat messages and large frames may be compressed, see PayloadCompression
+    public static final byte COMPRESSION = 1;
+
+    private final byte version;
+    private final byte flags;
+
+    public Preamble(byte version, byte flags) {
+        this.version = version;
+        this.flags = flags;
+    }
+
+    public byte getVersion() {
+        return version;
+    }
+
+    public byte getFlags() {
+        return flags;
+    }
+
+    /**
+     * @param flag a feature, e.g. COMPRESSION
+     * @return whether the feature is supported
+     */
+    public boolean supports(byte flag) {
+        return (flags & flag) != 0;
+    }
+}
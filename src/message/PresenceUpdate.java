@@ -0,0 +1,98 @@
+package message;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A change to the list of online users, numbered so that a client can tell whether it has missed one.
+ *
+ * A client gets a SNAPSHOT of the whole list when it connects, and after that only a JOINED or LEFT update whenever
+ * somebody connects or disconnects. Every update has the sequence number one higher than the update before it, and a
+ * snapshot has the sequence number of the last update it includes. A client that sees a gap in the sequence numbers
+ * (because its server dropped some of its frames, see SlowConsumerPolicy.DROP_OLDEST) asks for a new snapshot.
+ */
+public class PresenceUpdate implements Serializable {
+
+    public enum Kind {
+        SNAPSHOT,
+        JOINED,
+        LEFT
+    }
+
+    //The channel whose members changed, or null for the list of all online users
+    private final String channel;
+    private final long sequence;
+    private final Kind kind;
+    //The user who joined or left, null for a snapshot
+    private final String username;
+    //All online users for a snapshot, empty otherwise
+    private final ArrayList<String> onlineUsers;
+
+    private PresenceUpdate(String channel, long sequence, Kind kind, String username, ArrayList<String> onlineUsers) {
+        this.channel = channel;
+        this.sequence = sequence;
+        this.kind = kind;
+        this.username = username;
+        this.onlineUsers = onlineUsers;
+    }
+
+    /**
+     * @param sequence the sequence number of the last update included in the list
+     * @param onlineUsers the usernames of all online users, copied so that later changes don't affect the snapshot
+     */
+    public static PresenceUpdate snapshot(long sequence, List<String> onlineUsers) {
+        return snapshot(null, sequence, onlineUsers);
+    }
+
+    public static PresenceUpdate joined(long sequence, String username) {
+        return joined(null, sequence, username);
+    }
+
+    public static PresenceUpdate left(long sequence, String username) {
+        return left(null, sequence, username);
+    }
+
+    /**
+     * @param channel the channel whose members these are, or null for all online users
+     */
+    public static PresenceUpdate snapshot(String channel, long sequence, List<String> onlineUsers) {
+        return new PresenceUpdate(channel, sequence, Kind.SNAPSHOT, null, new ArrayList<>(onlineUsers));
+    }
+
+    public static PresenceUpdate joined(String channel, long sequence, String username) {
+        return new PresenceUpdate(channel, sequence, Kind.JOINED, username, new ArrayList<>());
+    }
+
+    public static PresenceUpdate left(String channel, long sequence, String username) {
+        return new PresenceUpdate(channel, sequence, Kind.LEFT, username, new ArrayList<>());
+    }
+
+    /**
+     * @return the channel whose members changed, or null if this is about all online users
+     */
+    public String getChannel() {
+        return channel;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public boolean isSnapshot() {
+        return kind == Kind.SNAPSHOT;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public List<String> getOnlineUsers() {
+        return Collections.unmodifiableList(onlineUsers);
+    }
+}
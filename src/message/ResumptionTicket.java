@@ -0,0 +1,30 @@
+package message;
+
+/**
+ * What the server sends in a TICKET frame: the ticket itself, which only the server can read, and the resume key that
+ * is sealed inside it. The client needs the key to prove that the ticket is its own when it resumes its session, so
+ * the key is sent encrypted for the client alone, not with the session key that all clients share.
+ */
+public class ResumptionTicket {
+
+    private final byte[] ticket;
+    private final byte[] wrappedKey;
+
+    /**
+     * @param ticket the ticket as the client sends it back in a RESUME frame
+     * @param wrappedKey the resume key, encrypted with the client's public key after a whole handshake, or with the
+     *                   resume key the client resumed with
+     */
+    public ResumptionTicket(byte[] ticket, byte[] wrappedKey) {
+        this.ticket = ticket;
+        this.wrappedKey = wrappedKey;
+    }
+
+    public byte[] getTicket() {
+        return ticket;
+    }
+
+    public byte[] getWrappedKey() {
+        return wrappedKey;
+    }
+}
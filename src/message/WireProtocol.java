@@ -0,0 +1,639 @@
+package message;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+/**
+ * The binary wire protocol spoken between the client and the server.
+ *
+ * A connection starts with a preamble: the four bytes "CHAT" followed by a version byte and a byte of feature flags,
+ * see Preamble. The client sends the highest version it supports and the features it would like to use, and the
+ * server answers with the version and the features both of them will use. A connection that does not start with the
+ * preamble is closed.
+ *
+ * After the preamble both sides only send frames, laid out as
+ * <pre>
+ *     int length | byte type | payload
+ * </pre>
+ * where the length counts the type byte and the payload. Encrypted messages are sent as their raw ciphertext bytes,
+ * so there are no class descriptors and no reflection involved in reading or writing a frame.
+ *
+ * Version 2 sends AES-GCM ciphertext and numbered presence updates instead of the whole list of online users.
+ * Version 3 adds channels, and presence frames start with the channel they are about.
+ * Version 4 numbers the chat messages and server notices, so that a client that connects can be sent the most recent
+ * ones, or only those it has missed since it was last connected.
+ * Version 5 adds the feature flags to the preamble. With Preamble.COMPRESSION, the text of a message may be compressed
+ * before it is encrypted (see PayloadCompression), and the server may send a large frame inside a COMPRESSED frame.
+ * Version 6 lets the client pick the key exchange in its handshake, see KeyExchange.
+ * Version 7 adds resumption tickets: a client that was connected before can send a RESUME frame with its ticket
+ * instead of a HANDSHAKE, and gets the session key without a new key exchange.
+ * Version 8 encrypts a message as its timestamp, sender and text instead of its formatted text, see Message.
+ * Version 9 sends a resume key with every ticket, and the server answers a RESUME with a RESUME_CHALLENGE that the
+ * client has to sign with that key before it gets the session, see resumeProof().
+ * Version 10 puts the sender of a direct or channel message into its frame, next to the recipient or the channel, and
+ * the sender inside every encrypted message is only a username.
+ * The list above is the history of the format. Each version changed frames in ways the one before can not read, so
+ * MIN_VERSION is VERSION. An older peer is refused rather than misread, and the version byte makes sure it is refused
+ * with a clear reason. Before the binary protocol, clients and servers exchanged Java serialized objects.
+ * That is not supported any more, since Message and the other classes have changed shape since then.
+ */
+public final class WireProtocol {
+
+    //"CHAT" in ASCII
+    public static final int MAGIC = 0x43484154;
+    public static final byte VERSION = 10;
+    //The oldest version this side can still speak
+    public static final byte MIN_VERSION = 10;
+    public static final int PREAMBLE_LENGTH = 6;
+    //The length prefix in front of every frame
+    public static final int LENGTH_FIELD_SIZE = 4;
+    //A frame larger than this is treated as a broken (or malicious) peer
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    //How many random bytes the server sends in a RESUME_CHALLENGE
+    public static final int RESUME_CHALLENGE_LENGTH = 32;
+    private static final String RESUME_PROOF_ALGORITHM = "HmacSHA256";
+    //Keeps a resume proof from being mistaken for a MAC over the same bytes for anything else
+    private static final byte[] RESUME_PROOF_LABEL = "chat resume proof".getBytes(StandardCharsets.US_ASCII);
+
+    private WireProtocol() {
+    }
+
+    public static ByteBuffer encodePreamble(Preamble preamble) {
+        ByteBuffer buffer = ByteBuffer.allocate(PREAMBLE_LENGTH);
+        buffer.putInt(MAGIC);
+        buffer.put(preamble.getVersion());
+        buffer.put(preamble.getFlags());
+        buffer.flip();
+        return buffer;
+    }
+
+    public static Preamble decodePreamble(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.getInt() != MAGIC) {
+            throw new ProtocolException("The peer does not speak the chat wire protocol");
+        }
+        return new Preamble(buffer.get(), buffer.get());
+    }
+
+    /**
+     * Reads a preamble from a blocking stream
+     */
+    public static Preamble readPreamble(DataInputStream inputStream) throws IOException {
+        byte[] preamble = new byte[PREAMBLE_LENGTH];
+        inputStream.readFully(preamble);
+        return decodePreamble(ByteBuffer.wrap(preamble));
+    }
+
+    /**
+     * Picks the version and the features to use, given what the other side supports
+     * @param offered the preamble the client sent
+     * @param flags the features this side supports, e.g. Preamble.COMPRESSION
+     * @return the preamble to answer with, the version and features both sides will use
+     */
+    public static Preamble negotiate(Preamble offered, byte flags) throws ProtocolException {
+        if (offered.getVersion() < MIN_VERSION) {
+            throw new ProtocolException("Unsupported protocol version: " + offered.getVersion());
+        }
+        return new Preamble((byte) Math.min(offered.getVersion(), VERSION), (byte) (offered.getFlags() & flags));
+    }
+
+    //ENCODING
+
+    /**
+     * @param publicKey the public key of the client, its algorithm picks the key exchange
+     * @param sinceSequence the sequence number of the last chat message the client already has, 0 for none
+     */
+    public static ByteBuffer encodeHandshake(String username, PublicKey publicKey, long sinceSequence) throws ProtocolException {
+        byte[] usernameBytes = shortStringBytes(username, "Username");
+        byte[] keyBytes = publicKey.getEncoded();
+        ByteBuffer frame = allocateFrame(FrameType.HANDSHAKE, 2 + usernameBytes.length + 8 + 1 + keyBytes.length);
+        putShortString(frame, usernameBytes);
+        frame.putLong(sinceSequence);
+        frame.put(KeyExchange.forKey(publicKey).getTag());
+        frame.put(keyBytes);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * @param ticket the resumption ticket the server gave the client
+     * @param sinceSequence the sequence number of the last chat message the client already has
+     */
+    public static ByteBuffer encodeResume(String username, byte[] ticket, long sinceSequence) throws ProtocolException {
+        byte[] usernameBytes = shortStringBytes(username, "Username");
+        ByteBuffer frame = allocateFrame(FrameType.RESUME, 2 + usernameBytes.length + 8 + ticket.length);
+        putShortString(frame, usernameBytes);
+        frame.putLong(sinceSequence);
+        frame.put(ticket);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Encodes a resumption ticket as
+     * <pre>
+     *     short ticket length | ticket | wrapped resume key
+     * </pre>
+     */
+    public static ByteBuffer encodeTicket(ResumptionTicket ticket) {
+        byte[] ticketBytes = ticket.getTicket();
+        byte[] wrappedKey = ticket.getWrappedKey();
+        ByteBuffer frame = allocateFrame(FrameType.TICKET, 2 + ticketBytes.length + wrappedKey.length);
+        frame.putShort((short) ticketBytes.length);
+        frame.put(ticketBytes);
+        frame.put(wrappedKey);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Encodes the random bytes the server asks a resuming client to sign
+     */
+    public static ByteBuffer encodeResumeChallenge(byte[] challenge) {
+        ByteBuffer frame = allocateFrame(FrameType.RESUME_CHALLENGE, challenge.length);
+        frame.put(challenge);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * @param resumeKey the resume key that came with the client's ticket
+     * @param challenge the bytes of the server's RESUME_CHALLENGE
+     */
+    public static ByteBuffer encodeResumeProof(SecretKey resumeKey, byte[] challenge, String username) throws NoSuchAlgorithmException, InvalidKeyException {
+        byte[] proof = resumeProof(resumeKey, challenge, username);
+        ByteBuffer frame = allocateFrame(FrameType.RESUME_PROOF, proof.length);
+        frame.put(proof);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Signs a resume challenge: an HMAC-SHA256 under the resume key over a fixed label, the challenge and the username.
+     * The server computes the same to check a client's RESUME_PROOF. The challenge is new for every attempt, so a proof
+     * seen on the wire can not be used again.
+     */
+    public static byte[] resumeProof(SecretKey resumeKey, byte[] challenge, String username) throws NoSuchAlgorithmException, InvalidKeyException {
+        Mac mac = Mac.getInstance(RESUME_PROOF_ALGORITHM);
+        mac.init(new SecretKeySpec(resumeKey.getEncoded(), RESUME_PROOF_ALGORITHM));
+        mac.update(RESUME_PROOF_LABEL);
+        mac.update(challenge);
+        return mac.doFinal(username.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encodes an encrypted message as its sequence number followed by its raw ciphertext
+     * @param frameType HANDSHAKE for the encrypted session key, CHAT or SERVER_NOTICE otherwise
+     */
+    public static ByteBuffer encodeMessage(FrameType frameType, Message message) {
+        byte[] ciphertext = message.getCiphertext();
+        ByteBuffer frame = allocateFrame(frameType, 8 + ciphertext.length);
+        frame.putLong(message.getSequence());
+        frame.put(ciphertext);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Encodes a presence update. A snapshot becomes a PRESENCE frame with the whole list, a user joining or leaving
+     * becomes a PRESENCE_DELTA frame with only that user in it. Both start with the name of the channel the update is
+     * about, which is empty for the list of all online users.
+     */
+    public static ByteBuffer encodePresence(PresenceUpdate update) throws ProtocolException {
+        byte[] channel = shortStringBytes(update.getChannel() == null ? "" : update.getChannel(), "Channel name");
+        if (!update.isSnapshot()) {
+            byte[] name = update.getUsername().getBytes(StandardCharsets.UTF_8);
+            ByteBuffer frame = allocateFrame(FrameType.PRESENCE_DELTA, 2 + channel.length + 8 + 1 + name.length);
+            putShortString(frame, channel);
+            frame.putLong(update.getSequence());
+            frame.put((byte) update.getKind().ordinal());
+            frame.put(name);
+            frame.flip();
+            return frame;
+        }
+        List<String> onlineUsers = update.getOnlineUsers();
+        ArrayList<byte[]> names = new ArrayList<>(onlineUsers.size());
+        int payloadLength = 2 + channel.length + 8 + 4;
+        for (String user : onlineUsers) {
+            byte[] name = user.getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            payloadLength += 2 + name.length;
+        }
+        ByteBuffer frame = allocateFrame(FrameType.PRESENCE, payloadLength);
+        putShortString(frame, channel);
+        frame.putLong(update.getSequence());
+        frame.putInt(names.size());
+        for (byte[] name : names) {
+            putShortString(frame, name);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Encodes the request for a new snapshot of the online users
+     */
+    public static ByteBuffer encodePresenceResync() {
+        ByteBuffer frame = allocateFrame(FrameType.PRESENCE_RESYNC, 0);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Encodes a message for one user as the name of its sender, the name of its recipient and the raw ciphertext.
+     * A client leaves the sender empty, the server fills it in.
+     */
+    public static ByteBuffer encodeDirectMessage(DirectMessage directMessage) throws ProtocolException {
+        return encodeAddressedMessage(FrameType.DIRECT, directMessage.getSender(),
+                shortStringBytes(directMessage.getRecipient(), "Username"), directMessage.getMessage());
+    }
+
+    /**
+     * Encodes a message for the members of a channel as the name of its sender, the name of the channel and the raw
+     * ciphertext. A client leaves the sender empty, the server fills it in.
+     */
+    public static ByteBuffer encodeChannelMessage(ChannelMessage channelMessage) throws ProtocolException {
+        return encodeAddressedMessage(FrameType.CHANNEL, channelMessage.getSender(),
+                shortStringBytes(channelMessage.getChannel(), "Channel name"), channelMessage.getMessage());
+    }
+
+    private static ByteBuffer encodeAddressedMessage(FrameType frameType, String sender, byte[] address, Message message) throws ProtocolException {
+        byte[] senderBytes = shortStringBytes(sender == null ? "" : sender, "Username");
+        byte[] ciphertext = message.getCiphertext();
+        ByteBuffer frame = allocateFrame(frameType, 2 + senderBytes.length + 2 + address.length + ciphertext.length);
+        putShortString(frame, senderBytes);
+        putShortString(frame, address);
+        frame.put(ciphertext);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Encodes a request to join or leave a channel, or to get its members again
+     */
+    public static ByteBuffer encodeChannelRequest(ChannelRequest channelRequest) {
+        byte[] channel = channelRequest.getChannel().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = allocateFrame(FrameType.CHANNEL_REQUEST, 1 + channel.length);
+        frame.put((byte) channelRequest.getKind().ordinal());
+        frame.put(channel);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Encodes the reason why the server turns a client away
+     */
+    public static ByteBuffer encodeError(String reason) {
+        byte[] reasonBytes = reason.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = allocateFrame(FrameType.ERROR, reasonBytes.length);
+        frame.put(reasonBytes);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Encodes an object the server sends to a client
+     * @param frameType the type of frame to send the object as
+     * @param object a Message, a PresenceUpdate for PRESENCE and PRESENCE_DELTA, a DirectMessage for DIRECT,
+     *               a ChannelMessage for CHANNEL, the reason String for ERROR, a ResumptionTicket for TICKET,
+     *               or the challenge bytes for RESUME_CHALLENGE
+     */
+    public static ByteBuffer encodeServerFrame(FrameType frameType, Object object) throws ProtocolException {
+        if (object instanceof PresenceUpdate) {
+            return encodePresence((PresenceUpdate) object);
+        }
+        if (object instanceof DirectMessage) {
+            return encodeDirectMessage((DirectMessage) object);
+        }
+        if (object instanceof ChannelMessage) {
+            return encodeChannelMessage((ChannelMessage) object);
+        }
+        if (frameType == FrameType.ERROR) {
+            return encodeError((String) object);
+        }
+        if (frameType == FrameType.TICKET) {
+            return encodeTicket((ResumptionTicket) object);
+        }
+        if (frameType == FrameType.RESUME_CHALLENGE) {
+            return encodeResumeChallenge((byte[]) object);
+        }
+        return encodeMessage(frameType, (Message) object);
+    }
+
+    /**
+     * Puts a frame inside a COMPRESSED frame, if that makes it smaller
+     * @param frame a whole frame, including its length prefix
+     * @return the COMPRESSED frame, or the frame itself if it is too short to be worth compressing
+     */
+    public static ByteBuffer encodeCompressed(ByteBuffer frame, PayloadCompression compression) {
+        byte[] inner = new byte[frame.remaining() - LENGTH_FIELD_SIZE];
+        frame.duplicate().position(frame.position() + LENGTH_FIELD_SIZE).get(inner);
+        byte[] encoded = compression.encode(inner);
+        if (encoded[0] == PayloadCompression.STORED) {
+            return frame;
+        }
+        ByteBuffer compressed = allocateFrame(FrameType.COMPRESSED, encoded.length);
+        compressed.put(encoded);
+        compressed.flip();
+        return compressed;
+    }
+
+    //A name (of a user or a channel) is written as its length in 2 bytes followed by its UTF-8 bytes
+    private static byte[] shortStringBytes(String string, String what) throws ProtocolException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xffff) {
+            throw new ProtocolException(what + " is too long");
+        }
+        return bytes;
+    }
+
+    private static void putShortString(ByteBuffer frame, byte[] bytes) {
+        frame.putShort((short) bytes.length);
+        frame.put(bytes);
+    }
+
+    private static String getShortString(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.getShort() & 0xffff];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    //The sender of a direct or channel message, which is empty when a client sent it
+    private static String getSenderString(ByteBuffer payload) {
+        String sender = getShortString(payload);
+        return sender.isEmpty() ? null : sender;
+    }
+
+    private static ByteBuffer allocateFrame(FrameType frameType, int payloadLength) {
+        ByteBuffer frame = ByteBuffer.allocate(LENGTH_FIELD_SIZE + 1 + payloadLength);
+        frame.putInt(1 + payloadLength);
+        frame.put(frameType.getTag());
+        return frame;
+    }
+
+    //DECODING
+
+    /**
+     * Measures the next frame in the buffer, starting at its position. The position of the buffer is not changed.
+     * @return the length of the frame including its length prefix, or -1 if the buffer does not hold all of it yet
+     */
+    public static int nextFrameLength(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < LENGTH_FIELD_SIZE) {
+            return -1;
+        }
+        int length = buffer.getInt(buffer.position());
+        checkFrameLength(length);
+        if (buffer.remaining() < LENGTH_FIELD_SIZE + length) {
+            return -1;
+        }
+        return LENGTH_FIELD_SIZE + length;
+    }
+
+    /**
+     * Reads one frame from a blocking stream
+     * @return a buffer holding the type and the payload of the frame
+     */
+    public static ByteBuffer readFrame(DataInputStream inputStream) throws IOException {
+        int length = inputStream.readInt();
+        checkFrameLength(length);
+        byte[] frame = new byte[length];
+        inputStream.readFully(frame);
+        return ByteBuffer.wrap(frame);
+    }
+
+    private static void checkFrameLength(int length) throws ProtocolException {
+        if (length < 1 || length > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Invalid frame length: " + length);
+        }
+    }
+
+    /**
+     * Reads the type of a frame. Afterwards the buffer is positioned at the payload.
+     * @param frame the type and payload of a frame, without the length prefix
+     */
+    public static FrameType readFrameType(ByteBuffer frame) throws ProtocolException {
+        return FrameType.fromTag(frame.get());
+    }
+
+    public static Handshake decodeHandshake(ByteBuffer payload) throws ProtocolException {
+        try {
+            String username = getShortString(payload);
+            long sinceSequence = payload.getLong();
+            KeyExchange keyExchange = KeyExchange.fromTag(payload.get());
+            byte[] keyBytes = new byte[payload.remaining()];
+            payload.get(keyBytes);
+            return new Handshake(username, keyExchange.decodePublicKey(keyBytes), sinceSequence);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            ProtocolException protocolException = new ProtocolException("Invalid handshake frame");
+            protocolException.initCause(e);
+            throw protocolException;
+        }
+    }
+
+    public static Handshake decodeResume(ByteBuffer payload) throws ProtocolException {
+        try {
+            String username = getShortString(payload);
+            long sinceSequence = payload.getLong();
+            byte[] ticket = new byte[payload.remaining()];
+            payload.get(ticket);
+            return new Handshake(username, ticket, sinceSequence);
+        } catch (RuntimeException e) {
+            ProtocolException protocolException = new ProtocolException("Invalid resume frame");
+            protocolException.initCause(e);
+            throw protocolException;
+        }
+    }
+
+    public static ResumptionTicket decodeTicket(ByteBuffer payload) throws ProtocolException {
+        try {
+            byte[] ticket = new byte[payload.getShort() & 0xffff];
+            payload.get(ticket);
+            byte[] wrappedKey = new byte[payload.remaining()];
+            payload.get(wrappedKey);
+            return new ResumptionTicket(ticket, wrappedKey);
+        } catch (RuntimeException e) {
+            ProtocolException protocolException = new ProtocolException("Invalid ticket frame");
+            protocolException.initCause(e);
+            throw protocolException;
+        }
+    }
+
+    public static byte[] decodeResumeChallenge(ByteBuffer payload) throws ProtocolException {
+        if (payload.remaining() != RESUME_CHALLENGE_LENGTH) {
+            throw new ProtocolException("Invalid resume challenge frame");
+        }
+        byte[] challenge = new byte[RESUME_CHALLENGE_LENGTH];
+        payload.get(challenge);
+        return challenge;
+    }
+
+    //The proof is compared with what the server expects, so any length will do here
+    private static byte[] decodeResumeProof(ByteBuffer payload) {
+        byte[] proof = new byte[payload.remaining()];
+        payload.get(proof);
+        return proof;
+    }
+
+    public static Message decodeMessage(ByteBuffer payload) throws ProtocolException {
+        if (payload.remaining() < 8) {
+            throw new ProtocolException("Invalid message frame");
+        }
+        long sequence = payload.getLong();
+        return new Message(decodeCiphertext(payload), sequence);
+    }
+
+    //Messages for one user or one channel are not numbered, they are only their ciphertext
+    private static byte[] decodeCiphertext(ByteBuffer payload) {
+        byte[] ciphertext = new byte[payload.remaining()];
+        payload.get(ciphertext);
+        return ciphertext;
+    }
+
+    /**
+     * Decodes a presence update
+     * @param frameType PRESENCE for a snapshot of all online users (or of a channel's members),
+     *                  PRESENCE_DELTA for a user joining or leaving
+     */
+    public static PresenceUpdate decodePresence(FrameType frameType, ByteBuffer payload) throws ProtocolException {
+        try {
+            String channel = getShortString(payload);
+            if (channel.isEmpty()) {
+                channel = null;
+            }
+            long sequence = payload.getLong();
+            if (frameType == FrameType.PRESENCE_DELTA) {
+                byte kind = payload.get();
+                byte[] name = new byte[payload.remaining()];
+                payload.get(name);
+                String username = new String(name, StandardCharsets.UTF_8);
+                if (kind == PresenceUpdate.Kind.JOINED.ordinal()) {
+                    return PresenceUpdate.joined(channel, sequence, username);
+                } else if (kind == PresenceUpdate.Kind.LEFT.ordinal()) {
+                    return PresenceUpdate.left(channel, sequence, username);
+                }
+                throw new ProtocolException("Invalid presence delta: " + kind);
+            }
+            int count = payload.getInt();
+            if (count < 0) {
+                throw new ProtocolException("Invalid number of users: " + count);
+            }
+            ArrayList<String> onlineUsers = new ArrayList<>(Math.min(count, payload.remaining() / 2));
+            for (int i = 0; i < count; i++) {
+                onlineUsers.add(getShortString(payload));
+            }
+            return PresenceUpdate.snapshot(channel, sequence, onlineUsers);
+        } catch (RuntimeException e) {
+            ProtocolException protocolException = new ProtocolException("Invalid presence frame");
+            protocolException.initCause(e);
+            throw protocolException;
+        }
+    }
+
+    /**
+     * Unpacks the frame inside a COMPRESSED frame
+     * @return the type and payload of the frame inside, without the length prefix
+     */
+    public static ByteBuffer decodeCompressed(ByteBuffer payload) throws ProtocolException {
+        byte[] encoded = new byte[payload.remaining()];
+        payload.get(encoded);
+        try {
+            ByteBuffer frame = ByteBuffer.wrap(PayloadCompression.decode(encoded));
+            if (frame.remaining() < 1 || frame.get(0) == FrameType.COMPRESSED.getTag()) {
+                throw new ProtocolException("Invalid compressed frame");
+            }
+            return frame;
+        } catch (DataFormatException e) {
+            ProtocolException protocolException = new ProtocolException("Invalid compressed frame");
+            protocolException.initCause(e);
+            throw protocolException;
+        }
+    }
+
+    public static DirectMessage decodeDirectMessage(ByteBuffer payload) throws ProtocolException {
+        try {
+            String sender = getSenderString(payload);
+            return new DirectMessage(sender, getShortString(payload), new Message(decodeCiphertext(payload)));
+        } catch (RuntimeException e) {
+            ProtocolException protocolException = new ProtocolException("Invalid direct message frame");
+            protocolException.initCause(e);
+            throw protocolException;
+        }
+    }
+
+    public static ChannelMessage decodeChannelMessage(ByteBuffer payload) throws ProtocolException {
+        try {
+            String sender = getSenderString(payload);
+            return new ChannelMessage(sender, getShortString(payload), new Message(decodeCiphertext(payload)));
+        } catch (RuntimeException e) {
+            ProtocolException protocolException = new ProtocolException("Invalid channel message frame");
+            protocolException.initCause(e);
+            throw protocolException;
+        }
+    }
+
+    public static ChannelRequest decodeChannelRequest(ByteBuffer payload) throws ProtocolException {
+        try {
+            byte kind = payload.get();
+            if (kind < 0 || kind >= ChannelRequest.Kind.values().length) {
+                throw new ProtocolException("Invalid channel request: " + kind);
+            }
+            byte[] channel = new byte[payload.remaining()];
+            payload.get(channel);
+            return new ChannelRequest(ChannelRequest.Kind.values()[kind], new String(channel, StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            ProtocolException protocolException = new ProtocolException("Invalid channel request frame");
+            protocolException.initCause(e);
+            throw protocolException;
+        }
+    }
+
+    public static String decodeError(ByteBuffer payload) {
+        byte[] reason = new byte[payload.remaining()];
+        payload.get(reason);
+        return new String(reason, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes a frame the client sent to the server
+     * @param frame the type and payload of the frame, without the length prefix
+     * @return a Handshake for the first frame (a HANDSHAKE or a RESUME), the proof bytes for a RESUME_PROOF,
+     *         a Message for every chat message after that, a DirectMessage for a
+     *         message to one user, a ChannelMessage or ChannelRequest for channels,
+     *         or FrameType.PRESENCE_RESYNC when the client asks for the online users again
+     */
+    public static Object decodeClientFrame(ByteBuffer frame) throws ProtocolException {
+        FrameType frameType = readFrameType(frame);
+        switch (frameType) {
+            case HANDSHAKE:
+                return decodeHandshake(frame);
+            case RESUME:
+                return decodeResume(frame);
+            case RESUME_PROOF:
+                return decodeResumeProof(frame);
+            case CHAT:
+                return decodeMessage(frame);
+            case DIRECT:
+                return decodeDirectMessage(frame);
+            case CHANNEL:
+                return decodeChannelMessage(frame);
+            case CHANNEL_REQUEST:
+                return decodeChannelRequest(frame);
+            case PRESENCE_RESYNC:
+                return FrameType.PRESENCE_RESYNC;
+            default:
+                throw new ProtocolException("A client can not send " + frameType + " frames");
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package server;
+
+import message.PayloadCompression;
+import message.Preamble;
+import message.WireProtocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * A client connection served by its own thread, which blocks until the client sends something.
+ * The thread can be a platform thread or a virtual thread, see ThreadingMode.
+ * Objects sent to the client go through an OutboundQueue that a second thread writes out, so a client that reads
+ * slowly only blocks its own writer thread and not the thread that broadcast the message.
+ * The writer thread writes everything that is queued into a buffer and only flushes it once the queue is empty (or the
+ * buffer is full), so a burst of broadcasts goes out in a few large writes, while a single frame on an idle connection
+ * still goes out right away.
+ */
+class BlockingClientConnection implements ClientConnection, Runnable {
+
+    private final Socket clientSocket;
+    private final DataInputStream dataInputStream;
+    //The client gets frames that were encoded up front, see OutboundFrame. Only flushed by the writer thread.
+    private final OutputStream outputStream;
+    private final OutboundQueue outboundQueue;
+    private final ServerMetrics metrics;
+    //The compression the client has agreed to, or null
+    private PayloadCompression compression;
+    private ClientHandler clientHandler;
+    private volatile boolean closed = false;
+
+    /**
+     * @param compression the compression the server offers, used if the client asks for it
+     */
+    BlockingClientConnection(Socket clientSocket, ServerSettings settings, ServerMetrics metrics, PayloadCompression compression) throws IOException {
+        this.clientSocket = clientSocket;
+        this.outboundQueue = new OutboundQueue(settings);
+        this.metrics = metrics;
+        clientSocket.setTcpNoDelay(settings.isTcpNoDelay());
+        if (settings.getSendBufferSize() > 0) {
+            clientSocket.setSendBufferSize(settings.getSendBufferSize());
+        }
+
+        //The client speaks first, a connection that does not start with the preamble is refused
+        this.dataInputStream = new DataInputStream(new BufferedInputStream(new MeteredInputStream(clientSocket.getInputStream(), metrics)));
+        this.outputStream = new BufferedOutputStream(new MeteredOutputStream(clientSocket.getOutputStream(), metrics),
+                settings.getWriteBatchSize());
+        Preamble agreed = WireProtocol.negotiate(WireProtocol.readPreamble(dataInputStream),
+                compression.isEnabled() ? Preamble.COMPRESSION : 0);
+        if (agreed.supports(Preamble.COMPRESSION)) {
+            this.compression = compression;
+        }
+        byte[] preamble = WireProtocol.encodePreamble(agreed).array();
+        outputStream.write(preamble);
+        metrics.bytesOut(preamble.length);
+        //the client waits for this before it reads the answer to its handshake
+        outputStream.flush();
+    }
+
+    /**
+     * Starts the thread that writes the outbound queue to the client
+     * @param clientHandler the client handler to notify if writing fails
+     * @param serverModel decides whether the writer runs on a platform thread or a virtual thread
+     */
+    void startWriter(ClientHandler clientHandler, ServerModel serverModel) {
+        this.clientHandler = clientHandler;
+        serverModel.startClientThread(this);
+    }
+
+    /**
+     * Blocks until the client has sent the next object
+     * @return the object sent by the client, see WireProtocol.decodeClientFrame()
+     */
+    public Object readObject() throws IOException {
+        Object object = WireProtocol.decodeClientFrame(WireProtocol.readFrame(dataInputStream));
+        metrics.frameIn();
+        return object;
+    }
+
+    @Override
+    public int getBacklog() {
+        return outboundQueue.size();
+    }
+
+    @Override
+    public void write(OutboundFrame frame, boolean mayWait) {
+        if (!outboundQueue.offer(frame, mayWait)) {
+            disconnectSlowConsumer();
+        }
+    }
+
+    @Override
+    public void awaitRoom(long deadlineNanos) {
+        outboundQueue.awaitRoom(deadlineNanos);
+    }
+
+    private void disconnectSlowConsumer() {
+        //Closing the queue makes any further writes no-ops, so only the first failed write gets here
+        if (outboundQueue.close()) {
+            clientHandler.setDisconnectReason(DisconnectReason.SLOW_CONSUMER);
+            //The reader thread notices the closed socket and lets the client handler clean up
+            closeSocket();
+        }
+    }
+
+    /**
+     * The writer thread. Writes queued frames to the client until the connection is closed.
+     */
+    @Override
+    public void run() {
+        try {
+            OutboundFrame frame = outboundQueue.take();
+            while (frame != null) {
+                metrics.bytesOut(frame.writeTo(outputStream, compression));
+                metrics.frameOut();
+                if (frame.closesConnection()) {
+                    //the client has been told why it is turned away
+                    outputStream.flush();
+                    clientHandler.closeConnection(DisconnectReason.REJECTED);
+                    return;
+                }
+                frame = outboundQueue.poll();
+                if (frame == null) {
+                    //nothing else is waiting, so send what has been gathered before waiting for the next frame
+                    outputStream.flush();
+                    frame = outboundQueue.take();
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                e.printStackTrace();
+                clientHandler.closeConnection(DisconnectReason.CONNECTION_ERROR);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        outboundQueue.close();
+        //Closing the socket also closes the streams on top of it
+        clientSocket.close();
+    }
+
+    private void closeSocket() {
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Counts how often the buffered frames are written to the socket
+     */
+    private static class MeteredOutputStream extends FilterOutputStream {
+
+        private final ServerMetrics metrics;
+
+        MeteredOutputStream(OutputStream outputStream, ServerMetrics metrics) {
+            super(outputStream);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            //FilterOutputStream would write the bytes one at a time
+            out.write(bytes, offset, length);
+            metrics.socketWrite();
+        }
+    }
+
+    /**
+     * Counts the bytes that arrive from the client, as they are read from the socket
+     */
+    private static class MeteredInputStream extends FilterInputStream {
+
+        private final ServerMetrics metrics;
+
+        MeteredInputStream(InputStream inputStream, ServerMetrics metrics) {
+            super(inputStream);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value >= 0) {
+                metrics.bytesIn(1);
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read > 0) {
+                metrics.bytesIn(read);
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package server;
+
+import message.FrameType;
+import message.PresenceUpdate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A named channel and the clients that have joined it.
+ * Like the ClientRegistry, a message to the channel iterates over an array of members that is replaced as a whole
+ * whenever somebody joins or leaves, and the presence updates for the channel are numbered and queued under the same
+ * lock that changes the members.
+ */
+class Channel {
+
+    private final String name;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile ClientHandler[] members = new ClientHandler[0];
+    //The number of the last presence update of this channel, guarded by the lock
+    private long presenceSequence = 0;
+    //Set once the last member has left, the channel is then removed from the ChannelIndex and can't be joined anymore
+    private boolean closed = false;
+
+    Channel(String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Adds a member. The other members hear that the user joined and the new member gets the list of all members.
+     * @return false if the channel has been closed in the meantime, then a new one has to be created
+     */
+    boolean join(ClientHandler clientHandler) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (indexOf(clientHandler) >= 0) {
+                //already a member, just send the list again
+                sendPresenceSnapshot(clientHandler);
+                return true;
+            }
+            broadCast(new OutboundFrame(FrameType.PRESENCE_DELTA, PresenceUpdate.joined(name, ++presenceSequence, clientHandler.getUsername())));
+            ClientHandler[] joined = Arrays.copyOf(members, members.length + 1);
+            joined[members.length] = clientHandler;
+            members = joined;
+            sendPresenceSnapshot(clientHandler);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a member and tells the other members that the user has left
+     * @return true if this was the last member, the channel is closed then
+     */
+    boolean leave(ClientHandler clientHandler) {
+        lock.lock();
+        try {
+            int index = indexOf(clientHandler);
+            if (index >= 0) {
+                ClientHandler[] left = new ClientHandler[members.length - 1];
+                System.arraycopy(members, 0, left, 0, index);
+                System.arraycopy(members, index + 1, left, index, left.length - index);
+                members = left;
+                broadCast(new OutboundFrame(FrameType.PRESENCE_DELTA, PresenceUpdate.left(name, ++presenceSequence, clientHandler.getUsername())));
+            }
+            closed = members.length == 0;
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Only called with the lock held
+    private int indexOf(ClientHandler clientHandler) {
+        for (int i = 0; i < members.length; i++) {
+            if (members[i] == clientHandler) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Sends the list of all members to one member, when it joins or when it has missed an update
+     */
+    void sendPresenceSnapshot(ClientHandler clientHandler) {
+        lock.lock();
+        try {
+            ArrayList<String> usernames = new ArrayList<>(members.length);
+            for (ClientHandler member : members) {
+                usernames.add(member.getUsername());
+            }
+            clientHandler.sendWithoutWaiting(new OutboundFrame(FrameType.PRESENCE, PresenceUpdate.snapshot(name, presenceSequence, usernames)));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues the same frame for every member of the channel, without waiting for room, see ClientRegistry
+     */
+    void broadCast(OutboundFrame frame) {
+        for (ClientHandler member : members) {
+            member.sendWithoutWaiting(frame);
+        }
+    }
+
+    /**
+     * With the BLOCK policy, waits until every member has room for one more frame or the deadline has passed
+     * @param deadlineNanos the System.nanoTime() at which to give up
+     */
+    void awaitRoom(long deadlineNanos) {
+        for (ClientHandler member : members) {
+            member.awaitRoom(deadlineNanos);
+        }
+    }
+}
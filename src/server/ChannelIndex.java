@@ -0,0 +1,55 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * All channels that have at least one member, by name.
+ * A channel is created when the first client joins it and removed again when the last one leaves,
+ * so a message to a channel only costs as much as the channel has members, however many users are online.
+ */
+class ChannelIndex {
+
+    private final ConcurrentHashMap<String, Channel> channels = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a client to a channel, creating the channel if nobody is in it yet
+     */
+    void join(String name, ClientHandler clientHandler) {
+        while (true) {
+            Channel channel = channels.get(name);
+            if (channel == null) {
+                Channel created = new Channel(name);
+                channel = channels.putIfAbsent(name, created);
+                if (channel == null) {
+                    channel = created;
+                }
+            }
+            if (channel.join(clientHandler)) {
+                return;
+            }
+            //the last member left just now and the channel is being removed, make way for a new one
+            channels.remove(name, channel);
+        }
+    }
+
+    /**
+     * Removes a client from a channel, and removes the channel once nobody is left in it
+     */
+    void leave(String name, ClientHandler clientHandler) {
+        Channel channel = channels.get(name);
+        if (channel != null && channel.leave(clientHandler)) {
+            channels.remove(name, channel);
+        }
+    }
+
+    /**
+     * @return the channel with this name, or null if nobody is in it
+     */
+    Channel get(String name) {
+        return channels.get(name);
+    }
+
+    int size() {
+        return channels.size();
+    }
+}
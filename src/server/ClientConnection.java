@@ -0,0 +1,38 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * The transport that a ClientHandler uses to send frames to its client.
+ * The ClientHandler does not need to know whether the client is served by its own blocking thread
+ * or by one of the NIO event loops. It only writes frames and closes the connection when it is done.
+ * Writes are queued and written out later by the connection itself, so a slow client does not hold up the caller
+ * (unless the SlowConsumerPolicy is BLOCK and the caller may wait).
+ */
+interface ClientConnection {
+
+    /**
+     * Queues a frame to be written to the client
+     * @param frame the frame to send, the same frame may be queued to many clients at once
+     * @param mayWait false if the caller must not wait for room in the queue, e.g. because it holds a lock that
+     *                other senders need. The BLOCK policy then disconnects a client with a full queue right away.
+     */
+    void write(OutboundFrame frame, boolean mayWait);
+
+    /**
+     * With the BLOCK policy, waits until there is room for one more frame or the deadline has passed, see
+     * OutboundQueue.awaitRoom(). Returns at once with any other policy, or on a NIO event loop.
+     * @param deadlineNanos the System.nanoTime() at which to give up
+     */
+    void awaitRoom(long deadlineNanos);
+
+    /**
+     * @return how many frames are waiting to be written to the client
+     */
+    int getBacklog();
+
+    /**
+     * Closes the underlying socket. Calling it more than once has no effect.
+     */
+    void close() throws IOException;
+}
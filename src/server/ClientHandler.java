@@ -1,151 +1,494 @@
-package server;
-
-import message.Message;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
-import java.util.ArrayList;
-import java.util.Base64;
-
-public class ClientHandler implements Runnable{
-
-    private ObjectInputStream objectInputStream;
-    private ObjectOutputStream objectOutputStream;
-    private Socket clientSocket;
-    private String username;
-    //Can't be null, otherwise we will not be able to add items to it
-    private static ArrayList<ClientHandler> clientHandlers = new ArrayList<>();
-    private ServerModel serverModel;
-    private SecretKey sessionKey;
-
-    public ClientHandler(Socket clientConnection, ServerModel serverModel) throws IOException, ClassNotFoundException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException {
-        this.clientSocket = clientConnection;
-        this.serverModel = serverModel;
-        //the session key will be sent to the client
-        this.sessionKey = serverModel.getSessionKey();
-
-        clientHandlers.add(this);
-
-        this.objectInputStream = new ObjectInputStream(clientSocket.getInputStream());
-        this.objectOutputStream = new ObjectOutputStream(clientSocket.getOutputStream());
-
-        //read the username that the client sends to the server, this is the first item that client sends
-        this.username = (String) objectInputStream.readObject();
-        //Read the public key that the client sends to the server. This is the second item that the client sends
-        PublicKey publicKey = (PublicKey) objectInputStream.readObject();
-        //write the secret session key to the client and encrypt it with the public key that you read from the client.
-        objectOutputStream.writeObject(new Message(Base64.getEncoder().encodeToString(sessionKey.getEncoded()),publicKey));
-
-        serverModel.addOnlineUser(username);
-        serverModel.addMessage(new Message("SERVER: "+username+" has connected to the server"));
-
-        //encrypt all messages(Message class) that the server sends with session key
-        //otherwise the client will try to decrypt a message that can not be decrypted and it will raise an error
-        broadCastMessage(new Message("SERVER: "+username+" has connected to the server",this.sessionKey));
-        broadCastUsers(serverModel.getOnlineUsers());
-
-
-    }
-
-    private void broadCastUsers(ArrayList<String> onlineUsers) throws IOException {
-        for (ClientHandler clientHandler : clientHandlers){
-            clientHandler.sendUsers(onlineUsers);
-        }
-    }
-
-    public void sendUsers(ArrayList<String> onlineUsers) throws IOException {
-        objectOutputStream.writeObject(onlineUsers);
-        //reset() is necessary to prevent the objectOutputStream from "remembering" an old version of
-        //the onlineUsers array that it has sent, since we will be sending it multiple times. We always want it to
-        //use the newest, up-to-date version of the onlineUsers array
-        objectOutputStream.reset();
-    }
-
-    private void broadCastMessage(Message message) throws IOException {
-        for (ClientHandler clientHandler : clientHandlers){
-            clientHandler.sendMessage(message);
-        }
-    }
-
-    public void sendMessage(Message message) throws IOException {
-        //These messages do not need to be encrypted with session key since they are already encrypted
-        //The server simply receives encrypted message from client and broadcasts it to all other clients.
-        objectOutputStream.writeObject(message);
-    }
-
-    public void readMessage() throws IOException, ClassNotFoundException, NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
-        while (true){
-            Message message = (Message) objectInputStream.readObject();
-            broadCastMessage(message);
-            //we need to decrypt the message that server receives from client before we add it to server log
-            //otherwise we can not read it
-            serverModel.addEncryptedMessage(message);
-        }
-    }
-
-    @Override
-    public void run() {
-        try {
-            readMessage();
-        } catch (IOException e) {
-            closeConnection();
-            e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            closeConnection();
-            e.printStackTrace();
-        } catch (NoSuchPaddingException e) {
-            e.printStackTrace();
-        } catch (IllegalBlockSizeException e) {
-            e.printStackTrace();
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (BadPaddingException e) {
-            e.printStackTrace();
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
-        }
-    }
-
-    private void closeConnection() {
-        try {
-            if (clientSocket.isConnected()) {
-                clientSocket.close();
-            }
-            if (objectInputStream != null) {
-                objectInputStream.close();
-            }
-            if (objectOutputStream != null) {
-                objectOutputStream.close();
-            }
-            //remove the client handler
-            clientHandlers.remove(this);
-            //remove the username and update the server online user list
-            serverModel.removeUser(username);
-            serverModel.addMessage(new Message("SERVER: " + username + " has disconnected from the server"));
-            broadCastMessage(new Message("SERVER: " + username + " has disconnected from the server",this.sessionKey));
-            broadCastUsers(serverModel.getOnlineUsers());
-        } catch (IOException e){
-            e.printStackTrace();
-        } catch (IllegalBlockSizeException e) {
-            e.printStackTrace();
-        } catch (NoSuchPaddingException e) {
-            e.printStackTrace();
-        } catch (BadPaddingException e) {
-            e.printStackTrace();
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
-        }
-    }
-
-}
+package server;
+
+import message.ChannelMessage;
+import message.ChannelRequest;
+import message.CipherEngine;
+import message.DirectMessage;
+import message.FrameType;
+import message.Handshake;
+import message.KeyExchange;
+import message.Message;
+import message.ResumptionTicket;
+import message.WireProtocol;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ClientHandler implements Runnable{
+
+    private ClientConnection connection;
+    //Only set when the client is served by its own blocking thread, the NIO engine pushes objects to handleObject() instead
+    private BlockingClientConnection blockingConnection;
+    private final long connectionId;
+    private String username;
+    private boolean handshakeComplete = false;
+    //Set when the server turns the client away during the handshake, e.g. because its username is taken
+    private volatile boolean rejected = false;
+    //The reader, the writer and the slow consumer policy can all notice that the client is gone
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    //Why the client is disconnected, whoever notices it first gives the reason
+    private final AtomicReference<DisconnectReason> disconnectReason = new AtomicReference<>();
+    //All clients that have completed the handshake, see ClientRegistry
+    private final ClientRegistry clientRegistry;
+    //The channels this client has joined, the ChannelIndex has the members of every channel
+    private final Set<String> channels = ConcurrentHashMap.newKeySet();
+    private final ChannelIndex channelIndex;
+    private ServerModel serverModel;
+    private final ServerMetrics metrics;
+    private SecretKey sessionKey;
+    //The public key from the client's handshake, the resume key of its ticket is sent encrypted with it
+    private PublicKey publicKey;
+    //The resume key of the client's ticket, once the client has sent one. Only used by the thread that reads from
+    //the client, like the rest of the handshake state.
+    private SecretKey resumeKey;
+    //The challenge sent to a client that resumes, null unless its proof is awaited
+    private byte[] resumeChallenge;
+    private long resumeSinceSequence;
+    private long resumeStart;
+
+    /**
+     * Creates a client handler for a connection served by a thread of its own. This blocks until the client has sent
+     * its preamble, so it must be called on that thread and not on the one that accepts connections. The rest of the
+     * handshake is done by run(), so that a client that breaks the handshake only ends its own thread.
+     * @param clientConnection the accepted socket
+     * @param serverModel
+     */
+    public ClientHandler(Socket clientConnection, ServerModel serverModel) throws IOException {
+        this.serverModel = serverModel;
+        this.clientRegistry = serverModel.getClientRegistry();
+        this.channelIndex = serverModel.getChannelIndex();
+        this.connectionId = clientRegistry.nextConnectionId();
+        this.metrics = serverModel.getMetrics();
+        //the session key will be sent to the client
+        this.sessionKey = serverModel.getSessionKey();
+
+        this.blockingConnection = new BlockingClientConnection(clientConnection, serverModel.getSettings(), metrics, serverModel.getCompression());
+        this.connection = blockingConnection;
+        blockingConnection.startWriter(this, serverModel);
+    }
+
+    /**
+     * Creates a client handler for a connection served by the NIO engine.
+     * The handshake is not done here, it happens in handleObject() as the username and public key arrive.
+     * @param connection the non-blocking connection to the client
+     * @param serverModel
+     */
+    ClientHandler(ClientConnection connection, ServerModel serverModel) {
+        this.serverModel = serverModel;
+        this.clientRegistry = serverModel.getClientRegistry();
+        this.channelIndex = serverModel.getChannelIndex();
+        this.connectionId = clientRegistry.nextConnectionId();
+        this.metrics = serverModel.getMetrics();
+        this.sessionKey = serverModel.getSessionKey();
+        this.connection = connection;
+    }
+
+    /**
+     * Handles one object received from the client, the handshake is driven by the objects as they arrive.
+     * Anything that does not fit the state of the handshake is a ProtocolException.
+     * @param object a Handshake with the username and public key, or with the resumption ticket the client was given
+     *               the last time it was connected, followed by the proof bytes that answer the server's challenge.
+     *               After the handshake a Message, a DirectMessage, a ChannelMessage or ChannelRequest, or
+     *               FrameType.PRESENCE_RESYNC to get the whole list of online users again.
+     */
+    void handleObject(Object object) throws IOException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+        if (rejected) {
+            //the connection is closed as soon as the client has been told why
+            return;
+        }
+        if (object instanceof Handshake) {
+            //the client sends its username and public key in one frame
+            if (username != null) {
+                //A client gets one name and one session per connection, a second handshake would rename it in the
+                //middle of the chat
+                throw new ProtocolException("The client has already sent its username");
+            }
+            Handshake handshake = (Handshake) object;
+            this.username = handshake.getUsername();
+            if (handshake.getTicket() != null) {
+                resumeSession(handshake.getTicket(), handshake.getSinceSequence());
+            } else {
+                completeHandshake(handshake.getPublicKey(), handshake.getSinceSequence());
+            }
+        } else if (!handshakeComplete) {
+            //Nothing else is accepted before the handshake, the client could not have a session key yet
+            if (resumeChallenge != null) {
+                if (!(object instanceof byte[])) {
+                    throw new ProtocolException("Expected the resume proof but got " + describe(object));
+                }
+                proveResume((byte[]) object);
+            } else {
+                throw new ProtocolException("Expected the handshake but got " + describe(object));
+            }
+        } else if (object == FrameType.PRESENCE_RESYNC) {
+            clientRegistry.sendPresenceSnapshot(this);
+        } else if (object instanceof DirectMessage) {
+            handleDirectMessage((DirectMessage) object);
+        } else if (object instanceof ChannelMessage) {
+            handleChannelMessage((ChannelMessage) object);
+        } else if (object instanceof ChannelRequest) {
+            handleChannelRequest((ChannelRequest) object);
+        } else if (object instanceof Message) {
+            handleMessage((Message) object);
+        } else {
+            throw new ProtocolException("Unexpected " + describe(object));
+        }
+    }
+
+    //Says what the client sent without showing it, it may be anything
+    private static String describe(Object object) {
+        return object == null ? "null" : object.getClass().getName();
+    }
+
+    private void completeHandshake(PublicKey publicKey, long sinceSequence) throws IOException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+        //write the secret session key to the client and encrypt it with the public key that you read from the client.
+        //The key exchange follows the kind of key the client sent, see KeyExchange
+        long start = System.nanoTime();
+        KeyExchange keyExchange;
+        try {
+            keyExchange = KeyExchange.forKey(publicKey);
+        } catch (IllegalArgumentException e) {
+            reject(e.getMessage());
+            return;
+        }
+        byte[] wrappedSessionKey = keyExchange.wrapSessionKey(sessionKey, publicKey);
+        this.publicKey = publicKey;
+        register(wrappedSessionKey, sinceSequence, false, start);
+    }
+
+    //A client that was connected before skips the key exchange. The ticket only names the user, so the client is first
+    //challenged to show that it also holds the resume key that came with the ticket, see proveResume().
+    private void resumeSession(byte[] ticket, long sinceSequence) {
+        long start = System.nanoTime();
+        SessionTickets sessionTickets = serverModel.getSessionTickets();
+        SecretKey ticketResumeKey = sessionTickets.open(ticket, username);
+        if (ticketResumeKey == null) {
+            reject("The session can not be resumed");
+            return;
+        }
+        resumeKey = ticketResumeKey;
+        resumeSinceSequence = sinceSequence;
+        resumeStart = start;
+        resumeChallenge = sessionTickets.newChallenge();
+        send(new OutboundFrame(FrameType.RESUME_CHALLENGE, resumeChallenge));
+    }
+
+    //Only a client that holds the resume key gets the session, and may take over a connection of the same user that is
+    //still open. The current session key is sent encrypted with the resume key.
+    private void proveResume(byte[] proof) throws IOException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+        byte[] expected = WireProtocol.resumeProof(resumeKey, resumeChallenge, username);
+        //a challenge is only good for one answer
+        resumeChallenge = null;
+        if (!MessageDigest.isEqual(expected, proof)) {
+            reject("The session can not be resumed");
+            return;
+        }
+        byte[] wrappedSessionKey = new CipherEngine(resumeKey).wrapKey(sessionKey);
+        register(wrappedSessionKey, resumeSinceSequence, true, resumeStart);
+    }
+
+    private void register(byte[] wrappedSessionKey, long sinceSequence, boolean resumed, long start) throws IOException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+        //Only start receiving broadcasts once the session key has been sent, since the client expects
+        //the session key to be the first message it reads, so the registry queues it before anything else
+        OutboundFrame sessionKeyFrame = new OutboundFrame(FrameType.HANDSHAKE, new Message(wrappedSessionKey));
+        long keyExchanged = System.nanoTime();
+        boolean added = clientRegistry.add(this, sessionKeyFrame, sinceSequence);
+        if (!added && resumed) {
+            //The client has proven that it holds the resume key of the user's ticket. Its old connection is most likely
+            //gone without the server having noticed yet, e.g. because the network dropped it, so the new one takes over.
+            ClientHandler previous = clientRegistry.get(username);
+            if (previous != null) {
+                previous.closeConnection(DisconnectReason.REPLACED);
+            }
+            added = clientRegistry.add(this, sessionKeyFrame, sinceSequence);
+        }
+        if (!added) {
+            reject("The username " + username + " is already taken");
+            return;
+        }
+        handshakeComplete = true;
+        long registered = System.nanoTime();
+        //a new ticket every time, so that it does not expire while the client keeps coming back. Its resume key is
+        //encrypted for this client alone: with its public key, or with the resume key it has just proven it holds.
+        SessionTickets sessionTickets = serverModel.getSessionTickets();
+        if (sessionTickets.isEnabled()) {
+            try {
+                SecretKey newResumeKey = sessionTickets.newResumeKey();
+                byte[] wrappedResumeKey = resumed ? new CipherEngine(resumeKey).wrapKey(newResumeKey)
+                        : KeyExchange.forKey(publicKey).wrapSessionKey(newResumeKey, publicKey);
+                send(new OutboundFrame(FrameType.TICKET, new ResumptionTicket(sessionTickets.issue(username, newResumeKey), wrappedResumeKey)));
+            } catch (GeneralSecurityException e) {
+                //the client can still do the whole handshake the next time
+                e.printStackTrace();
+            }
+        }
+
+        serverModel.updateOnlineUsers();
+        broadCastNotice(username + (resumed ? " has reconnected to the server" : " has connected to the server"));
+        metrics.handshakeCompleted(start, keyExchanged, registered, resumed);
+    }
+
+    //Tells the client why it can't join, and closes the connection once that has been written
+    private void reject(String reason) {
+        rejected = true;
+        setDisconnectReason(DisconnectReason.REJECTED);
+        connection.write(OutboundFrame.closing(FrameType.ERROR, reason), true);
+    }
+
+    /**
+     * Queues a frame to be written to this client alone. With the BLOCK policy the caller may wait for room, so it
+     * must not hold any lock that other senders need.
+     */
+    void send(OutboundFrame frame) {
+        connection.write(frame, true);
+    }
+
+    /**
+     * Queues a frame without ever waiting for room, for a broadcast or any other caller that holds a lock. With the
+     * BLOCK policy a client whose queue is still full is disconnected, see awaitRoom().
+     */
+    void sendWithoutWaiting(OutboundFrame frame) {
+        connection.write(frame, false);
+    }
+
+    /**
+     * With the BLOCK policy, waits until this client has room for one more frame or the deadline has passed
+     * @param deadlineNanos the System.nanoTime() at which to give up
+     */
+    void awaitRoom(long deadlineNanos) {
+        connection.awaitRoom(deadlineNanos);
+    }
+
+    //With the BLOCK policy, this is where a sender waits for slow clients: before its broadcast, on its own thread and
+    //with no lock held, so that it only holds up itself. The broadcast itself never waits.
+    private long broadcastDeadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(serverModel.getSettings().getSlowConsumerTimeoutMillis());
+    }
+
+    /**
+     * @return how many frames are waiting to be written to this client
+     */
+    int getOutboundBacklog() {
+        return connection.getBacklog();
+    }
+
+    long getConnectionId() {
+        return connectionId;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    private void broadCastMessage(Message message) {
+        //These messages do not need to be encrypted with session key since they are already encrypted
+        //The server simply receives encrypted message from client and broadcasts it to all other clients.
+        clientRegistry.awaitRoom(broadcastDeadline());
+        clientRegistry.broadCastChat(FrameType.CHAT, message);
+    }
+
+    /**
+     * Sends a message from the server itself, such as a user connecting or disconnecting, to every client
+     * and adds it to the server log
+     * @param notice the text of the message
+     */
+    private void broadCastNotice(String notice) throws IllegalBlockSizeException, NoSuchPaddingException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+        serverModel.addMessage(new Message(Message.SERVER, notice));
+        //encrypt all messages(Message class) that the server sends with session key
+        //otherwise the client will try to decrypt a message that can not be decrypted and it will raise an error.
+        //It is encrypted once here and every client gets the same ciphertext
+        long start = System.nanoTime();
+        Message encrypted = new Message(Message.SERVER, notice, serverModel.getCipherEngine(), serverModel.getCompression());
+        metrics.cryptoDone(start);
+        clientRegistry.awaitRoom(broadcastDeadline());
+        clientRegistry.broadCastChat(FrameType.SERVER_NOTICE, encrypted);
+    }
+
+    /**
+     * Delivers a message to the one user it is meant for, found by name in the registry, and echoes it back to the
+     * sender. It costs the same however many users are online. The server does not decrypt it for its own log.
+     */
+    private void handleDirectMessage(DirectMessage directMessage) throws IllegalBlockSizeException, NoSuchPaddingException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+        ClientHandler recipient = clientRegistry.get(directMessage.getRecipient());
+        if (recipient == null) {
+            sendNotice(directMessage.getRecipient() + " is not online");
+            return;
+        }
+        //the recipient is told who the message is from, as this connection has authenticated it
+        OutboundFrame frame = new OutboundFrame(FrameType.DIRECT, new DirectMessage(username, directMessage.getRecipient(), directMessage.getMessage()));
+        recipient.send(frame);
+        if (recipient != this) {
+            send(frame);
+        }
+    }
+
+    /**
+     * Delivers a message to the members of a channel only. Like direct messages, it is not decrypted for the server log.
+     */
+    private void handleChannelMessage(ChannelMessage channelMessage) throws IllegalBlockSizeException, NoSuchPaddingException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+        Channel channel = channels.contains(channelMessage.getChannel()) ? channelIndex.get(channelMessage.getChannel()) : null;
+        if (channel == null) {
+            sendNotice("You have not joined #" + channelMessage.getChannel());
+            return;
+        }
+        channel.awaitRoom(broadcastDeadline());
+        channel.broadCast(new OutboundFrame(FrameType.CHANNEL, new ChannelMessage(username, channel.getName(), channelMessage.getMessage())));
+    }
+
+    private void handleChannelRequest(ChannelRequest channelRequest) throws IllegalBlockSizeException, NoSuchPaddingException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+        String name = channelRequest.getChannel();
+        switch (channelRequest.getKind()) {
+            case JOIN:
+                if (!ChannelRequest.isValidChannelName(name)) {
+                    sendNotice("#" + name + " is not a valid channel name");
+                    return;
+                }
+                channels.add(name);
+                channelIndex.join(name, this);
+                if (closed.get()) {
+                    //the client disconnected while joining, and closeConnection() may have missed this channel
+                    leaveChannel(name);
+                }
+                break;
+            case LEAVE:
+                leaveChannel(name);
+                break;
+            case RESYNC:
+                Channel channel = channels.contains(name) ? channelIndex.get(name) : null;
+                if (channel != null) {
+                    channel.sendPresenceSnapshot(this);
+                }
+                break;
+        }
+    }
+
+    private void leaveChannel(String name) {
+        if (channels.remove(name)) {
+            channelIndex.leave(name, this);
+        }
+    }
+
+    /**
+     * Sends a message from the server to this client only
+     * @param notice the text of the message
+     */
+    private void sendNotice(String notice) throws IllegalBlockSizeException, NoSuchPaddingException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+        long start = System.nanoTime();
+        Message encrypted = new Message(Message.SERVER, notice, serverModel.getCipherEngine(), serverModel.getCompression());
+        metrics.cryptoDone(start);
+        send(new OutboundFrame(FrameType.SERVER_NOTICE, encrypted));
+    }
+
+    public void readMessage() throws IOException, NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        //the writer closes the connection once a rejected client has been told why
+        while (!rejected){
+            handleObject(blockingConnection.readObject());
+        }
+    }
+
+    private void handleMessage(Message message) throws IOException, NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        //we need to decrypt the message that server receives from client before we add it to server log
+        //otherwise we can not read it. Decrypting it first also checks that it was encrypted with the session key and
+        //not changed on the way, a message that fails that throws BadPaddingException and is never broadcast.
+        //A message that says it is from another user throws ProtocolException and is not broadcast either.
+        serverModel.addEncryptedMessage(message, username);
+        broadCastMessage(message);
+    }
+
+    @Override
+    public void run() {
+        try {
+            readMessage();
+        } catch (EOFException e) {
+            //the client has closed the connection
+            closeConnection(DisconnectReason.CLIENT_CLOSED);
+        } catch (ProtocolException e) {
+            closeConnection(DisconnectReason.PROTOCOL_ERROR);
+            e.printStackTrace();
+        } catch (IOException e) {
+            closeConnection(DisconnectReason.CONNECTION_ERROR);
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            //whatever the client sent, only its own connection is closed
+            closeConnection(DisconnectReason.PROTOCOL_ERROR);
+            e.printStackTrace();
+        } catch (IllegalBlockSizeException | BadPaddingException e) {
+            //the client sent a message that does not decrypt with the session key
+            closeConnection(DisconnectReason.PROTOCOL_ERROR);
+            e.printStackTrace();
+        } catch (NoSuchPaddingException e) {
+            closeConnection(DisconnectReason.CONNECTION_ERROR);
+            e.printStackTrace();
+        } catch (NoSuchAlgorithmException e) {
+            closeConnection(DisconnectReason.CONNECTION_ERROR);
+            e.printStackTrace();
+        } catch (InvalidKeyException e) {
+            closeConnection(DisconnectReason.CONNECTION_ERROR);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Gives the reason for a disconnect that is about to be noticed elsewhere, e.g. by the reader once the socket has
+     * been closed. Only the first reason that is given counts.
+     */
+    void setDisconnectReason(DisconnectReason reason) {
+        disconnectReason.compareAndSet(null, reason);
+    }
+
+    void closeConnection(DisconnectReason reason) {
+        setDisconnectReason(reason);
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        metrics.disconnected(disconnectReason.get());
+        try {
+            connection.close();
+            //A client that disconnects before finishing the handshake was never announced to anyone
+            if (!handshakeComplete) {
+                return;
+            }
+            if (disconnectReason.get() == DisconnectReason.SLOW_CONSUMER) {
+                //only for the server log, the others just hear that the user has left
+                serverModel.addMessage(new Message(Message.SERVER, username + " was disconnected for not keeping up with its messages"));
+            }
+            //remove the client handler and tell everybody else that the user has left
+            clientRegistry.remove(this);
+            for (String channel : channels) {
+                leaveChannel(channel);
+            }
+            //update the server online user list
+            serverModel.updateOnlineUsers();
+            broadCastNotice(username + " has disconnected from the server");
+        } catch (IOException e){
+            e.printStackTrace();
+        } catch (IllegalBlockSizeException e) {
+            e.printStackTrace();
+        } catch (NoSuchPaddingException e) {
+            e.printStackTrace();
+        } catch (BadPaddingException e) {
+            e.printStackTrace();
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        } catch (InvalidKeyException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,267 @@
+package server;
+
+import message.FrameType;
+import message.Message;
+import message.PresenceUpdate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * All clients that have completed the handshake, indexed by connection id and by username.
+ * This is the one list that both the broadcasts and the list of online users are taken from.
+ *
+ * Lookups and broadcasts never take a lock: the indexes are concurrent maps, and a broadcast iterates over an array
+ * that is replaced as a whole whenever a client joins or leaves. Joining and leaving are rare compared to messages,
+ * so they take a lock and copy the array, which also keeps the clients in the order in which they joined.
+ *
+ * The same lock numbers the presence updates and queues them for the clients, so every client receives them in the
+ * order they are numbered, see PresenceUpdate.
+ *
+ * Chat messages and server notices for everybody are numbered as well, and the most recent ones are kept as the frames
+ * they were sent in. A client that joins is sent those frames as they are, without encrypting or encoding any of them
+ * again. Numbering a message, keeping it and queueing it for everybody happens under a lock of its own, and a client
+ * is only added to the broadcasts under that same lock, right after the kept frames have been queued for it, so it
+ * gets every message exactly once and in order.
+ *
+ * Nothing is ever queued under these locks in a way that waits for room, whatever the SlowConsumerPolicy. With BLOCK,
+ * a sender waits for the slow clients before it broadcasts, see awaitRoom(), and a client that is still full when the
+ * broadcast comes is disconnected. So a slow client holds up the senders of the messages it is sent, each on its own
+ * thread and for at most the slow consumer timeout, but never a broadcast that is under way or a client that joins.
+ */
+class ClientRegistry {
+
+    //What a client is sent when it joins besides the kept messages: the session key, the list of online users, its
+    //resumption ticket and the notice that it has connected. All of them have to fit in its outbound queue.
+    static final int JOIN_FRAMES = 4;
+
+    private final ConcurrentHashMap<Long, ClientHandler> byConnectionId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ClientHandler> byUsername = new ConcurrentHashMap<>();
+    private final AtomicLong connectionIds = new AtomicLong();
+    private final ServerMetrics metrics;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile ClientHandler[] clientHandlers = new ClientHandler[0];
+    //The number of the last presence update, guarded by the lock
+    private long presenceSequence = 0;
+
+    private final ReentrantLock chatLock = new ReentrantLock();
+    //The most recent chat messages and server notices, the frame of message n is in slot n % length
+    private final OutboundFrame[] recentFrames;
+    //The number of the last chat message, guarded by the chatLock. It starts from the clock, so that the numbers keep
+    //growing when the server is restarted and a client that reconnects can't mistake new messages for ones it has.
+    private long chatSequence = System.currentTimeMillis() * 1000;
+
+    /**
+     * @param replaySize how many of the most recent chat messages are sent to a client when it joins
+     * @param metrics where the time it takes to queue a broadcast for everybody is recorded
+     */
+    ClientRegistry(int replaySize, ServerMetrics metrics) {
+        this.recentFrames = new OutboundFrame[replaySize];
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return a new id for a connection, unique for as long as the server runs
+     */
+    long nextConnectionId() {
+        return connectionIds.incrementAndGet();
+    }
+
+    /**
+     * Adds a client, unless another client already uses its username.
+     * Everybody who is already online hears that the user joined, and the new client gets the whole list of online
+     * users instead.
+     * @param firstFrame the frame the new client has to receive before anything else, the encrypted session key
+     * @param sinceSequence the number of the last chat message the client already has, 0 for none. The kept
+     *                      messages after it are sent to the client right after the first frame.
+     * @return false if the username is taken, then nothing is sent to anybody. True if the client was added, or had
+     * already been added, in which case nothing is sent either.
+     */
+    boolean add(ClientHandler clientHandler, OutboundFrame firstFrame, long sinceSequence) {
+        lock.lock();
+        try {
+            if (byConnectionId.get(clientHandler.getConnectionId()) == clientHandler) {
+                return true;
+            }
+            //Only this lock adds usernames, so nobody can take the name between this check and the put below
+            if (byUsername.containsKey(clientHandler.getUsername())) {
+                return false;
+            }
+            //Queued before the client can be found by its name, so nothing can overtake it
+            clientHandler.sendWithoutWaiting(firstFrame);
+            byUsername.put(clientHandler.getUsername(), clientHandler);
+            byConnectionId.put(clientHandler.getConnectionId(), clientHandler);
+            broadCast(new OutboundFrame(FrameType.PRESENCE_DELTA, PresenceUpdate.joined(++presenceSequence, clientHandler.getUsername())));
+            chatLock.lock();
+            try {
+                replay(clientHandler, sinceSequence);
+                ClientHandler[] added = Arrays.copyOf(clientHandlers, clientHandlers.length + 1);
+                added[clientHandlers.length] = clientHandler;
+                clientHandlers = added;
+            } finally {
+                chatLock.unlock();
+            }
+            sendPresenceSnapshot(clientHandler);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a client and tells everybody else that the user has left
+     * @return false if the client was not in the registry
+     */
+    boolean remove(ClientHandler clientHandler) {
+        lock.lock();
+        try {
+            if (!byConnectionId.remove(clientHandler.getConnectionId(), clientHandler)) {
+                return false;
+            }
+            String username = removeUsername(clientHandler);
+            int matches = 0;
+            for (ClientHandler registered : clientHandlers) {
+                if (registered == clientHandler) {
+                    matches++;
+                }
+            }
+            ClientHandler[] removed = new ClientHandler[clientHandlers.length - matches];
+            int i = 0;
+            for (ClientHandler registered : clientHandlers) {
+                if (registered != clientHandler) {
+                    removed[i++] = registered;
+                }
+            }
+            clientHandlers = removed;
+            broadCast(new OutboundFrame(FrameType.PRESENCE_DELTA, PresenceUpdate.left(++presenceSequence, username)));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Frees the name the client was added under, which is looked up by the client and not by its current username.
+    //Only called with the lock held.
+    private String removeUsername(ClientHandler clientHandler) {
+        if (byUsername.remove(clientHandler.getUsername(), clientHandler)) {
+            return clientHandler.getUsername();
+        }
+        for (Map.Entry<String, ClientHandler> entry : byUsername.entrySet()) {
+            if (entry.getValue() == clientHandler) {
+                byUsername.remove(entry.getKey(), clientHandler);
+                return entry.getKey();
+            }
+        }
+        return clientHandler.getUsername();
+    }
+
+    /**
+     * Sends the whole list of online users to one client, when it joins or when it has missed an update
+     */
+    void sendPresenceSnapshot(ClientHandler clientHandler) {
+        lock.lock();
+        try {
+            clientHandler.sendWithoutWaiting(new OutboundFrame(FrameType.PRESENCE, PresenceUpdate.snapshot(presenceSequence, getUsernames())));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Queues the kept messages after sinceSequence for a client, only called with the chatLock held
+    private void replay(ClientHandler clientHandler, long sinceSequence) {
+        if (sinceSequence > chatSequence) {
+            //a number this server has not given out, so the client does not have any of its messages
+            sinceSequence = 0;
+        }
+        long first = Math.max(sinceSequence + 1, chatSequence - recentFrames.length + 1);
+        for (long sequence = first; sequence <= chatSequence; sequence++) {
+            OutboundFrame frame = recentFrames[(int) (sequence % recentFrames.length)];
+            //empty until that many messages have been sent
+            if (frame != null) {
+                clientHandler.sendWithoutWaiting(frame);
+            }
+        }
+    }
+
+    /**
+     * Numbers a chat message or server notice, keeps it for clients that join later, and queues it for every client
+     * @param frameType CHAT or SERVER_NOTICE
+     */
+    void broadCastChat(FrameType frameType, Message message) {
+        chatLock.lock();
+        try {
+            OutboundFrame frame = new OutboundFrame(frameType, message.withSequence(++chatSequence));
+            if (recentFrames.length > 0) {
+                recentFrames[(int) (chatSequence % recentFrames.length)] = frame;
+            }
+            broadCast(frame);
+        } finally {
+            chatLock.unlock();
+        }
+    }
+
+    /**
+     * Queues the same frame for every client. The frame is encoded once, however many clients there are.
+     */
+    void broadCast(OutboundFrame frame) {
+        //This only queues the frame for every client and never waits for room, since it may run under the locks
+        long start = System.nanoTime();
+        for (ClientHandler clientHandler : clientHandlers) {
+            clientHandler.sendWithoutWaiting(frame);
+        }
+        metrics.broadcastFannedOut(start);
+    }
+
+    /**
+     * With the BLOCK policy, waits until every client has room for one more frame or the deadline has passed. A sender
+     * calls this before it broadcasts, without holding any lock, so that a slow client only holds up that sender.
+     * @param deadlineNanos the System.nanoTime() at which to give up
+     */
+    void awaitRoom(long deadlineNanos) {
+        for (ClientHandler clientHandler : clientHandlers) {
+            clientHandler.awaitRoom(deadlineNanos);
+        }
+    }
+
+    /**
+     * @return the client with this username, or null if nobody with that name is online
+     */
+    ClientHandler get(String username) {
+        return byUsername.get(username);
+    }
+
+    /**
+     * @return the client with this connection id, or null if it is not (or no longer) online
+     */
+    ClientHandler get(long connectionId) {
+        return byConnectionId.get(connectionId);
+    }
+
+    /**
+     * @return all clients in the order in which they joined. The array is never changed, so it can be iterated while
+     * clients keep joining and leaving, but it must not be modified by the caller.
+     */
+    ClientHandler[] snapshot() {
+        return clientHandlers;
+    }
+
+    /**
+     * @return the usernames of all clients in the order in which they joined
+     */
+    ArrayList<String> getUsernames() {
+        ClientHandler[] snapshot = clientHandlers;
+        ArrayList<String> usernames = new ArrayList<>(snapshot.length);
+        for (ClientHandler clientHandler : snapshot) {
+            usernames.add(clientHandler.getUsername());
+        }
+        return usernames;
+    }
+
+    int size() {
+        return clientHandlers.length;
+    }
+}
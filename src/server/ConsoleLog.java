@@ -0,0 +1,32 @@
+package server;
+
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Writes the server log to standard output, for a server that runs without a window
+ */
+class ConsoleLog implements ServerObserver {
+
+    private final PrintStream out;
+
+    ConsoleLog(PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void addMessage(String message) {
+        //every message already ends with a line break
+        out.print(message);
+    }
+
+    @Override
+    public void updateUsers() {
+        //joins and leaves are already in the log as messages
+    }
+
+    @Override
+    public void showMessages(List<String> messages) {
+        out.println("Loaded a chat, showing its last " + messages.size() + " messages");
+    }
+}
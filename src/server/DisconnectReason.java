@@ -0,0 +1,26 @@
+package server;
+
+/**
+ * Why a client was disconnected, counted by the ServerMetrics
+ */
+enum DisconnectReason {
+    //The client closed the connection itself
+    CLIENT_CLOSED,
+    //Reading from or writing to the socket failed, e.g. the connection was reset
+    CONNECTION_ERROR,
+    //The client sent something that is not part of the protocol
+    PROTOCOL_ERROR,
+    //The client did not keep up with its messages, see SlowConsumerPolicy
+    SLOW_CONSUMER,
+    //The server turned the client away during the handshake, e.g. because its username is taken
+    REJECTED,
+    //The client resumed its session on a new connection before the server noticed that the old one was gone
+    REPLACED;
+
+    /**
+     * @return the name in lower case with spaces, e.g. "slow consumer"
+     */
+    String describe() {
+        return name().toLowerCase().replace('_', ' ');
+    }
+}
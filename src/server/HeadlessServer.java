@@ -0,0 +1,61 @@
+package server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * Runs the server without a window, for machines without a display. It starts listening right away and writes its
+ * log to standard output. Swing and AWT are never loaded.
+ * Takes the same arguments as Server, e.g. --config=server.properties --port=4000 --journal=/var/lib/chat, and
+ * --metrics-interval=&lt;seconds&gt; to write the server metrics to standard output every so often.
+ */
+public class HeadlessServer {
+
+    private static final String USAGE = "Usage: HeadlessServer [--config=<file>] [--<name>=<value> ...]";
+
+    public static void main(String[] args) throws IOException, GeneralSecurityException, ClassNotFoundException {
+        System.setProperty("java.awt.headless", "true");
+        ServerSettings settings;
+        try {
+            settings = ServerSettings.fromArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        } catch (UncheckedIOException e) {
+            //the file given with --config can not be read
+            System.err.println(e.getMessage() + ": " + e.getCause().getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        ServerModel serverModel = new ServerModel(settings);
+        serverModel.addObserver(new ConsoleLog(System.out));
+        if (settings.getMetricsIntervalSeconds() > 0) {
+            startMetricsLog(serverModel.getMetrics(), settings.getMetricsIntervalSeconds());
+        }
+        //blocks for as long as the server runs, except in ThreadingMode.NIO where the event loops keep it running
+        serverModel.startServer();
+    }
+
+    //Writes the metrics to standard output every so often, for servers that nobody watches over JMX
+    private static void startMetricsLog(final ServerMetrics metrics, final int intervalSeconds) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(intervalSeconds * 1000L);
+                        System.out.print("Server metrics\n" + metrics.dump());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "metrics-log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,111 @@
+package server;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Counts how long something took, in nanoseconds, so that percentiles can be read off later.
+ *
+ * Every power of two is split into 8 buckets, so a percentile is off by at most an eighth of its value, and the
+ * buckets cover everything from a nanosecond to centuries. Recording only increments a few LongAdders, which spread
+ * their count over several cells when many threads record at once, so it never takes a lock and threads don't fight
+ * over one counter. Reading adds the cells up, which is slower but only happens when somebody looks at the metrics.
+ * The load generator uses it for the latencies it measures from the client side.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(new LongBinaryOperator() {
+        @Override
+        public long applyAsLong(long left, long right) {
+            return Math.max(left, right);
+        }
+    }, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos how long it took
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            //System.nanoTime() never goes back, but a caller could still pass a bad value
+            nanos = 0;
+        }
+        buckets[bucketOf(nanos)].increment();
+        total.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    //Values below SUB_BUCKETS have a bucket each, above that every power of two has SUB_BUCKETS buckets
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    //The largest value that falls into a bucket
+    static long highestValueIn(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Takes the percentiles of everything recorded so far. Values recorded while it runs may or may not be part of it.
+     */
+    public LatencySummary summarize() {
+        long[] counts = new long[BUCKETS];
+        long recorded = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            recorded += counts[i];
+        }
+        long largest = max.get();
+        return new LatencySummary(recorded, recorded == 0 ? 0 : total.sum() / recorded,
+                percentile(counts, recorded, 0.5, largest), percentile(counts, recorded, 0.99, largest),
+                percentile(counts, recorded, 0.999, largest), largest);
+    }
+
+    private static long percentile(long[] counts, long recorded, double fraction, long largest) {
+        if (recorded == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * recorded);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueIn(i), largest);
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * Forgets everything recorded so far
+     */
+    public void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        total.reset();
+        max.reset();
+    }
+}
@@ -0,0 +1,68 @@
+package server;
+
+/**
+ * The percentiles of a LatencyHistogram at one moment, in nanoseconds. Shown by JMX as a composite value.
+ */
+public class LatencySummary {
+
+    private final long count;
+    private final long meanNanos;
+    private final long p50Nanos;
+    private final long p99Nanos;
+    private final long p999Nanos;
+    private final long maxNanos;
+
+    LatencySummary(long count, long meanNanos, long p50Nanos, long p99Nanos, long p999Nanos, long maxNanos) {
+        this.count = count;
+        this.meanNanos = meanNanos;
+        this.p50Nanos = p50Nanos;
+        this.p99Nanos = p99Nanos;
+        this.p999Nanos = p999Nanos;
+        this.maxNanos = maxNanos;
+    }
+
+    /**
+     * @return how many times were recorded
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public long getMeanNanos() {
+        return meanNanos;
+    }
+
+    public long getP50Nanos() {
+        return p50Nanos;
+    }
+
+    public long getP99Nanos() {
+        return p99Nanos;
+    }
+
+    public long getP999Nanos() {
+        return p999Nanos;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "count " + count + ", mean " + format(meanNanos) + ", p50 " + format(p50Nanos) + ", p99 " + format(p99Nanos)
+                + ", p99.9 " + format(p999Nanos) + ", max " + format(maxNanos);
+    }
+
+    //e.g. 850ns, 12.5us or 3.2ms
+    static String format(long nanos) {
+        if (nanos < 1000) {
+            return nanos + "ns";
+        } else if (nanos < 1000000) {
+            return String.format("%.1fus", nanos / 1e3);
+        } else if (nanos < 1000000000) {
+            return String.format("%.1fms", nanos / 1e6);
+        }
+        return String.format("%.2fs", nanos / 1e9);
+    }
+}
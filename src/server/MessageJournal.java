@@ -0,0 +1,308 @@
+package server;
+
+import message.MessageHistory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of every message in the server log, so that the log survives a crash or restart.
+ *
+ * The journal is split into segment files named after the index of their first message. When a segment has grown past
+ * the segment size, the next message starts a new one, and only the most recent segments are kept. Every message is
+ * stored as a record:
+ * <pre>
+ *     int length | int CRC32 of the text | UTF-8 text
+ * </pre>
+ * A crash can leave the last record half written, its checksum tells it apart when the journal is read back.
+ *
+ * Writing to disk and forcing it to the device would be far too slow to do for every message on the thread that
+ * received it. append() therefore only adds the record to a buffer, and a thread of its own writes out everything that
+ * has been buffered and forces it to the device in one go (a group commit), at most one sync interval later. A crash
+ * can lose at most the messages of the last sync interval.
+ *
+ * If the disk falls so far behind that too much is waiting to be written, append() waits for it for a short while on
+ * threads that may block, and drops the message from the journal straight away on a NIO event loop, which must never
+ * wait. Dropped messages are counted in the server metrics, the chat itself is not held up.
+ */
+class MessageJournal implements Closeable {
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int RECORD_HEADER_SIZE = 8;
+    //append() waits or drops once this much is waiting to be written, so a disk that can't keep up can't fill the heap
+    private static final int MAX_PENDING_BYTES = 8 * 1024 * 1024;
+    //How long append() waits at most for room, on a thread that may wait
+    private static final long MAX_APPEND_WAIT_MILLIS = 1000;
+
+    private final File directory;
+    private final long segmentSize;
+    private final int retainedSegments;
+    private final long syncIntervalMillis;
+    private final ServerMetrics metrics;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition syncRequested = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    //The records that have been appended since the last group commit, guarded by the lock
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private int pendingRecords = 0;
+    private boolean closed = false;
+    //Only used by the sync thread, which swaps it with pending
+    private ByteArrayOutputStream writing = new ByteArrayOutputStream();
+
+    //The segment files from oldest to newest, the last one is the one being written. Only used by the sync thread
+    //once the journal has been opened.
+    private final ArrayDeque<Path> segments = new ArrayDeque<>();
+    private FileChannel segment;
+    //The index of the next message that will be written
+    private long nextIndex = 0;
+    private Thread syncThread;
+    //What open() had to repair, for the server log
+    private final List<String> repairs = new ArrayList<>();
+
+    /**
+     * @param directory the directory the segment files are kept in, it is created if it does not exist yet
+     * @param segmentSize how many bytes a segment may grow to before the next one is started
+     * @param retainedSegments how many segments are kept, older ones are deleted
+     * @param syncIntervalMillis how long a message may wait before it is written and forced to disk
+     * @param metrics counts the messages that are dropped because the disk can't keep up
+     */
+    MessageJournal(File directory, long segmentSize, int retainedSegments, long syncIntervalMillis, ServerMetrics metrics) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.retainedSegments = retainedSegments;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Reads back every message in the journal and starts writing new messages after them.
+     * A record that was only partly written when the server went down is cut off, see getRepairs().
+     * @param history where the messages that are read back are added to
+     * @return how many messages were read back
+     */
+    long open(MessageHistory history) throws IOException {
+        Files.createDirectories(directory.toPath());
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+        long recovered = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            long firstIndex = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            long before = history.size();
+            long validLength = recover(file, history);
+            long records = history.size() - before;
+            if (validLength < file.length()) {
+                repairs.add("Cut off a damaged record at byte " + validLength + " of journal segment " + name);
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                    channel.truncate(validLength);
+                }
+            }
+            segments.add(file.toPath());
+            nextIndex = firstIndex + records;
+            recovered += records;
+        }
+        if (segments.isEmpty()) {
+            startSegment();
+        } else {
+            segment = FileChannel.open(segments.getLast(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        syncThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                syncLoop();
+            }
+        }, "message-journal");
+        syncThread.setDaemon(true);
+        syncThread.start();
+        return recovered;
+    }
+
+    /**
+     * @return what open() had to repair, e.g. a record that was cut off, one line each
+     */
+    List<String> getRepairs() {
+        return repairs;
+    }
+
+    //Adds the records of one segment to the history, returns the length of the part of the file that is intact
+    private long recover(File file, MessageHistory history) throws IOException {
+        long validLength = 0;
+        CRC32 crc = new CRC32();
+        try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(file.toPath()), 64 * 1024)) {
+            DataInputStream dataInputStream = new DataInputStream(inputStream);
+            while (true) {
+                byte[] text;
+                int checksum;
+                try {
+                    int length = dataInputStream.readInt();
+                    checksum = dataInputStream.readInt();
+                    if (length < 0 || validLength + RECORD_HEADER_SIZE + length > file.length()) {
+                        return validLength;
+                    }
+                    text = new byte[length];
+                    dataInputStream.readFully(text);
+                } catch (EOFException e) {
+                    return validLength;
+                }
+                crc.reset();
+                crc.update(text);
+                if ((int) crc.getValue() != checksum) {
+                    return validLength;
+                }
+                history.add(new String(text, StandardCharsets.UTF_8));
+                validLength += RECORD_HEADER_SIZE + text.length;
+            }
+        }
+    }
+
+    /**
+     * Adds a message to the journal. It returns right away, the message is on disk one sync interval later at most.
+     * @param mayWait whether the caller may wait a little for a disk that has fallen behind. False on a NIO event loop,
+     *                the message is then dropped from the journal if there is no room for it.
+     */
+    void append(String message, boolean mayWait) {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(text);
+        //the record is put together before taking the lock, so the lock is only held to copy it
+        byte[] record = new byte[RECORD_HEADER_SIZE + text.length];
+        ByteBuffer.wrap(record).putInt(text.length).putInt((int) crc.getValue()).put(text);
+        lock.lock();
+        try {
+            long waitNanos = mayWait ? TimeUnit.MILLISECONDS.toNanos(MAX_APPEND_WAIT_MILLIS) : 0;
+            while (pending.size() >= MAX_PENDING_BYTES && !closed && waitNanos > 0) {
+                waitNanos = notFull.awaitNanos(waitNanos);
+            }
+            if (closed) {
+                return;
+            }
+            if (pending.size() >= MAX_PENDING_BYTES) {
+                metrics.journalDropped();
+                return;
+            }
+            pending.write(record, 0, record.length);
+            pendingRecords++;
+            if (pending.size() >= MAX_PENDING_BYTES / 2) {
+                //don't wait for the interval to run out when a lot is coming in
+                syncRequested.signal();
+            }
+        } catch (InterruptedException e) {
+            //the thread is being stopped, the message only misses the journal
+            Thread.currentThread().interrupt();
+            metrics.journalDropped();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void syncLoop() {
+        boolean running = true;
+        while (running) {
+            int records;
+            lock.lock();
+            try {
+                if (pendingRecords == 0 && !closed) {
+                    syncRequested.awaitNanos(TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis));
+                }
+                running = !closed;
+                //swap the buffers, so that messages can be appended while this batch is written
+                ByteArrayOutputStream batch = pending;
+                pending = writing;
+                writing = batch;
+                records = pendingRecords;
+                pendingRecords = 0;
+                notFull.signalAll();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            if (records == 0) {
+                continue;
+            }
+            try {
+                write(records);
+            } catch (IOException e) {
+                //the messages of this batch are lost from the journal, the chat itself keeps going
+                e.printStackTrace();
+            }
+            writing.reset();
+        }
+    }
+
+    //Writes one batch to the current segment and forces it to the device, only called by the sync thread
+    private void write(int records) throws IOException {
+        if (segment.size() >= segmentSize) {
+            segment.force(false);
+            segment.close();
+            startSegment();
+            deleteOldSegments();
+        }
+        writing.writeTo(Channels.newOutputStream(segment));
+        segment.force(false);
+        nextIndex += records;
+    }
+
+    private void startSegment() throws IOException {
+        Path path = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, nextIndex, SEGMENT_SUFFIX)).toPath();
+        segment = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segments.add(path);
+    }
+
+    private void deleteOldSegments() throws IOException {
+        while (segments.size() > retainedSegments) {
+            Files.deleteIfExists(segments.removeFirst());
+        }
+    }
+
+    /**
+     * Writes out whatever is still waiting and closes the journal. Messages appended afterwards are not journaled.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            syncRequested.signal();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            syncThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        segment.close();
+    }
+}
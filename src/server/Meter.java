@@ -0,0 +1,84 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events, such as accepted connections, and how many there have been a second lately.
+ *
+ * The rate is a moving average over about a minute, which is updated every 5 seconds: the events of those 5 seconds
+ * move it a twelfth of the way towards their own rate. Marking an event only increments LongAdders and reads the
+ * clock; whichever thread first notices that 5 seconds have passed updates the average.
+ */
+class Meter {
+
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final double TICK_SECONDS = 5.0;
+    //How far every tick moves the average, for a one minute average with a tick every 5 seconds
+    private static final double ALPHA = 1 - Math.exp(-TICK_SECONDS / 60);
+
+    private final LongAdder count = new LongAdder();
+    //The events since the last tick
+    private final LongAdder uncounted = new LongAdder();
+    private final AtomicLong lastTick = new AtomicLong(System.nanoTime());
+    //Only written by the thread that won the tick
+    private volatile double ratePerSecond = 0;
+    private volatile boolean started = false;
+
+    void mark() {
+        mark(1);
+    }
+
+    void mark(long events) {
+        tickIfDue();
+        count.add(events);
+        uncounted.add(events);
+    }
+
+    private void tickIfDue() {
+        long previous = lastTick.get();
+        long age = System.nanoTime() - previous;
+        if (age < TICK_NANOS) {
+            return;
+        }
+        //only one thread gets to move the tick forward, and it updates the average for every tick that has passed
+        if (lastTick.compareAndSet(previous, previous + age - age % TICK_NANOS)) {
+            for (long ticks = age / TICK_NANOS; ticks > 0; ticks--) {
+                tick();
+            }
+        }
+    }
+
+    private void tick() {
+        double instantRate = uncounted.sumThenReset() / TICK_SECONDS;
+        if (started) {
+            ratePerSecond += ALPHA * (instantRate - ratePerSecond);
+        } else {
+            ratePerSecond = instantRate;
+            started = true;
+        }
+    }
+
+    /**
+     * Counts from zero again, the rate is left alone
+     */
+    void resetCount() {
+        count.reset();
+    }
+
+    /**
+     * @return how many events there have been in total
+     */
+    long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return how many events there have been a second, averaged over about the last minute
+     */
+    double getRatePerSecond() {
+        tickIfDue();
+        return ratePerSecond;
+    }
+}
@@ -0,0 +1,325 @@
+package server;
+
+import message.PayloadCompression;
+import message.Preamble;
+import message.WireProtocol;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A client connection served by a NIO event loop.
+ * Incoming bytes are collected until they hold the preamble or a complete frame, which is then decoded and passed to
+ * the ClientHandler. Outgoing frames wait in an OutboundQueue, and the event loop writes them out whenever the socket
+ * is ready for more.
+ * Everything that is queued when the event loop gets to the connection is sent with one gathering write, straight from
+ * the shared frames without copying them, so a burst of broadcasts costs a few system calls instead of one per frame.
+ */
+class NioClientConnection implements ClientConnection {
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    //A single frame larger than this is treated as a broken (or malicious) client
+    private static final int MAX_FRAME_SIZE = WireProtocol.LENGTH_FIELD_SIZE + WireProtocol.MAX_FRAME_LENGTH;
+    //How many frames one gathering write takes at most, the write batch size limits their bytes
+    private static final int MAX_GATHERED_FRAMES = 64;
+
+    private final SocketChannel socketChannel;
+    private final NioEventLoop eventLoop;
+    private final ServerMetrics metrics;
+    //The compression the server offers, and the one the client has agreed to (null until then, or if it has not)
+    private final PayloadCompression offeredCompression;
+    private PayloadCompression compression;
+    private SelectionKey selectionKey;
+    private ClientHandler clientHandler;
+    private volatile boolean closed = false;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private boolean preambleRead = false;
+
+    //Outgoing frames wait in the queue until the socket is ready for them
+    private final OutboundQueue outboundQueue;
+    private final int writeBatchSize;
+    //The frames that are being written at the moment, from the first one the socket has not fully accepted yet
+    private final ByteBuffer[] gathered = new ByteBuffer[MAX_GATHERED_FRAMES];
+    private int gatheredStart = 0;
+    private int gatheredEnd = 0;
+    //Whether the connection is to be closed once the gathered frames have been written
+    private boolean closeAfterGathered = false;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled.set(false);
+            flush();
+        }
+    };
+
+    NioClientConnection(SocketChannel socketChannel, NioEventLoop eventLoop, ServerSettings settings, ServerMetrics metrics, PayloadCompression compression) throws IOException {
+        this.socketChannel = socketChannel;
+        this.eventLoop = eventLoop;
+        this.metrics = metrics;
+        this.offeredCompression = compression;
+        this.outboundQueue = new OutboundQueue(settings);
+        this.writeBatchSize = settings.getWriteBatchSize();
+        socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, settings.isTcpNoDelay());
+        if (settings.getSendBufferSize() > 0) {
+            socketChannel.setOption(StandardSocketOptions.SO_SNDBUF, settings.getSendBufferSize());
+        }
+    }
+
+    void setClientHandler(ClientHandler clientHandler) {
+        this.clientHandler = clientHandler;
+    }
+
+    /**
+     * Registers the connection with the event loop's selector.
+     * Must be called on the event loop's thread.
+     */
+    void register(Selector selector) throws IOException {
+        selectionKey = socketChannel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Called by the event loop when there are bytes to read
+     */
+    void onReadable() {
+        try {
+            int read = socketChannel.read(readBuffer);
+            if (read == -1) {
+                connectionLost(DisconnectReason.CLIENT_CLOSED);
+                return;
+            }
+            metrics.bytesIn(read);
+            readBuffer.flip();
+            readFrames();
+            readBuffer.compact();
+            if (!readBuffer.hasRemaining()) {
+                growReadBuffer();
+            }
+        } catch (ProtocolException e) {
+            e.printStackTrace();
+            connectionLost(DisconnectReason.PROTOCOL_ERROR);
+        } catch (IOException e) {
+            e.printStackTrace();
+            connectionLost(DisconnectReason.CONNECTION_ERROR);
+        }
+    }
+
+    private void readFrames() throws IOException {
+        if (!preambleRead) {
+            if (readBuffer.remaining() < WireProtocol.PREAMBLE_LENGTH) {
+                return;
+            }
+            Preamble agreed = WireProtocol.negotiate(WireProtocol.decodePreamble(readBuffer),
+                    offeredCompression.isEnabled() ? Preamble.COMPRESSION : 0);
+            if (agreed.supports(Preamble.COMPRESSION)) {
+                compression = offeredCompression;
+            }
+            preambleRead = true;
+            //Tell the client which version and features we will use, before anything else is sent
+            writeFirst(WireProtocol.encodePreamble(agreed));
+        }
+        int frameLength = WireProtocol.nextFrameLength(readBuffer);
+        while (frameLength >= 0 && !closed) {
+            int frameStart = readBuffer.position();
+            //The frame is decoded straight out of the read buffer, without the length prefix
+            ByteBuffer frame = readBuffer.slice(frameStart + WireProtocol.LENGTH_FIELD_SIZE, frameLength - WireProtocol.LENGTH_FIELD_SIZE);
+            handleObject(WireProtocol.decodeClientFrame(frame));
+            readBuffer.position(frameStart + frameLength);
+            frameLength = WireProtocol.nextFrameLength(readBuffer);
+        }
+    }
+
+    private void handleObject(Object object) throws IOException {
+        metrics.frameIn();
+        try {
+            clientHandler.handleObject(object);
+        } catch (IllegalBlockSizeException | BadPaddingException e) {
+            //The client sent a message that does not decrypt with the session key. It has not been passed on, and a
+            //client that has the key never sends one, so it is disconnected.
+            e.printStackTrace();
+            connectionLost(DisconnectReason.PROTOCOL_ERROR);
+        } catch (GeneralSecurityException e) {
+            //the server could not handle the message, the connection itself is still fine
+            e.printStackTrace();
+        }
+    }
+
+    //The buffer is full but still does not hold a complete frame, so make room for the rest of it
+    private void growReadBuffer() throws ProtocolException {
+        if (readBuffer.capacity() >= MAX_FRAME_SIZE) {
+            throw new ProtocolException("frame larger than " + MAX_FRAME_SIZE + " bytes");
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_FRAME_SIZE));
+        readBuffer.flip();
+        grown.put(readBuffer);
+        readBuffer = grown;
+    }
+
+    /**
+     * Called by the event loop when the socket can accept more bytes
+     */
+    void onWritable() {
+        flush();
+    }
+
+    @Override
+    public void write(OutboundFrame frame, boolean mayWait) {
+        if (closed) {
+            return;
+        }
+        //Waiting for room only makes sense on a thread outside the engine. This connection's event loop is the one that
+        //empties the queue, and any other event loop would hold up all of its own connections while it waits.
+        if (!outboundQueue.offer(frame, mayWait && !NioEventLoop.inAnyEventLoop())) {
+            //Closing the queue makes any further writes no-ops, so only the first failed write gets here
+            if (!outboundQueue.close()) {
+                return;
+            }
+            //counted and logged by the client handler once the event loop has closed the connection
+            clientHandler.setDisconnectReason(DisconnectReason.SLOW_CONSUMER);
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    connectionLost(DisconnectReason.SLOW_CONSUMER);
+                }
+            });
+            return;
+        }
+        scheduleFlush();
+    }
+
+    @Override
+    public void awaitRoom(long deadlineNanos) {
+        //for the same reason as in write()
+        if (!closed && !NioEventLoop.inAnyEventLoop()) {
+            outboundQueue.awaitRoom(deadlineNanos);
+        }
+    }
+
+    //This is the flush point. Even on the event loop's own thread the flush waits until the loop has handled every
+    //socket that was ready, so that all the frames queued meanwhile go out together.
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(flushTask);
+        }
+    }
+
+    //Sends the preamble, before anything has been queued
+    private void writeFirst(ByteBuffer buffer) {
+        gathered[0] = buffer;
+        gatheredStart = 0;
+        gatheredEnd = 1;
+        flush();
+    }
+
+    //Writes queued frames for as long as the socket accepts them. Only runs on the event loop's thread.
+    private void flush() {
+        if (closed || selectionKey == null) {
+            return;
+        }
+        try {
+            while (true) {
+                if (gatheredStart == gatheredEnd) {
+                    if (closeAfterGathered) {
+                        //the client has been told why it is turned away
+                        connectionLost(DisconnectReason.REJECTED);
+                        return;
+                    }
+                    if (!gather()) {
+                        break;
+                    }
+                }
+                metrics.bytesOut(socketChannel.write(gathered, gatheredStart, gatheredEnd - gatheredStart));
+                metrics.socketWrite();
+                while (gatheredStart < gatheredEnd && !gathered[gatheredStart].hasRemaining()) {
+                    gathered[gatheredStart++] = null;
+                }
+                if (gatheredStart < gatheredEnd) {
+                    //The socket buffer is full, continue when the selector says it is writable again
+                    selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            selectionKey.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            e.printStackTrace();
+            connectionLost(DisconnectReason.CONNECTION_ERROR);
+        }
+    }
+
+    /**
+     * Takes the queued frames for the next write, up to the write batch size
+     * @return false if nothing is queued
+     */
+    private boolean gather() throws IOException {
+        gatheredStart = 0;
+        gatheredEnd = 0;
+        long bytes = 0;
+        while (gatheredEnd < gathered.length && bytes < writeBatchSize) {
+            OutboundFrame frame = outboundQueue.poll();
+            if (frame == null) {
+                break;
+            }
+            //every connection gets its own view of the shared bytes, so it can keep its own position
+            ByteBuffer buffer = frame.binaryFrame(compression);
+            gathered[gatheredEnd++] = buffer;
+            bytes += buffer.remaining();
+            metrics.frameOut();
+            if (frame.closesConnection()) {
+                //nothing is sent after it
+                closeAfterGathered = true;
+                break;
+            }
+        }
+        return gatheredEnd > 0;
+    }
+
+    /**
+     * Called by the event loop when handling this connection threw something unexpected. Must be called on the
+     * event loop's thread.
+     */
+    void failed() {
+        try {
+            connectionLost(DisconnectReason.PROTOCOL_ERROR);
+        } catch (RuntimeException e) {
+            //cleaning up failed as well, at least make sure the socket is closed
+            e.printStackTrace();
+            try {
+                close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    //The client went away, let the client handler clean up and tell the other users
+    private void connectionLost(DisconnectReason reason) {
+        if (!closed) {
+            clientHandler.closeConnection(reason);
+        }
+    }
+
+    @Override
+    public int getBacklog() {
+        return outboundQueue.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (selectionKey != null) {
+            selectionKey.cancel();
+        }
+        socketChannel.close();
+        outboundQueue.close();
+    }
+}
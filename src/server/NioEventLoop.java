@@ -0,0 +1,148 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One thread with its own Selector. It waits until any of its connections can be read from or written to,
+ * and handles them one after another. Other threads never touch the selector directly, they hand their work
+ * to the event loop with execute() instead.
+ */
+class NioEventLoop implements Runnable {
+
+    private final NioServerEngine serverEngine;
+    private final Selector selector;
+    //Set on the thread of every event loop, so that a connection can tell that it must not wait, whichever loop it
+    //belongs to
+    private static final ThreadLocal<NioEventLoop> CURRENT = new ThreadLocal<>();
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private Thread thread;
+
+    NioEventLoop(NioServerEngine serverEngine) throws IOException {
+        this.serverEngine = serverEngine;
+        this.selector = Selector.open();
+    }
+
+    void start(String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * @return true on the thread of any event loop. Such a thread serves many connections, so it must never wait for
+     * one of them.
+     */
+    static boolean inAnyEventLoop() {
+        return CURRENT.get() != null;
+    }
+
+    /**
+     * Runs the task on this event loop's thread
+     * @param task the task to run, it must not block
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    void registerServerChannel(ServerSocketChannel serverSocketChannel) throws IOException {
+        serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Starts serving a newly accepted client. Must be called on this event loop's thread.
+     * @param socketChannel the accepted, non-blocking channel
+     * @param serverModel the server model that the client handler reports to
+     */
+    void registerClient(SocketChannel socketChannel, ServerModel serverModel) {
+        try {
+            NioClientConnection connection = new NioClientConnection(socketChannel, this, serverModel.getSettings(), serverModel.getMetrics(),
+                    serverModel.getCompression());
+            connection.setClientHandler(new ClientHandler(connection, serverModel));
+            connection.register(selector);
+        } catch (IOException e) {
+            e.printStackTrace();
+            try {
+                socketChannel.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        CURRENT.set(this);
+        while (true) {
+            try {
+                //Don't go to sleep in select() if there is already work waiting
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+                runTasks();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    handleKey(key);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task = tasks.poll();
+        while (task != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                //a task that fails must not take the other connections on this event loop down with it
+                e.printStackTrace();
+            }
+            task = tasks.poll();
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        try {
+            if (key.isAcceptable()) {
+                serverEngine.acceptConnections((ServerSocketChannel) key.channel());
+                return;
+            }
+            NioClientConnection connection = (NioClientConnection) key.attachment();
+            if (key.isReadable()) {
+                connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.onWritable();
+            }
+        } catch (CancelledKeyException e) {
+            //the connection was closed while we were handling it, there is nothing more to do
+        } catch (RuntimeException e) {
+            //Whatever one client sent, only its own connection is closed. The event loop keeps serving the others,
+            //and it may be the one that accepts new connections.
+            e.printStackTrace();
+            if (key.attachment() instanceof NioClientConnection) {
+                ((NioClientConnection) key.attachment()).failed();
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A non-blocking alternative to the thread-per-client loop in ServerModel.startServer().
+ * A small fixed set of event loops accepts, reads, decodes and writes for every connected client, so the number of
+ * threads no longer grows with the number of users. The first event loop also accepts new connections and
+ * hands them out to the event loops in turn.
+ */
+class NioServerEngine {
+
+    private final ServerModel serverModel;
+    private final NioEventLoop[] eventLoops;
+    private ServerSocketChannel serverSocketChannel;
+    private int nextEventLoop = 0;
+
+    NioServerEngine(ServerModel serverModel, int eventLoopCount) throws IOException {
+        this.serverModel = serverModel;
+        this.eventLoops = new NioEventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new NioEventLoop(this);
+        }
+    }
+
+    /**
+     * Binds the server port and starts the event loops. Returns as soon as the server is listening.
+     * @param address the address and port to listen on
+     */
+    void start(InetSocketAddress address) throws IOException {
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(address);
+        serverSocketChannel.configureBlocking(false);
+        //Register before the loop thread starts, afterwards only the loop thread itself may touch its selector
+        eventLoops[0].registerServerChannel(serverSocketChannel);
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i].start("nio-event-loop-" + i);
+        }
+    }
+
+    /**
+     * Accepts every pending connection and hands each of them to the next event loop.
+     * Called by the first event loop when the server channel is ready.
+     */
+    void acceptConnections(ServerSocketChannel serverSocketChannel) {
+        try {
+            SocketChannel socketChannel = serverSocketChannel.accept();
+            while (socketChannel != null) {
+                serverModel.getMetrics().connectionAccepted();
+                socketChannel.configureBlocking(false);
+                final NioEventLoop eventLoop = eventLoops[nextEventLoop];
+                nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+                final SocketChannel acceptedChannel = socketChannel;
+                eventLoop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        eventLoop.registerClient(acceptedChannel, serverModel);
+                    }
+                });
+                socketChannel = serverSocketChannel.accept();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package server;
+
+import message.FrameType;
+import message.PayloadCompression;
+import message.WireProtocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An object to send to one or more clients, together with its encoded bytes.
+ * A broadcast creates a single OutboundFrame and hands it to every recipient, so the object is encoded at most once
+ * no matter how many clients receive it, and every connection writes the very same bytes.
+ *
+ * Clients that asked for compression get the list of online users inside a COMPRESSED frame. That is compressed once
+ * too, the first time such a client needs it. Every other frame is mostly ciphertext, which does not compress.
+ */
+final class OutboundFrame {
+
+    private final FrameType frameType;
+    private final Object object;
+    //The connection is closed once this frame has been written
+    private final boolean closesConnection;
+    //Encoded the first time a client needs them. The lock is only held while encoding in memory.
+    private byte[] binaryBytes;
+    private byte[] compressedBytes;
+
+    /**
+     * @param frameType the type of frame to send the object as
+     * @param object a Message, a PresenceUpdate for FrameType.PRESENCE and FrameType.PRESENCE_DELTA,
+     *               or the reason String for FrameType.ERROR
+     */
+    OutboundFrame(FrameType frameType, Object object) {
+        this(frameType, object, false);
+    }
+
+    private OutboundFrame(FrameType frameType, Object object, boolean closesConnection) {
+        this.frameType = frameType;
+        this.object = object;
+        this.closesConnection = closesConnection;
+    }
+
+    /**
+     * Creates the last frame for a client, the connection is closed as soon as it has been written
+     */
+    static OutboundFrame closing(FrameType frameType, Object object) {
+        return new OutboundFrame(frameType, object, true);
+    }
+
+    FrameType getFrameType() {
+        return frameType;
+    }
+
+    boolean closesConnection() {
+        return closesConnection;
+    }
+
+    /**
+     * @return false for the frames a client can't do without, such as the session key, the resumption ticket and the
+     * reason it is turned away. The slow consumer policy never drops these.
+     */
+    boolean isDroppable() {
+        return !closesConnection && frameType != FrameType.HANDSHAKE && frameType != FrameType.TICKET
+                && frameType != FrameType.RESUME_CHALLENGE;
+    }
+
+    /**
+     * @param compression the compression the client has agreed to, or null
+     * @return a read-only view of the frame in the binary wire protocol
+     */
+    ByteBuffer binaryFrame(PayloadCompression compression) throws IOException {
+        return ByteBuffer.wrap(binaryBytes(compression)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the frame to a blocking stream
+     * @param outputStream the stream to the client
+     * @param compression the compression the client has agreed to, or null
+     * @return how many bytes were written
+     */
+    int writeTo(OutputStream outputStream, PayloadCompression compression) throws IOException {
+        byte[] bytes = binaryBytes(compression);
+        outputStream.write(bytes);
+        return bytes.length;
+    }
+
+    private synchronized byte[] binaryBytes(PayloadCompression compression) throws IOException {
+        if (binaryBytes == null) {
+            ByteBuffer frame = WireProtocol.encodeServerFrame(frameType, object);
+            binaryBytes = frame.array();
+        }
+        if (compression == null || frameType != FrameType.PRESENCE) {
+            return binaryBytes;
+        }
+        //The server has one PayloadCompression for all of its clients, so one compressed copy is enough
+        if (compressedBytes == null) {
+            compressedBytes = WireProtocol.encodeCompressed(ByteBuffer.wrap(binaryBytes), compression).array();
+        }
+        return compressedBytes;
+    }
+}
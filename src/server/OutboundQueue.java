@@ -0,0 +1,187 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of frames waiting to be written to one client.
+ * A broadcast only puts its frame in every recipient's queue, and every connection writes out its own queue,
+ * so one slow client no longer holds up the delivery to everybody else. When a client falls so far behind that its
+ * queue is full, the SlowConsumerPolicy decides what happens, but it never drops the frames of the handshake, see
+ * OutboundFrame.isDroppable().
+ * The queue uses a ReentrantLock rather than synchronized, so that waiting virtual threads don't pin their carrier.
+ */
+class OutboundQueue {
+
+    private final ArrayDeque<OutboundFrame> entries = new ArrayDeque<>();
+    private final int capacity;
+    private final SlowConsumerPolicy slowConsumerPolicy;
+    private final long timeoutMillis;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private boolean closed = false;
+
+    OutboundQueue(ServerSettings settings) {
+        this.capacity = settings.getOutboundQueueCapacity();
+        this.slowConsumerPolicy = settings.getSlowConsumerPolicy();
+        this.timeoutMillis = settings.getSlowConsumerTimeoutMillis();
+    }
+
+    /**
+     * Adds a frame to the queue, applying the slow consumer policy if the queue is full.
+     * @param frame the frame to write, possibly shared with the queues of other clients
+     * @param mayWait false if the caller must not wait, e.g. the thread that empties this queue, where waiting for room
+     *                could never succeed, or any NIO event loop. The BLOCK policy then disconnects the client right away.
+     * @return false if the client is too slow and should be disconnected
+     */
+    boolean offer(OutboundFrame frame, boolean mayWait) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            if (entries.size() >= capacity) {
+                switch (slowConsumerPolicy) {
+                    case DROP_OLDEST:
+                        if (!dropOldest()) {
+                            return false;
+                        }
+                        break;
+                    case DISCONNECT:
+                        return false;
+                    case BLOCK:
+                        if (!mayWait || !awaitRoomUntil(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis))) {
+                            return false;
+                        }
+                        if (closed) {
+                            return true;
+                        }
+                        break;
+                }
+            }
+            entries.add(frame);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Throws away the oldest frame that may be dropped, which is nearly always the first one. Returns false if none of
+    //the queued frames may be dropped.
+    private boolean dropOldest() {
+        Iterator<OutboundFrame> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isDroppable()) {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * With the BLOCK policy, waits until there is room for one more frame, the queue has been closed or the deadline
+     * has passed. A broadcast never waits in offer(), since it holds the registry's locks, so the sender waits here
+     * for its recipients before it broadcasts. The other policies never wait.
+     * @param deadlineNanos the System.nanoTime() at which to give up
+     */
+    void awaitRoom(long deadlineNanos) {
+        if (slowConsumerPolicy != SlowConsumerPolicy.BLOCK) {
+            return;
+        }
+        lock.lock();
+        try {
+            awaitRoomUntil(deadlineNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Waits until there is room in the queue or it has been closed. Returns false if the deadline passed first.
+    private boolean awaitRoomUntil(long deadlineNanos) {
+        try {
+            while (entries.size() >= capacity && !closed) {
+                long nanos = deadlineNanos - System.nanoTime();
+                if (nanos <= 0) {
+                    return false;
+                }
+                notFull.awaitNanos(nanos);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Waits for the next frame to write
+     * @return the next frame, or null once the queue has been closed
+     */
+    OutboundFrame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (entries.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return closed ? null : removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the next frame, or null if the queue is empty or closed
+     */
+    OutboundFrame poll() {
+        lock.lock();
+        try {
+            return closed || entries.isEmpty() ? null : removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private OutboundFrame removeFirst() {
+        OutboundFrame frame = entries.poll();
+        notFull.signal();
+        return frame;
+    }
+
+    /**
+     * @return how many frames are waiting
+     */
+    int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Throws away everything still queued and wakes up any thread waiting on the queue
+     * @return false if the queue had already been closed
+     */
+    boolean close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            entries.clear();
+            notEmpty.signalAll();
+            notFull.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,10 +1,12 @@
-package server;
-
-/**
- * The main class for running our server
- */
-public class Server {
-    public static void main(String[] args) {
-        new ServerController();
-    }
-}
+package server;
+
+/**
+ * The main class for running our server
+ * Settings can be given as arguments of the form --name=value, see ServerSettings.fromArguments()
+ * For example: --threading=nio --slow-consumer-policy=drop-oldest
+ */
+public class Server {
+    public static void main(String[] args) {
+        new ServerController(ServerSettings.fromArguments(args));
+    }
+}
@@ -1,105 +1,149 @@
-package server;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.swing.*;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
-import java.io.IOException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-
-/**
- * The ServerController deals with user input and connects the serverView and the serverModel together.
- * For example, when a user clicks on a button in the ServerView, the controller will call a method
- * in the serverModel.
- */
-public class ServerController extends JFrame {
-
-    private ServerModel serverModel;
-    private ServerView serverView;
-
-    public ServerController(){
-        this.serverModel = new ServerModel();
-        this.serverView = new ServerView(serverModel);
-
-        this.serverModel.addObserver(serverView);
-
-        serverView.getSaveChatButton().addActionListener(new ActionListener() {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                try {
-                    serverModel.saveChat();
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                }
-            }
-        });
-
-        serverView.getLoadChatButton().addActionListener(new ActionListener() {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                try {
-                    serverModel.loadChat();
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                } catch (ClassNotFoundException ex) {
-                    ex.printStackTrace();
-        }
-            }
-        });
-
-        serverView.getStartServerButton().addActionListener(new ActionListener() {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                startServer();
-            }
-        });
-
-        serverView.getShutDownButton().addActionListener(new ActionListener() {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-
-                System.out.println("Shut down the server...TODO");
-            }
-        });
-
-        //JFRAME METHODS
-        add(serverView.getServerPanel());
-        pack();
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        setLocationRelativeTo(null);
-        setTitle("Server");
-        setVisible(true);
-
-    }
-
-    private void startServer() {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                //We run this on a separate thread because it is a blocking operation
-                //We want to be able to use the other buttons as well, so we need to run this on a
-                //separate thread
-                try {
-                    serverModel.startServer();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                } catch (NoSuchPaddingException e) {
-                    e.printStackTrace();
-                } catch (IllegalBlockSizeException e) {
-                    e.printStackTrace();
-                } catch (BadPaddingException e) {
-                    e.printStackTrace();
-                } catch (NoSuchAlgorithmException e) {
-                    e.printStackTrace();
-                } catch (InvalidKeyException e) {
-                    e.printStackTrace();
-                } catch (ClassNotFoundException e) {
-                    e.printStackTrace();
-                }
-            }
-        }).start();
-    }
-}
+package server;
+
+import message.ArchiveTask;
+import message.ChatArchive;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.swing.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The ServerController deals with user input and connects the serverView and the serverModel together.
+ * For example, when a user clicks on a button in the ServerView, the controller will call a method
+ * in the serverModel.
+ */
+public class ServerController extends JFrame {
+
+    private ServerModel serverModel;
+    private ServerView serverView;
+
+    public ServerController(){
+        this(new ServerSettings());
+    }
+
+    /**
+     * @param settings the settings the server model is started with
+     */
+    public ServerController(ServerSettings settings){
+        this.serverModel = new ServerModel(settings);
+        this.serverView = new ServerView(serverModel);
+
+        this.serverModel.addObserver(serverView);
+
+        serverView.getSaveChatButton().addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                saveChat();
+            }
+        });
+
+        serverView.getLoadChatButton().addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                loadChat();
+            }
+        });
+
+        serverView.getStartServerButton().addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                startServer();
+            }
+        });
+
+        serverView.getShutDownButton().addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+
+                System.out.println("Shut down the server...TODO");
+            }
+        });
+
+        //JFRAME METHODS
+        add(serverView.getServerPanel());
+        pack();
+        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        setLocationRelativeTo(null);
+        setTitle("Server");
+        setVisible(true);
+
+    }
+
+    private void startServer() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                //We run this on a separate thread because it is a blocking operation
+                //We want to be able to use the other buttons as well, so we need to run this on a
+                //separate thread
+                try {
+                    serverModel.startServer();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } catch (NoSuchPaddingException e) {
+                    e.printStackTrace();
+                } catch (IllegalBlockSizeException e) {
+                    e.printStackTrace();
+                } catch (BadPaddingException e) {
+                    e.printStackTrace();
+                } catch (NoSuchAlgorithmException e) {
+                    e.printStackTrace();
+                } catch (InvalidKeyException e) {
+                    e.printStackTrace();
+                } catch (ClassNotFoundException e) {
+                    e.printStackTrace();
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Saves the server log to a file, in the background. A file ending in .txt gets one message per line, any other
+     * file a chat archive, compressed if it ends in .chatz.
+     */
+    private void saveChat() {
+        JFileChooser jFileChooser = new JFileChooser();
+
+        if (jFileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION){
+            ArchiveTask.export(this, serverModel.getMessageLog(), jFileChooser.getSelectedFile()).execute();
+        }
+    }
+
+    /**
+     * Loads a saved chat, in the background. The file is memory-mapped and read a page at a time, so only the most
+     * recent messages of it are shown and the rest is only read when somebody scrolls back.
+     */
+    private void loadChat() {
+        JFileChooser jFileChooser = new JFileChooser();
+
+        if (jFileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION){
+            final File file = jFileChooser.getSelectedFile();
+            new ArchiveTask<ChatArchive>(this, "Loading the chat", file) {
+                @Override
+                protected ChatArchive work() throws IOException {
+                    ChatArchive archive = ChatArchive.open(file, this);
+                    //read the page that is shown right away while still in the background
+                    archive.getPageBefore(archive.size(), ServerModel.LOADED_PAGE_SIZE);
+                    return archive;
+                }
+
+                @Override
+                protected void succeeded(ChatArchive archive) {
+                    //when loading a chat log, the messages so far are replaced by the ones in the loaded chat log
+                    try {
+                        serverModel.setLoadedChat(archive);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }.execute();
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package server;
+
+import message.PayloadCompression;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Everything the server counts about itself: connections, frames and bytes, how long broadcasts and encryption take,
+ * how far behind the clients are and why they were disconnected. It is shown over JMX and can be written out as text.
+ *
+ * The counters are recorded on the threads that serve the clients, so recording never takes a lock: every counter is a
+ * LongAdder, which spreads concurrent increments over several cells and only adds them up when it is read. What is
+ * true right now, such as the number of connected clients and their backlogs, is not recorded at all but looked up
+ * when it is read.
+ */
+class ServerMetrics implements ServerMetricsMXBean, PayloadCompression.Listener {
+
+    private final ServerModel serverModel;
+    private final Meter accepted = new Meter();
+    private final Meter handshakes = new Meter();
+    //The steps of a handshake on the server, see handshakeCompleted()
+    private final LatencyHistogram keyExchangeTime = new LatencyHistogram();
+    //Checking the ticket and wrapping the session key for a client that resumes its session, instead of the key exchange
+    private final LongAdder resumedHandshakes = new LongAdder();
+    private final LatencyHistogram resumptionTime = new LatencyHistogram();
+    private final LatencyHistogram registrationTime = new LatencyHistogram();
+    private final LatencyHistogram announcementTime = new LatencyHistogram();
+    private final LongAdder framesIn = new LongAdder();
+    private final LongAdder framesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder socketWrites = new LongAdder();
+    private final LatencyHistogram broadcastFanOut = new LatencyHistogram();
+    private final LatencyHistogram cryptoTime = new LatencyHistogram();
+    private final LongAdder compressionBytesIn = new LongAdder();
+    private final LongAdder compressionBytesOut = new LongAdder();
+    private final LongAdder journalDropped = new LongAdder();
+    private final LatencyHistogram compressionTime = new LatencyHistogram();
+    private final EnumMap<DisconnectReason, LongAdder> disconnects = new EnumMap<>(DisconnectReason.class);
+
+    /**
+     * @param serverModel where the connected clients and their backlogs are looked up
+     */
+    ServerMetrics(ServerModel serverModel) {
+        this.serverModel = serverModel;
+        for (DisconnectReason reason : DisconnectReason.values()) {
+            disconnects.put(reason, new LongAdder());
+        }
+    }
+
+    /**
+     * Makes the metrics visible over JMX, as chat.server:type=ServerMetrics,port=&lt;port&gt;
+     * @param port the port of the server, so that several servers in one JVM can be told apart
+     */
+    void register(int port) {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            mBeanServer.registerMBean(this, new ObjectName("chat.server:type=ServerMetrics,port=" + port));
+        } catch (JMException e) {
+            //the server works just as well without them
+            e.printStackTrace();
+        }
+    }
+
+    //RECORDING, called on the threads that serve the clients
+
+    void connectionAccepted() {
+        accepted.mark();
+    }
+
+    /**
+     * Records a completed handshake and how long each of its steps took, all times from System.nanoTime()
+     * @param startNanos from before the session key was wrapped for the client
+     * @param keyExchangedNanos from after the session key was wrapped
+     * @param registeredNanos from after the client was registered and its replay was queued
+     * @param resumed whether the client resumed its session with a ticket instead of a key exchange
+     */
+    void handshakeCompleted(long startNanos, long keyExchangedNanos, long registeredNanos, boolean resumed) {
+        handshakes.mark();
+        if (resumed) {
+            resumedHandshakes.increment();
+            resumptionTime.record(keyExchangedNanos - startNanos);
+        } else {
+            keyExchangeTime.record(keyExchangedNanos - startNanos);
+        }
+        registrationTime.record(registeredNanos - keyExchangedNanos);
+        //telling everybody else that the client has arrived
+        announcementTime.record(System.nanoTime() - registeredNanos);
+    }
+
+    void frameIn() {
+        framesIn.increment();
+    }
+
+    void bytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    void frameOut() {
+        framesOut.increment();
+    }
+
+    void bytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    void socketWrite() {
+        socketWrites.increment();
+    }
+
+    /**
+     * @param startNanos System.nanoTime() from before the broadcast was queued for the first client
+     */
+    void broadcastFannedOut(long startNanos) {
+        broadcastFanOut.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @param startNanos System.nanoTime() from before the message was encrypted or decrypted
+     */
+    void cryptoDone(long startNanos) {
+        cryptoTime.record(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public void compressed(int length, int compressedLength, long nanos) {
+        compressionBytesIn.add(length);
+        compressionBytesOut.add(compressedLength);
+        compressionTime.record(nanos);
+    }
+
+    void journalDropped() {
+        journalDropped.increment();
+    }
+
+    void disconnected(DisconnectReason reason) {
+        disconnects.get(reason).increment();
+    }
+
+    //READING, over JMX or as text
+
+    @Override
+    public int getConnectedClients() {
+        return serverModel.getClientRegistry().size();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return accepted.getCount();
+    }
+
+    @Override
+    public double getAcceptedConnectionsPerSecond() {
+        return accepted.getRatePerSecond();
+    }
+
+    @Override
+    public long getHandshakes() {
+        return handshakes.getCount();
+    }
+
+    @Override
+    public double getHandshakesPerSecond() {
+        return handshakes.getRatePerSecond();
+    }
+
+    @Override
+    public LatencySummary getKeyExchangeTime() {
+        return keyExchangeTime.summarize();
+    }
+
+    @Override
+    public long getResumedHandshakes() {
+        return resumedHandshakes.sum();
+    }
+
+    @Override
+    public LatencySummary getResumptionTime() {
+        return resumptionTime.summarize();
+    }
+
+    @Override
+    public LatencySummary getRegistrationTime() {
+        return registrationTime.summarize();
+    }
+
+    @Override
+    public LatencySummary getAnnouncementTime() {
+        return announcementTime.summarize();
+    }
+
+    @Override
+    public long getFramesIn() {
+        return framesIn.sum();
+    }
+
+    @Override
+    public long getFramesOut() {
+        return framesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getSocketWrites() {
+        return socketWrites.sum();
+    }
+
+    @Override
+    public LatencySummary getBroadcastFanOut() {
+        return broadcastFanOut.summarize();
+    }
+
+    @Override
+    public LatencySummary getCryptoTime() {
+        return cryptoTime.summarize();
+    }
+
+    @Override
+    public long getCompressionBytesIn() {
+        return compressionBytesIn.sum();
+    }
+
+    @Override
+    public long getCompressionBytesOut() {
+        return compressionBytesOut.sum();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long bytesOut = getCompressionBytesOut();
+        return bytesOut == 0 ? 0.0 : (double) getCompressionBytesIn() / bytesOut;
+    }
+
+    @Override
+    public LatencySummary getCompressionTime() {
+        return compressionTime.summarize();
+    }
+
+    @Override
+    public long getJournalDroppedMessages() {
+        return journalDropped.sum();
+    }
+
+    @Override
+    public int getOutboundBacklogTotal() {
+        int total = 0;
+        for (ClientHandler clientHandler : serverModel.getClientRegistry().snapshot()) {
+            total += clientHandler.getOutboundBacklog();
+        }
+        return total;
+    }
+
+    @Override
+    public int getOutboundBacklogMax() {
+        int max = 0;
+        for (ClientHandler clientHandler : serverModel.getClientRegistry().snapshot()) {
+            max = Math.max(max, clientHandler.getOutboundBacklog());
+        }
+        return max;
+    }
+
+    @Override
+    public Map<String, Integer> getOutboundBacklog() {
+        TreeMap<String, Integer> backlogs = new TreeMap<>();
+        for (ClientHandler clientHandler : serverModel.getClientRegistry().snapshot()) {
+            backlogs.put(clientHandler.getUsername(), clientHandler.getOutboundBacklog());
+        }
+        return backlogs;
+    }
+
+    @Override
+    public Map<String, Long> getDisconnects() {
+        LinkedHashMap<String, Long> counts = new LinkedHashMap<>();
+        for (Map.Entry<DisconnectReason, LongAdder> entry : disconnects.entrySet()) {
+            counts.put(entry.getKey().describe(), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder text = new StringBuilder();
+        line(text, "connected clients", String.valueOf(getConnectedClients()));
+        line(text, "accepted connections", String.format("%d (%.1f/s)", getAcceptedConnections(), getAcceptedConnectionsPerSecond()));
+        line(text, "handshakes", String.format("%d (%.1f/s), %d resumed", getHandshakes(), getHandshakesPerSecond(),
+                getResumedHandshakes()));
+        line(text, "  key exchange", getKeyExchangeTime().toString());
+        line(text, "  resumption", getResumptionTime().toString());
+        line(text, "  registration", getRegistrationTime().toString());
+        line(text, "  announcement", getAnnouncementTime().toString());
+        line(text, "frames in / out", getFramesIn() + " / " + getFramesOut());
+        line(text, "bytes in / out", getBytesIn() + " / " + getBytesOut());
+        line(text, "socket writes", String.format("%d (%.1f frames each)", getSocketWrites(),
+                getSocketWrites() == 0 ? 0.0 : (double) getFramesOut() / getSocketWrites()));
+        line(text, "broadcast fan-out", getBroadcastFanOut().toString());
+        line(text, "crypto time", getCryptoTime().toString());
+        line(text, "compression", String.format("%d -> %d bytes (%.2fx)", getCompressionBytesIn(), getCompressionBytesOut(),
+                getCompressionRatio()));
+        line(text, "compression time", getCompressionTime().toString());
+        line(text, "journal dropped", String.valueOf(getJournalDroppedMessages()));
+        //only the clients that are behind, a busy server has too many to list them all
+        StringBuilder behind = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : getOutboundBacklog().entrySet()) {
+            if (entry.getValue() > 0) {
+                behind.append(", ").append(entry.getKey()).append(' ').append(entry.getValue());
+            }
+        }
+        line(text, "outbound backlog", "total " + getOutboundBacklogTotal() + ", max " + getOutboundBacklogMax() + behind);
+        StringBuilder reasons = new StringBuilder();
+        for (Map.Entry<String, Long> entry : getDisconnects().entrySet()) {
+            reasons.append(reasons.length() == 0 ? "" : ", ").append(entry.getKey()).append(' ').append(entry.getValue());
+        }
+        line(text, "disconnects", reasons.toString());
+        return text.toString();
+    }
+
+    private static void line(StringBuilder text, String name, String value) {
+        text.append(String.format("%-22s%s%n", name, value));
+    }
+
+    @Override
+    public void reset() {
+        accepted.resetCount();
+        handshakes.resetCount();
+        keyExchangeTime.reset();
+        resumedHandshakes.reset();
+        resumptionTime.reset();
+        registrationTime.reset();
+        announcementTime.reset();
+        framesIn.reset();
+        framesOut.reset();
+        bytesIn.reset();
+        bytesOut.reset();
+        socketWrites.reset();
+        broadcastFanOut.reset();
+        cryptoTime.reset();
+        compressionBytesIn.reset();
+        compressionBytesOut.reset();
+        compressionTime.reset();
+        journalDropped.reset();
+        for (LongAdder count : disconnects.values()) {
+            count.reset();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package server;
+
+import java.util.Map;
+
+/**
+ * What the server shows about itself over JMX, e.g. in JConsole or VisualVM under chat.server. Everything counts from
+ * when the server was started, or from the last call to reset().
+ */
+public interface ServerMetricsMXBean {
+
+    int getConnectedClients();
+
+    long getAcceptedConnections();
+
+    double getAcceptedConnectionsPerSecond();
+
+    long getHandshakes();
+
+    double getHandshakesPerSecond();
+
+    /**
+     * @return how long wrapping the session key for a client took, the first step of a handshake
+     */
+    LatencySummary getKeyExchangeTime();
+
+    /**
+     * @return how many of the handshakes were clients resuming their session with a ticket, see SessionTickets
+     */
+    long getResumedHandshakes();
+
+    /**
+     * @return how long checking the ticket and wrapping the session key took, instead of the key exchange
+     */
+    LatencySummary getResumptionTime();
+
+    /**
+     * @return how long registering a client and queueing the messages it missed took, the second step
+     */
+    LatencySummary getRegistrationTime();
+
+    /**
+     * @return how long telling the other clients about a new client took, the last step
+     */
+    LatencySummary getAnnouncementTime();
+
+    long getFramesIn();
+
+    long getFramesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    /**
+     * @return how many writes to the sockets it took to send the frames, frames that are queued together are
+     * gathered into one write
+     */
+    long getSocketWrites();
+
+    /**
+     * @return how long it took to queue a broadcast for every client
+     */
+    LatencySummary getBroadcastFanOut();
+
+    /**
+     * @return how long encrypting or decrypting a message took on the server
+     */
+    LatencySummary getCryptoTime();
+
+    /**
+     * @return how many bytes of messages and frames were long enough to be compressed
+     */
+    long getCompressionBytesIn();
+
+    /**
+     * @return how many bytes they were sent as, compressed or not
+     */
+    long getCompressionBytesOut();
+
+    /**
+     * @return how many times smaller compression made them, e.g. 3.0 for a third of the size
+     */
+    double getCompressionRatio();
+
+    /**
+     * @return how long compressing a message or frame took
+     */
+    LatencySummary getCompressionTime();
+
+    /**
+     * @return how many messages were left out of the journal because the disk could not keep up, see MessageJournal
+     */
+    long getJournalDroppedMessages();
+
+    /**
+     * @return how many frames are waiting to be written, over all clients
+     */
+    int getOutboundBacklogTotal();
+
+    /**
+     * @return how many frames are waiting to be written to the client that is furthest behind
+     */
+    int getOutboundBacklogMax();
+
+    /**
+     * @return how many frames are waiting for every connected client, by username
+     */
+    Map<String, Integer> getOutboundBacklog();
+
+    /**
+     * @return how many clients were disconnected for every reason, e.g. "slow consumer"
+     */
+    Map<String, Long> getDisconnects();
+
+    /**
+     * @return all of the metrics as text, one per line
+     */
+    String dump();
+
+    /**
+     * Starts counting from zero again, except for what is happening right now such as the connected clients
+     */
+    void reset();
+}
@@ -1,138 +1,362 @@
-package server;
-
-import message.Message;
-
-import javax.crypto.*;
-import javax.swing.*;
-import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.security.InvalidKeyException;
-import java.security.KeyPairGenerator;
-import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-
-/**
- * The server model stores all the data of our application, such as all the messages that have been sent
- * between the clients and the server as well as a list of all online users
- */
-public class ServerModel {
-
-    private final int PORT_NUMBER = 1234;
-    private ArrayList<String> messages = new ArrayList<>();
-    private ArrayList<String> onlineUsers = new ArrayList<>();
-    private ServerSocket serverSocket;
-    private ServerView serverView;
-
-    //NEW FIELD
-    //The session key will be used to encrypt all regular messages between the client and the server
-    //It needs to be securely shared with the client from the server
-    //Hence, it needs to be encrypted with the clients public key and sent back to the client
-    private SecretKey sessionKey;
-
-    public ServerModel(){
-        //Create a key generator that generates a symmetric AES key
-        KeyGenerator keyGenerator = null;
-        try {
-            keyGenerator = KeyGenerator.getInstance("AES");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-        //Initialize the key size to 256 bits
-        keyGenerator.init(256);
-        this.sessionKey = keyGenerator.generateKey();
-    }
-
-    /**
-     * Getter so that ClientHandler can access the session key
-     * @return
-     */
-    public SecretKey getSessionKey(){
-        return sessionKey;
-    }
-
-
-    public void startServer() throws IOException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException, ClassNotFoundException {
-        serverSocket = new ServerSocket(PORT_NUMBER);
-        addMessage(new Message("SERVER: "+"Server has been started and is listening for connections on port "+PORT_NUMBER));
-        //blocking operation
-        while (true){
-            Socket clientConnection = serverSocket.accept();
-            ClientHandler clientHandler = new ClientHandler(clientConnection,this);
-            Thread thread = new Thread(clientHandler);
-            thread.start();
-        }
-
-    }
-
-    public void addOnlineUser(String username) {
-        //The line break is necessary so that the users display on new lines in the online users text area.
-        onlineUsers.add(username+"\n");
-        serverView.updateUsers();
-    }
-
-    public void removeUser(String username){
-        onlineUsers.remove(username+"\n");
-        serverView.updateUsers();
-    }
-
-    public ArrayList<String> getOnlineUsers(){
-        return onlineUsers;
-    }
-
-    public void addMessage(Message message) {
-        messages.add(message.toString());
-        serverView.updateMessages();
-    }
-
-    public void addEncryptedMessage(Message encryptedMessage) throws NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
-        messages.add(encryptedMessage.decrypt(this.sessionKey));
-        serverView.updateMessages();
-    }
-
-    public String getLatestMessage(){
-        return messages.get(messages.size()-1);
-    }
-
-    public void addObserver(ServerView serverView){
-        this.serverView = serverView;
-    }
-
-    public void saveChat() throws IOException {
-        JFileChooser jFileChooser = new JFileChooser();
-
-        if (jFileChooser.showSaveDialog(null) == JFileChooser.APPROVE_OPTION){
-            File file = jFileChooser.getSelectedFile();
-            BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(file));
-            for (String msg : messages){
-                bufferedWriter.write(msg.toString());
-            }
-            bufferedWriter.close();
-        }
-    }
-
-    public void loadChat() throws IOException, ClassNotFoundException {
-        JFileChooser jFileChooser = new JFileChooser();
-
-        if (jFileChooser.showSaveDialog(null) == JFileChooser.APPROVE_OPTION){
-            //when loading a chat log, we clear the messages array so that it only contains the messages in the loaded chat log
-            messages = new ArrayList<>();
-            //we have to clear the serverView as well, otherwise the old messages will not dissapear
-            serverView.clearChat();
-            File file = jFileChooser.getSelectedFile();
-            BufferedReader bufferedReader = new BufferedReader(new FileReader(file));
-            String line = bufferedReader.readLine();
-            while (line != null){
-                //we can not add a message again as a message. this will put 2 timestamps on it
-                //therefore we don't store Message class in the messages array, but simply string
-                messages.add(line+"\n");
-                serverView.updateMessages();
-                line = bufferedReader.readLine();
-            }
-            bufferedReader.close();
-        }
-    }
-
-
-
-}
+package server;
+
+import message.ChatArchive;
+import message.CipherEngine;
+import message.Message;
+import message.MessageHistory;
+import message.MessageLog;
+import message.PayloadCompression;
+
+import javax.crypto.*;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.InvalidKeyException;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The server model stores all the data of our application, such as all the messages that have been sent
+ * between the clients and the server as well as a list of all online users.
+ * It does not need a window: the ServerView is only one of its observers, and a headless server has none but the
+ * console log.
+ */
+public class ServerModel {
+
+    //How many of the most recent messages of a loaded chat are shown right away
+    static final int LOADED_PAGE_SIZE = 1000;
+    //The most recent messages are kept in memory, older ones are read back from disk when they are needed
+    private final MessageHistory messages;
+    //Every message is also written to the journal, so the log survives a restart. Null if it has been turned off.
+    private MessageJournal journal;
+    private long recoveredMessages = 0;
+    //The chat that has been loaded, the messages in the log come after it. Null if no chat has been loaded.
+    private volatile ChatArchive loadedChat;
+    //Every client that has completed the handshake, this is also where the list of online users comes from
+    private final ClientRegistry clientRegistry;
+    private final ChannelIndex channelIndex = new ChannelIndex();
+    private final ServerMetrics metrics;
+    //Compresses the server's own messages and large frames for the clients that ask for it
+    private final PayloadCompression compression;
+    //Lets clients connect again without a new key exchange
+    private final SessionTickets sessionTickets;
+    private ServerSocket serverSocket;
+    //Told about new messages and users, such as the window of the server. Observers may come and go at any time.
+    private final CopyOnWriteArrayList<ServerObserver> observers = new CopyOnWriteArrayList<>();
+    private final ServerSettings settings;
+    private final ThreadingMode threadingMode;
+    private NioServerEngine nioServerEngine;
+    //Only used in ThreadingMode.VIRTUAL
+    private ExecutorService virtualThreadExecutor;
+
+    //NEW FIELD
+    //The session key will be used to encrypt all regular messages between the client and the server
+    //It needs to be securely shared with the client from the server
+    //Hence, it needs to be encrypted with the clients public key and sent back to the client
+    private SecretKey sessionKey;
+    //Encrypts and decrypts with the session key, shared by all client handlers
+    private CipherEngine cipherEngine;
+
+    public ServerModel(){
+        this(new ServerSettings());
+    }
+
+    /**
+     * @param settings the settings the server is started with, such as the threading mode
+     */
+    public ServerModel(ServerSettings settings){
+        this.settings = settings;
+        if (settings.getThreadingMode() == ThreadingMode.VIRTUAL && !VirtualThreads.isSupported()){
+            //The same blocking code runs on platform threads instead, the server log says so when it starts
+            this.threadingMode = ThreadingMode.BLOCKING;
+        } else {
+            this.threadingMode = settings.getThreadingMode();
+        }
+        this.messages = new MessageHistory(settings.getHistorySize());
+        this.metrics = new ServerMetrics(this);
+        this.compression = new PayloadCompression(settings.getCompressionThreshold(), metrics);
+        this.clientRegistry = new ClientRegistry(settings.getReplaySize(), metrics);
+        if (settings.getJournalDirectory() != null){
+            openJournal();
+        }
+        //the ticket key is kept with the journal, so that clients can resume their sessions after a restart
+        this.sessionTickets = new SessionTickets(settings.getJournalDirectory() == null ? null
+                : new File(settings.getJournalDirectory(), SessionTickets.KEY_FILE), settings.getTicketLifetimeSeconds() * 1000);
+        //Create a key generator that generates a symmetric AES key
+        KeyGenerator keyGenerator = null;
+        try {
+            keyGenerator = KeyGenerator.getInstance("AES");
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        }
+        //Initialize the key size to 256 bits
+        keyGenerator.init(256);
+        this.sessionKey = keyGenerator.generateKey();
+        this.cipherEngine = new CipherEngine(sessionKey);
+    }
+
+    //Reads back the messages from before the restart, and keeps writing new ones to the journal
+    private void openJournal() {
+        journal = new MessageJournal(settings.getJournalDirectory(), settings.getJournalSegmentSize(),
+                settings.getJournalSegments(), settings.getJournalSyncIntervalMillis(), metrics);
+        try {
+            recoveredMessages = journal.open(messages);
+        } catch (IOException e) {
+            //the server still works without a journal, it only forgets its log when it stops
+            e.printStackTrace();
+            journal = null;
+            return;
+        }
+        //write out the last messages when the server is shut down
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }));
+    }
+
+    /**
+     * Getter so that ClientHandler can access the session key
+     * @return
+     */
+    public SecretKey getSessionKey(){
+        return sessionKey;
+    }
+
+    public CipherEngine getCipherEngine(){
+        return cipherEngine;
+    }
+
+
+    public ServerSettings getSettings(){
+        return settings;
+    }
+
+    public void startServer() throws IOException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException, ClassNotFoundException {
+        if (threadingMode == ThreadingMode.NIO){
+            //The event loops run on their own threads, so this returns as soon as the server is listening
+            nioServerEngine = new NioServerEngine(this, Runtime.getRuntime().availableProcessors());
+            nioServerEngine.start(getBindAddress());
+            metrics.register(settings.getPort());
+            addStartMessages();
+            return;
+        }
+        if (threadingMode == ThreadingMode.VIRTUAL){
+            virtualThreadExecutor = VirtualThreads.newThreadPerTaskExecutor();
+        }
+        serverSocket = new ServerSocket();
+        serverSocket.bind(getBindAddress());
+        metrics.register(settings.getPort());
+        addStartMessages();
+        //blocking operation
+        while (true){
+            Socket clientConnection = serverSocket.accept();
+            metrics.connectionAccepted();
+            serveClient(clientConnection);
+        }
+
+    }
+
+    private void addStartMessages() {
+        if (threadingMode != settings.getThreadingMode()){
+            addMessage(new Message(Message.SERVER, "Virtual threads need Java 21 or newer, every client gets a platform thread instead"));
+        }
+        if (recoveredMessages > 0){
+            addMessage(new Message(Message.SERVER, "Restored "+recoveredMessages+" messages from the journal"));
+        }
+        if (journal != null){
+            for (String repair : journal.getRepairs()){
+                addMessage(new Message(Message.SERVER, repair));
+            }
+        }
+        addMessage(new Message(Message.SERVER, "Server has been started and is listening for connections on port "+settings.getPort()));
+    }
+
+    //The address and port the server listens on, any address if none has been set
+    private InetSocketAddress getBindAddress() {
+        return settings.getBindAddress() == null ? new InetSocketAddress(settings.getPort())
+                : new InetSocketAddress(settings.getBindAddress(), settings.getPort());
+    }
+
+    /**
+     * Starts a thread that serves one client, such as a client handler's reader or its connection's writer.
+     * It is a virtual thread in ThreadingMode.VIRTUAL and a platform thread otherwise.
+     * @param task the task to run on the new thread
+     */
+    void startClientThread(Runnable task) {
+        if (threadingMode == ThreadingMode.VIRTUAL){
+            virtualThreadExecutor.execute(task);
+        } else {
+            new Thread(task).start();
+        }
+    }
+
+    //Everything that waits for the client, from its preamble on, runs on the client's own thread, so that a client that
+    //connects and then stays silent can't hold up the accept loop
+    private void serveClient(final Socket clientConnection) {
+        startClientThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new ClientHandler(clientConnection, ServerModel.this).run();
+                } catch (IOException e) {
+                    //the client did not send the preamble, only its own connection is closed
+                    e.printStackTrace();
+                    try {
+                        clientConnection.close();
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Tells the view that a user has connected or disconnected
+     */
+    public void updateOnlineUsers() {
+        for (ServerObserver observer : observers){
+            observer.updateUsers();
+        }
+    }
+
+    public ArrayList<String> getOnlineUsers(){
+        ArrayList<String> onlineUsers = clientRegistry.getUsernames();
+        //The line break is necessary so that the users display on new lines in the online users text area.
+        for (int i = 0; i < onlineUsers.size(); i++){
+            onlineUsers.set(i, onlineUsers.get(i)+"\n");
+        }
+        return onlineUsers;
+    }
+
+    ClientRegistry getClientRegistry(){
+        return clientRegistry;
+    }
+
+    ChannelIndex getChannelIndex(){
+        return channelIndex;
+    }
+
+    ServerMetrics getMetrics(){
+        return metrics;
+    }
+
+    PayloadCompression getCompression(){
+        return compression;
+    }
+
+    SessionTickets getSessionTickets(){
+        return sessionTickets;
+    }
+
+    public void addMessage(Message message) {
+        log(message.toString());
+    }
+
+    /**
+     * Decrypts a chat message a client sent and adds it to the server log
+     * @param sender the user the client has authenticated as
+     * @throws ProtocolException if the message says it is from someone else, it is not added then
+     */
+    public void addEncryptedMessage(Message encryptedMessage, String sender) throws ProtocolException, NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+        long start = System.nanoTime();
+        Message message = encryptedMessage.decrypt(this.cipherEngine);
+        metrics.cryptoDone(start);
+        if (!sender.equals(message.getSender())) {
+            throw new ProtocolException(sender + " sent a message from " + message.getSender());
+        }
+        log(message.toString());
+    }
+
+    private void log(String message) {
+        messages.add(message);
+        if (journal != null){
+            //an event loop must not wait for the disk, see MessageJournal
+            journal.append(message, !NioEventLoop.inAnyEventLoop());
+        }
+        for (ServerObserver observer : observers){
+            observer.addMessage(message);
+        }
+    }
+
+    /**
+     * @return the whole server log: the chat that has been loaded, if any, followed by the messages since.
+     * Messages that arrive later are not part of it, so it can be saved while the server keeps running.
+     */
+    public MessageLog getMessageLog(){
+        final ChatArchive loaded = loadedChat;
+        final long loadedSize = loaded != null ? loaded.size() : 0;
+        final long size = loadedSize + messages.size();
+        return new MessageLog() {
+            @Override
+            public long size() {
+                return size;
+            }
+
+            @Override
+            public List<String> getPage(long first, int maxCount) throws IOException {
+                long end = Math.min(size, first + maxCount);
+                ArrayList<String> page = new ArrayList<>();
+                if (first < loadedSize){
+                    page.addAll(loaded.getPage(first, (int) (Math.min(end, loadedSize) - first)));
+                }
+                if (end > loadedSize){
+                    long from = Math.max(first, loadedSize);
+                    page.addAll(messages.getPage(from - loadedSize, (int) (end - from)));
+                }
+                return page;
+            }
+        };
+    }
+
+    /**
+     * @return how many messages the server log holds, including those that are no longer in memory
+     */
+    public long getMessageCount(){
+        return getMessageLog().size();
+    }
+
+    /**
+     * Reads older messages for scrolling back through the log, including the chat that has been loaded
+     * @param before the index of the message after the page, getMessageCount() for the most recent messages
+     * @param maxCount how many messages to read at most
+     */
+    public List<String> getMessagesBefore(long before, int maxCount) throws IOException {
+        long first = Math.max(0, before - maxCount);
+        return getMessageLog().getPage(first, (int) (before - first));
+    }
+
+    public void addObserver(ServerObserver observer){
+        observers.add(observer);
+    }
+
+    public void removeObserver(ServerObserver observer){
+        observers.remove(observer);
+    }
+
+    /**
+     * Replaces the messages so far with a chat that has been loaded. Its messages come before the ones that arrive
+     * from now on, and only the most recent ones are shown.
+     */
+    public void setLoadedChat(ChatArchive archive) throws IOException {
+        List<String> latest = archive.getPageBefore(archive.size(), LOADED_PAGE_SIZE);
+        messages.clear();
+        loadedChat = archive;
+        for (ServerObserver observer : observers){
+            observer.showMessages(latest);
+        }
+    }
+
+}
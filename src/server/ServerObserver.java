@@ -0,0 +1,27 @@
+package server;
+
+import java.util.List;
+
+/**
+ * Is told by the server model when something changes that should be shown, such as a new message in the log.
+ * The window of the server is one, the console log of a headless server another. The methods are called from the
+ * threads of the clients and must not wait for anything.
+ */
+public interface ServerObserver {
+
+    /**
+     * A message has been added to the server log
+     */
+    void addMessage(String message);
+
+    /**
+     * A user has connected or disconnected
+     */
+    void updateUsers();
+
+    /**
+     * A saved chat has been loaded and replaces the messages so far
+     * @param messages the most recent messages of the loaded chat
+     */
+    void showMessages(List<String> messages);
+}
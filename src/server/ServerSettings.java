@@ -0,0 +1,401 @@
+package server;
+
+import message.MessageHistory;
+import message.PayloadCompression;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Properties;
+
+/**
+ * The settings the server is started with. Every setting has a default, so a server started without any
+ * arguments behaves like it always has: it listens on port 1234 and writes nothing to disk.
+ */
+public class ServerSettings {
+
+    private int port = 1234;
+    //null listens on every address of the machine
+    private String bindAddress = null;
+    private ThreadingMode threadingMode = ThreadingMode.BLOCKING;
+    private int outboundQueueCapacity = 1024;
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+    private long slowConsumerTimeoutMillis = 5000;
+    private int historySize = MessageHistory.DEFAULT_CAPACITY;
+    private int replaySize = 100;
+    //null, the default, turns the journal off. Without a journal the resumption ticket keys are not saved either.
+    private File journalDirectory = null;
+    private long journalSegmentSize = 16 * 1024 * 1024;
+    private int journalSegments = 8;
+    private long journalSyncIntervalMillis = 50;
+    //0 never writes out the metrics
+    private int metricsIntervalSeconds = 0;
+    //Frames are already gathered into as few writes as possible, so Nagle's algorithm would only delay them
+    private boolean tcpNoDelay = true;
+    //0 leaves the send buffer of the sockets to the operating system
+    private int sendBufferSize = 0;
+    private int writeBatchSize = 64 * 1024;
+    //0 turns compression off
+    private int compressionThreshold = PayloadCompression.DEFAULT_THRESHOLD;
+    //0 issues no resumption tickets
+    private long ticketLifetimeSeconds = 24 * 60 * 60;
+
+    /**
+     * Reads the settings from command line arguments of the form --name=value.
+     * --config=&lt;file&gt; reads the settings from a properties file first, with the same names as keys (e.g.
+     * port=4000), and the other arguments override what is in the file.
+     * Supported arguments: --port, --bind (an address of this machine), --threading, --outbound-queue-capacity, --slow-consumer-policy, --slow-consumer-timeout (milliseconds)
+     * --history-size, --replay-size, --journal (a directory, or "off"), --journal-segment-size (bytes), --journal-segments and
+     * --journal-sync-interval (milliseconds), --metrics-interval (seconds), --tcp-no-delay (true or false),
+     * --send-buffer-size, --write-batch-size and --compression-threshold (bytes), --ticket-lifetime (seconds)
+     * @param args the command line arguments
+     * @return the settings, with defaults for every argument that was not given
+     */
+    public static ServerSettings fromArguments(String[] args) {
+        ServerSettings settings = new ServerSettings();
+        for (String arg : args) {
+            if (arg.startsWith("--config=")) {
+                settings.load(new File(arg.substring("--config=".length())));
+            }
+        }
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected an argument of the form --name=value but got: " + arg);
+            }
+            String name = arg.substring(2, separator);
+            if (!name.equals("config")) {
+                settings.set(name, arg.substring(separator + 1));
+            }
+        }
+        settings.validate();
+        return settings;
+    }
+
+    /**
+     * Checks the settings that depend on each other, once all of them have been set
+     * @throws IllegalArgumentException if the messages a client is sent when it joins do not fit in its outbound queue,
+     * the slow consumer policy would then disconnect every client that joins or drop what it is sent first
+     */
+    public void validate() {
+        if (replaySize + ClientRegistry.JOIN_FRAMES > outboundQueueCapacity) {
+            throw new IllegalArgumentException("The outbound queue capacity (" + outboundQueueCapacity + ") must be at least the replay size ("
+                    + replaySize + ") plus " + ClientRegistry.JOIN_FRAMES);
+        }
+    }
+
+    /**
+     * Reads settings from a properties file, one name=value per line
+     * @param file the file to read the settings from
+     */
+    public void load(File file) {
+        Properties properties = new Properties();
+        try (InputStream inputStream = new FileInputStream(file)) {
+            properties.load(inputStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't read the server settings from " + file, e);
+        }
+        for (String name : properties.stringPropertyNames()) {
+            set(name, properties.getProperty(name));
+        }
+    }
+
+    /**
+     * Sets one setting by name
+     * @param name the name of the setting, e.g. "threading"
+     * @param value the value of the setting as text
+     */
+    public void set(String name, String value) {
+        switch (name) {
+            case "port":
+                setPort(Integer.parseInt(value.trim()));
+                break;
+            case "bind":
+                setBindAddress(value.trim().isEmpty() ? null : value.trim());
+                break;
+            case "threading":
+                setThreadingMode(ThreadingMode.fromString(value));
+                break;
+            case "outbound-queue-capacity":
+                setOutboundQueueCapacity(Integer.parseInt(value.trim()));
+                break;
+            case "slow-consumer-policy":
+                setSlowConsumerPolicy(SlowConsumerPolicy.fromString(value));
+                break;
+            case "slow-consumer-timeout":
+                setSlowConsumerTimeoutMillis(Long.parseLong(value.trim()));
+                break;
+            case "history-size":
+                setHistorySize(Integer.parseInt(value.trim()));
+                break;
+            case "replay-size":
+                setReplaySize(Integer.parseInt(value.trim()));
+                break;
+            case "journal":
+                setJournalDirectory(value.trim().equalsIgnoreCase("off") ? null : new File(value.trim()));
+                break;
+            case "journal-segment-size":
+                setJournalSegmentSize(Long.parseLong(value.trim()));
+                break;
+            case "journal-segments":
+                setJournalSegments(Integer.parseInt(value.trim()));
+                break;
+            case "journal-sync-interval":
+                setJournalSyncIntervalMillis(Long.parseLong(value.trim()));
+                break;
+            case "metrics-interval":
+                setMetricsIntervalSeconds(Integer.parseInt(value.trim()));
+                break;
+            case "tcp-no-delay":
+                setTcpNoDelay(Boolean.parseBoolean(value.trim()));
+                break;
+            case "send-buffer-size":
+                setSendBufferSize(Integer.parseInt(value.trim()));
+                break;
+            case "write-batch-size":
+                setWriteBatchSize(Integer.parseInt(value.trim()));
+                break;
+            case "compression-threshold":
+                setCompressionThreshold(Integer.parseInt(value.trim()));
+                break;
+            case "ticket-lifetime":
+                setTicketLifetimeSeconds(Long.parseLong(value.trim()));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown server setting: " + name);
+        }
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        if (port < 0 || port > 65535) {
+            throw new IllegalArgumentException("The port must be between 0 and 65535");
+        }
+        this.port = port;
+    }
+
+    /**
+     * @return the address the server listens on, or null to listen on every address of the machine
+     */
+    public String getBindAddress() {
+        return bindAddress;
+    }
+
+    public void setBindAddress(String bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+
+    public ThreadingMode getThreadingMode() {
+        return threadingMode;
+    }
+
+    public void setThreadingMode(ThreadingMode threadingMode) {
+        this.threadingMode = threadingMode;
+    }
+
+    /**
+     * @return how many objects may wait to be written to one client before the slow consumer policy kicks in
+     */
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    public void setOutboundQueueCapacity(int outboundQueueCapacity) {
+        if (outboundQueueCapacity < 1) {
+            throw new IllegalArgumentException("The outbound queue capacity must be at least 1");
+        }
+        this.outboundQueueCapacity = outboundQueueCapacity;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    /**
+     * @return how long a sender waits for room in a full queue when the policy is BLOCK
+     */
+    public long getSlowConsumerTimeoutMillis() {
+        return slowConsumerTimeoutMillis;
+    }
+
+    public void setSlowConsumerTimeoutMillis(long slowConsumerTimeoutMillis) {
+        this.slowConsumerTimeoutMillis = slowConsumerTimeoutMillis;
+    }
+
+    /**
+     * @return how many of the most recent messages the server keeps in memory, older ones spill to disk
+     */
+    public int getHistorySize() {
+        return historySize;
+    }
+
+    public void setHistorySize(int historySize) {
+        if (historySize < 1) {
+            throw new IllegalArgumentException("The history size must be at least 1");
+        }
+        this.historySize = historySize;
+    }
+
+    /**
+     * @return how many of the most recent chat messages a client is sent when it connects
+     */
+    public int getReplaySize() {
+        return replaySize;
+    }
+
+    public void setReplaySize(int replaySize) {
+        if (replaySize < 0) {
+            throw new IllegalArgumentException("The replay size can't be negative");
+        }
+        this.replaySize = replaySize;
+    }
+
+    /**
+     * @return the directory the message journal is kept in, or null if the server does not keep a journal
+     */
+    public File getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    public void setJournalDirectory(File journalDirectory) {
+        this.journalDirectory = journalDirectory;
+    }
+
+    /**
+     * @return how many bytes a journal segment may grow to before the next one is started
+     */
+    public long getJournalSegmentSize() {
+        return journalSegmentSize;
+    }
+
+    public void setJournalSegmentSize(long journalSegmentSize) {
+        if (journalSegmentSize < 1) {
+            throw new IllegalArgumentException("The journal segment size must be at least 1 byte");
+        }
+        this.journalSegmentSize = journalSegmentSize;
+    }
+
+    /**
+     * @return how many journal segments are kept, older ones are deleted
+     */
+    public int getJournalSegments() {
+        return journalSegments;
+    }
+
+    public void setJournalSegments(int journalSegments) {
+        if (journalSegments < 1) {
+            throw new IllegalArgumentException("At least 1 journal segment has to be kept");
+        }
+        this.journalSegments = journalSegments;
+    }
+
+    /**
+     * @return how long a message may wait before the journal writes it and forces it to disk
+     */
+    public long getJournalSyncIntervalMillis() {
+        return journalSyncIntervalMillis;
+    }
+
+    public void setJournalSyncIntervalMillis(long journalSyncIntervalMillis) {
+        if (journalSyncIntervalMillis < 1) {
+            throw new IllegalArgumentException("The journal sync interval must be at least 1 millisecond");
+        }
+        this.journalSyncIntervalMillis = journalSyncIntervalMillis;
+    }
+
+    /**
+     * @return how often a headless server writes its metrics to standard output, in seconds, or 0 for never
+     */
+    public int getMetricsIntervalSeconds() {
+        return metricsIntervalSeconds;
+    }
+
+    public void setMetricsIntervalSeconds(int metricsIntervalSeconds) {
+        if (metricsIntervalSeconds < 0) {
+            throw new IllegalArgumentException("The metrics interval can't be negative");
+        }
+        this.metricsIntervalSeconds = metricsIntervalSeconds;
+    }
+
+    /**
+     * @return whether small writes to a client go out right away (TCP_NODELAY) instead of waiting for the
+     * acknowledgement of the previous packet
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * @return the size of the socket send buffer of every client in bytes, or 0 to leave it to the operating system
+     */
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public void setSendBufferSize(int sendBufferSize) {
+        if (sendBufferSize < 0) {
+            throw new IllegalArgumentException("The send buffer size can't be negative");
+        }
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    /**
+     * @return how many bytes of queued frames are gathered into one write to a client at most
+     */
+    public int getWriteBatchSize() {
+        return writeBatchSize;
+    }
+
+    public void setWriteBatchSize(int writeBatchSize) {
+        if (writeBatchSize < 1024) {
+            throw new IllegalArgumentException("The write batch size must be at least 1024 bytes");
+        }
+        this.writeBatchSize = writeBatchSize;
+    }
+
+    /**
+     * @return how long a message or frame has to be, in bytes, before it is compressed for the clients that support
+     * it, or 0 if nothing is compressed
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < 0) {
+            throw new IllegalArgumentException("The compression threshold can't be negative");
+        }
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * @return how long a client may resume its session with the ticket it was given, in seconds, or 0 if clients
+     * are given no tickets
+     */
+    public long getTicketLifetimeSeconds() {
+        return ticketLifetimeSeconds;
+    }
+
+    public void setTicketLifetimeSeconds(long ticketLifetimeSeconds) {
+        if (ticketLifetimeSeconds < 0) {
+            throw new IllegalArgumentException("The ticket lifetime can't be negative");
+        }
+        this.ticketLifetimeSeconds = ticketLifetimeSeconds;
+    }
+}
@@ -1,57 +1,156 @@
-package server;
-
-import javax.swing.*;
-import java.awt.*;
-
-public class ServerView {
-    private JPanel serverPanel;
-    private JTextArea chatArea;
-    private JTextArea onlineUsersArea;
-    private JButton shutDownButton;
-    private JButton startServerButton;
-    private JButton loadChatButton;
-    private JButton saveChatButton;
-
-    private ServerModel serverModel;
-
-    public ServerView(ServerModel serverModel){
-        this.serverModel = serverModel;
-        serverPanel.setPreferredSize(new Dimension(450,500));
-    }
-
-    public JPanel getServerPanel(){
-        return serverPanel;
-    }
-
-    public JButton getSaveChatButton(){
-        return saveChatButton;
-    }
-
-    public JButton getLoadChatButton() {
-        return loadChatButton;
-    }
-
-    public JButton getShutDownButton() {
-        return shutDownButton;
-    }
-
-    public JButton getStartServerButton() {
-        return startServerButton;
-    }
-
-    public void updateUsers() {
-        onlineUsersArea.setText("");
-        for (String user : serverModel.getOnlineUsers()){
-            onlineUsersArea.append(user);
-        }
-    }
-
-    public void updateMessages() {
-        chatArea.append(serverModel.getLatestMessage());
-    }
-
-    public void clearChat(){
-        chatArea.setText("");
-    }
-
-}
+package server;
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The window of the server. Messages and changes to the online users come in on the threads of the clients, often
+ * hundreds a second, while Swing may only be touched on the event dispatch thread. They are therefore only queued
+ * here, without ever waiting for the window, and applied together in one pass on the event dispatch thread at most
+ * once every frame interval. The chat area only shows the most recent messages, the whole log stays in the model.
+ */
+public class ServerView implements ServerObserver {
+
+    //How often the window is brought up to date at most, about 30 times a second
+    private static final int FRAME_INTERVAL_MILLIS = 33;
+    //How many lines the chat area holds, older ones are removed from the top. Also the most that can be waiting.
+    private static final int MAX_CHAT_LINES = 5000;
+
+    private JPanel serverPanel;
+    private JTextArea chatArea;
+    private JTextArea onlineUsersArea;
+    private JButton shutDownButton;
+    private JButton startServerButton;
+    private JButton loadChatButton;
+    private JButton saveChatButton;
+
+    private ServerModel serverModel;
+
+    //The messages that have not been shown yet, and whether the online users have changed since the last update
+    private final ConcurrentLinkedQueue<String> pendingMessages = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean usersChanged = new AtomicBoolean();
+    //Set while an update is waiting for its turn, so that a burst of messages only schedules one
+    private final AtomicBoolean updateScheduled = new AtomicBoolean();
+    private final Timer updateTimer;
+
+    public ServerView(ServerModel serverModel){
+        this.serverModel = serverModel;
+        serverPanel.setPreferredSize(new Dimension(450,500));
+        updateTimer = new Timer(FRAME_INTERVAL_MILLIS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                applyUpdates();
+            }
+        });
+        updateTimer.setRepeats(false);
+    }
+
+    public JPanel getServerPanel(){
+        return serverPanel;
+    }
+
+    public JButton getSaveChatButton(){
+        return saveChatButton;
+    }
+
+    public JButton getLoadChatButton() {
+        return loadChatButton;
+    }
+
+    public JButton getShutDownButton() {
+        return shutDownButton;
+    }
+
+    public JButton getStartServerButton() {
+        return startServerButton;
+    }
+
+    /**
+     * Tells the view that a user has connected or disconnected. Can be called from any thread.
+     */
+    @Override
+    public void updateUsers() {
+        usersChanged.set(true);
+        scheduleUpdate();
+    }
+
+    /**
+     * Adds a message to the chat area with the next update. Can be called from any thread, it never waits.
+     */
+    @Override
+    public void addMessage(String message) {
+        pendingMessages.add(message);
+        //if the window has fallen this far behind, the oldest waiting messages would be cut off right away anyway
+        if (pendingCount.incrementAndGet() > MAX_CHAT_LINES && pendingMessages.poll() != null) {
+            pendingCount.decrementAndGet();
+        }
+        scheduleUpdate();
+    }
+
+    private void scheduleUpdate() {
+        if (updateScheduled.compareAndSet(false, true)) {
+            updateTimer.start();
+        }
+    }
+
+    //Applies everything that has come in since the last update, on the event dispatch thread
+    private void applyUpdates() {
+        //cleared first, so that anything that comes in from here on schedules the next update
+        updateScheduled.set(false);
+        if (usersChanged.getAndSet(false)) {
+            StringBuilder users = new StringBuilder();
+            for (String user : serverModel.getOnlineUsers()){
+                users.append(user);
+            }
+            onlineUsersArea.setText(users.toString());
+        }
+        StringBuilder text = new StringBuilder();
+        String message;
+        while ((message = pendingMessages.poll()) != null) {
+            pendingCount.decrementAndGet();
+            text.append(message);
+        }
+        if (text.length() > 0) {
+            chatArea.append(text.toString());
+            trimChat();
+        }
+    }
+
+    //Removes the oldest lines once the chat area holds more than it should
+    private void trimChat() {
+        int excess = chatArea.getLineCount() - MAX_CHAT_LINES;
+        if (excess > 0) {
+            try {
+                chatArea.replaceRange("", 0, chatArea.getLineStartOffset(excess));
+            } catch (BadLocationException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public void clearChat(){
+        chatArea.setText("");
+    }
+
+    /**
+     * Replaces the chat with the given messages, in one go
+     */
+    @Override
+    public void showMessages(List<String> messages){
+        StringBuilder text = new StringBuilder();
+        for (String message : messages){
+            text.append(message);
+        }
+        chatArea.setText(text.toString());
+        trimChat();
+    }
+
+}
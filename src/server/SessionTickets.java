@@ -0,0 +1,267 @@
+package server;
+
+import message.CipherEngine;
+import message.WireProtocol;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Issues and checks the resumption tickets that let a client connect again without a new key exchange, e.g. after its
+ * connection dropped or the server was restarted.
+ *
+ * Every ticket seals a resume key of its own, which the client is sent encrypted for it alone. The ticket only says
+ * who may try to resume: before the server hands over the session, and before it replaces a connection that is still
+ * open, the client has to sign a random challenge with the resume key, see message.WireProtocol.resumeProof(). A
+ * ticket that was read off the wire is no use on its own.
+ *
+ * A ticket is the id of the ticket key it was sealed with, followed by the rest encrypted with AES-GCM under that key:
+ * <pre>
+ *     byte key id | encrypted(long expires at (epoch millis) | short username length | username | resume key)
+ * </pre>
+ * The server keeps nothing per ticket, so thousands of clients can come back at once after a restart without the
+ * server having to remember them.
+ *
+ * The ticket key is replaced once it is older than the lifetime of a ticket. The one before it is kept, so that the
+ * tickets it sealed still work until they expire. With a journal both keys are kept in its directory, so that tickets
+ * survive a restart. Without one the keys only last as long as the server runs.
+ */
+class SessionTickets {
+
+    static final String KEY_FILE = "ticket.key";
+    private static final int KEY_LENGTH = 32;
+    //byte id | long created at (epoch millis) | key
+    private static final int ENTRY_LENGTH = 1 + 8 + KEY_LENGTH;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Path keyFile;
+    private final long lifetimeMillis;
+    //The key new tickets are sealed with, and the one before it. Replaced together under this object's lock.
+    private volatile TicketKey currentKey;
+    private volatile TicketKey previousKey;
+
+    /**
+     * @param keyFile where the ticket keys are kept, it is created if it does not exist yet. Null keeps them in memory.
+     * @param lifetimeMillis how long a ticket can be used after it was issued, 0 issues no tickets
+     */
+    SessionTickets(File keyFile, long lifetimeMillis) {
+        this.keyFile = keyFile == null ? null : keyFile.toPath();
+        this.lifetimeMillis = lifetimeMillis;
+        if (this.keyFile != null) {
+            try {
+                loadKeys();
+            } catch (IOException e) {
+                //the tickets still work, they only stop working when the server is restarted
+                e.printStackTrace();
+            }
+        }
+        if (currentKey == null) {
+            currentKey = new TicketKey((byte) 0, System.currentTimeMillis(), randomBytes(KEY_LENGTH));
+            saveKeys();
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        RANDOM.nextBytes(bytes);
+        return bytes;
+    }
+
+    //Reads the keys a server on the same directory left behind. A file that can not be used is replaced.
+    private void loadKeys() throws IOException {
+        if (!Files.exists(keyFile)) {
+            return;
+        }
+        byte[] bytes = Files.readAllBytes(keyFile);
+        if (bytes.length == 0 || bytes.length % ENTRY_LENGTH != 0 || bytes.length > 2 * ENTRY_LENGTH) {
+            throw new IOException("The ticket keys in " + keyFile + " can not be read, new ones are created");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        currentKey = readKey(buffer);
+        if (buffer.hasRemaining()) {
+            previousKey = readKey(buffer);
+        }
+    }
+
+    private static TicketKey readKey(ByteBuffer buffer) {
+        byte id = buffer.get();
+        long createdAt = buffer.getLong();
+        byte[] key = new byte[KEY_LENGTH];
+        buffer.get(key);
+        return new TicketKey(id, createdAt, key);
+    }
+
+    //Writes the keys to a file of their own next to the key file and moves it into place, so that a server starting on
+    //the same directory reads either the old keys or the new ones, never half of them
+    private void saveKeys() {
+        if (keyFile == null) {
+            return;
+        }
+        TicketKey previous = previousKey;
+        ByteBuffer buffer = ByteBuffer.allocate(previous == null ? ENTRY_LENGTH : 2 * ENTRY_LENGTH);
+        currentKey.writeTo(buffer);
+        if (previous != null) {
+            previous.writeTo(buffer);
+        }
+        Path temporary = null;
+        try {
+            Path directory = keyFile.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+            try {
+                //only the owner of the server process can read it
+                temporary = Files.createTempFile(directory, KEY_FILE, ".tmp",
+                        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } catch (UnsupportedOperationException e) {
+                //not a POSIX file system
+                temporary = Files.createTempFile(directory, KEY_FILE, ".tmp");
+            }
+            Files.write(temporary, buffer.array());
+            try {
+                Files.move(temporary, keyFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, keyFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            //the tickets still work, they only stop working when the server is restarted
+            e.printStackTrace();
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException ignored) {
+                    //nothing more to do about it
+                }
+            }
+        }
+    }
+
+    //Replaces the ticket key once it has sealed tickets for a whole ticket lifetime. Every ticket sealed with the one
+    //before it has expired by then.
+    private TicketKey keyForNewTickets() {
+        TicketKey key = currentKey;
+        if (System.currentTimeMillis() - key.createdAt < lifetimeMillis) {
+            return key;
+        }
+        synchronized (this) {
+            if (currentKey == key) {
+                previousKey = key;
+                currentKey = new TicketKey((byte) (key.id + 1), System.currentTimeMillis(), randomBytes(KEY_LENGTH));
+                saveKeys();
+            }
+            return currentKey;
+        }
+    }
+
+    /**
+     * @return false if clients are given no tickets
+     */
+    boolean isEnabled() {
+        return lifetimeMillis > 0;
+    }
+
+    /**
+     * @return a new random resume key to seal into a ticket
+     */
+    SecretKey newResumeKey() {
+        return new SecretKeySpec(randomBytes(KEY_LENGTH), "AES");
+    }
+
+    /**
+     * @return new random bytes for a client that resumes to sign with its resume key
+     */
+    byte[] newChallenge() {
+        return randomBytes(WireProtocol.RESUME_CHALLENGE_LENGTH);
+    }
+
+    /**
+     * @param username the user the ticket is for, only that user can resume with it
+     * @param resumeKey the key the client has to prove it holds when it resumes, see newResumeKey()
+     * @return the ticket to send to the client
+     */
+    byte[] issue(String username, SecretKey resumeKey) throws GeneralSecurityException {
+        TicketKey ticketKey = keyForNewTickets();
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        byte[] key = resumeKey.getEncoded();
+        ByteBuffer plaintext = ByteBuffer.allocate(8 + 2 + name.length + key.length);
+        plaintext.putLong(System.currentTimeMillis() + lifetimeMillis);
+        plaintext.putShort((short) name.length);
+        plaintext.put(name);
+        plaintext.put(key);
+        byte[] sealed = ticketKey.engine.encrypt(plaintext.array());
+        byte[] ticket = new byte[1 + sealed.length];
+        ticket[0] = ticketKey.id;
+        System.arraycopy(sealed, 0, ticket, 1, sealed.length);
+        return ticket;
+    }
+
+    /**
+     * Checks a ticket a client sent to resume its session
+     * @param ticket the ticket as the client sent it
+     * @param username the user the client says it is
+     * @return the resume key sealed in the ticket, or null if the ticket was not issued by this server (or one with the
+     * same ticket keys), has expired, or belongs to another user
+     */
+    SecretKey open(byte[] ticket, String username) {
+        if (!isEnabled() || ticket.length == 0) {
+            return null;
+        }
+        TicketKey ticketKey = currentKey;
+        if (ticketKey.id != ticket[0]) {
+            ticketKey = previousKey;
+            if (ticketKey == null || ticketKey.id != ticket[0]) {
+                return null;
+            }
+        }
+        try {
+            ByteBuffer plaintext = ByteBuffer.wrap(ticketKey.engine.decrypt(Arrays.copyOfRange(ticket, 1, ticket.length)));
+            if (plaintext.getLong() < System.currentTimeMillis()) {
+                return null;
+            }
+            byte[] name = new byte[plaintext.getShort() & 0xffff];
+            plaintext.get(name);
+            if (!username.equals(new String(name, StandardCharsets.UTF_8))) {
+                return null;
+            }
+            byte[] key = new byte[plaintext.remaining()];
+            plaintext.get(key);
+            return new SecretKeySpec(key, "AES");
+        } catch (GeneralSecurityException | BufferUnderflowException e) {
+            //a ticket that was tampered with, or encrypted with another ticket key
+            return null;
+        }
+    }
+
+    //A ticket key with the id that tickets sealed with it start with
+    private static final class TicketKey {
+
+        private final byte id;
+        private final long createdAt;
+        private final byte[] key;
+        private final CipherEngine engine;
+
+        private TicketKey(byte id, long createdAt, byte[] key) {
+            this.id = id;
+            this.createdAt = createdAt;
+            this.key = key;
+            this.engine = new CipherEngine(new SecretKeySpec(key, "AES"));
+        }
+
+        private void writeTo(ByteBuffer buffer) {
+            buffer.put(id);
+            buffer.putLong(createdAt);
+            buffer.put(key);
+        }
+    }
+}
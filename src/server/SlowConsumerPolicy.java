@@ -0,0 +1,36 @@
+package server;
+
+/**
+ * What the server does when a client reads so slowly that its outbound queue is full.
+ */
+public enum SlowConsumerPolicy {
+
+    /**
+     * Throw away the oldest queued object to make room for the new one. The client misses some messages but stays connected.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Disconnect the client as soon as its queue is full.
+     */
+    DISCONNECT,
+
+    /**
+     * Make the sender wait for room in the queue, and disconnect the client if there is still no room after the timeout.
+     * The sender of a broadcast waits before it broadcasts, on its own thread and without holding any lock, so a slow
+     * client only holds up the senders of the messages it is sent, each on its own thread, and never a broadcast that
+     * is under way or a client that joins or leaves.
+     * A sender on a NIO event loop never waits, since that would hold up every connection of the loop, so the client
+     * is disconnected right away as with DISCONNECT.
+     */
+    BLOCK;
+
+    /**
+     * Parses a policy given on the command line, e.g. "drop-oldest", "disconnect" or "block"
+     * @param value the name of the policy, case insensitive
+     * @return the matching policy
+     */
+    public static SlowConsumerPolicy fromString(String value) {
+        return SlowConsumerPolicy.valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,34 @@
+package server;
+
+/**
+ * Selects how the server spends threads on its connected clients.
+ * The mode is chosen once at startup so that the different engines can be compared against each other.
+ */
+public enum ThreadingMode {
+
+    /**
+     * One platform thread per connected client, blocked in readObject() until the client sends something.
+     * This is the original behaviour of the server.
+     */
+    BLOCKING,
+
+    /**
+     * The same blocking code as BLOCKING, but every client runs on a virtual thread (Java 21+),
+     * so idle clients cost a small heap object instead of a whole platform thread stack.
+     */
+    VIRTUAL,
+
+    /**
+     * A small fixed set of selector event loops that accept, read and write for all connections.
+     */
+    NIO;
+
+    /**
+     * Parses a threading mode given on the command line, e.g. "nio" or "blocking"
+     * @param value the name of the mode, case insensitive
+     * @return the matching threading mode
+     */
+    public static ThreadingMode fromString(String value) {
+        return ThreadingMode.valueOf(value.trim().toUpperCase());
+    }
+}
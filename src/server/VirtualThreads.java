@@ -0,0 +1,40 @@
+package server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the executor for ThreadingMode.VIRTUAL.
+ * Virtual threads only exist from Java 21, so they are looked up by reflection to keep the project compiling on
+ * older JDKs. On a JVM without virtual threads the ServerModel uses ThreadingMode.BLOCKING instead, see isSupported().
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if this JVM can start virtual threads
+     */
+    static boolean isSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns an executor that starts a new virtual thread for every task
+     * @throws IllegalStateException if virtual threads are not supported by this JVM, check isSupported() first
+     */
+    static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Virtual threads are not supported by this JVM", e);
+        }
+    }
+}
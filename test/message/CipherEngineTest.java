@@ -0,0 +1,111 @@
+package message;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class CipherEngineTest {
+
+    private static SecretKey newKey() throws GeneralSecurityException {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        return keyGenerator.generateKey();
+    }
+
+    private static ByteBuffer nonceOf(byte[] ciphertext) {
+        return ByteBuffer.wrap(ciphertext, 0, CipherEngine.NONCE_LENGTH).slice();
+    }
+
+    @Test
+    void decryptsWhatItEncrypted() throws GeneralSecurityException {
+        CipherEngine cipherEngine = new CipherEngine(newKey());
+        byte[] plaintext = "hello".getBytes(StandardCharsets.UTF_8);
+        byte[] ciphertext = cipherEngine.encrypt(plaintext);
+        assertEquals(CipherEngine.NONCE_LENGTH + plaintext.length + CipherEngine.TAG_LENGTH, ciphertext.length);
+        assertArrayEquals(plaintext, cipherEngine.decrypt(ciphertext));
+    }
+
+    @Test
+    void neverUsesANonceTwice() throws GeneralSecurityException {
+        SecretKey key = newKey();
+        //the server and every client encrypt with the same key, each with an engine of its own
+        CipherEngine[] engines = {new CipherEngine(key), new CipherEngine(key), new CipherEngine(key)};
+        Set<ByteBuffer> nonces = new HashSet<>();
+        byte[] plaintext = new byte[1];
+        for (int i = 0; i < 10_000; i++) {
+            for (CipherEngine engine : engines) {
+                assertTrue(nonces.add(nonceOf(engine.encrypt(plaintext))), "a nonce was used twice");
+            }
+        }
+    }
+
+    @Test
+    void encryptingTheSameTextTwiceGivesDifferentCiphertext() throws GeneralSecurityException {
+        CipherEngine cipherEngine = new CipherEngine(newKey());
+        byte[] plaintext = "same".getBytes(StandardCharsets.UTF_8);
+        assertFalse(Arrays.equals(cipherEngine.encrypt(plaintext), cipherEngine.encrypt(plaintext)));
+    }
+
+    @Test
+    void rejectsATamperedMessage() throws GeneralSecurityException {
+        CipherEngine cipherEngine = new CipherEngine(newKey());
+        byte[] ciphertext = cipherEngine.encrypt("hello".getBytes(StandardCharsets.UTF_8));
+        ciphertext[CipherEngine.NONCE_LENGTH] ^= 1;
+        try {
+            cipherEngine.decrypt(ciphertext);
+            fail("Expected an AEADBadTagException");
+        } catch (AEADBadTagException expected) {
+            //GCM notices the change
+        }
+    }
+
+    @Test
+    void rejectsAMessageForAnotherKeyOrTooShort() throws GeneralSecurityException {
+        byte[] ciphertext = new CipherEngine(newKey()).encrypt(new byte[8]);
+        CipherEngine other = new CipherEngine(newKey());
+        for (byte[] bad : new byte[][]{ciphertext, new byte[CipherEngine.NONCE_LENGTH]}) {
+            try {
+                other.decrypt(bad);
+                fail("Expected an AEADBadTagException");
+            } catch (AEADBadTagException expected) {
+                //not ours, or not a whole ciphertext
+            }
+        }
+    }
+
+    @Test
+    void wrapsAndUnwrapsKeys() throws GeneralSecurityException {
+        CipherEngine cipherEngine = new CipherEngine(newKey());
+        SecretKey key = newKey();
+        assertArrayEquals(key.getEncoded(), cipherEngine.unwrapKey(cipherEngine.wrapKey(key)).getEncoded());
+    }
+
+    @Test
+    void refusesToUnwrapSomethingThatIsNotAnAesKey() throws GeneralSecurityException {
+        CipherEngine cipherEngine = new CipherEngine(newKey());
+        for (int length : new int[]{0, 5, 33}) {
+            try {
+                //wrapKey() encrypts the bytes of the key, so this is what a wrapped key of that length looks like
+                cipherEngine.unwrapKey(cipherEngine.encrypt(new byte[length]));
+                fail("Expected an InvalidKeyException for " + length + " bytes");
+            } catch (InvalidKeyException expected) {
+                //the length of an AES key is checked
+            }
+        }
+    }
+}
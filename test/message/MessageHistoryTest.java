@@ -0,0 +1,103 @@
+package message;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MessageHistoryTest {
+
+    @TempDir
+    File spillDirectory;
+
+    private MessageHistory history;
+
+    @BeforeEach
+    void createHistory() {
+        history = new MessageHistory(4, spillDirectory);
+    }
+
+    @AfterEach
+    void closeHistory() throws IOException {
+        history.close();
+    }
+
+    private static List<String> messages(int first, int end) {
+        List<String> messages = new ArrayList<>();
+        for (int i = first; i < end; i++) {
+            messages.add("message " + i);
+        }
+        return messages;
+    }
+
+    private void addMessages(int count) {
+        for (String message : messages(0, count)) {
+            history.add(message);
+        }
+    }
+
+    @Test
+    void keepsTheMostRecentMessagesInMemory() throws IOException {
+        addMessages(3);
+        assertEquals(3, history.size());
+        assertEquals(0, history.firstInMemory());
+        assertEquals(messages(0, 3), history.getPage(0, 10));
+    }
+
+    @Test
+    void spillsOlderMessagesToDisk() throws IOException {
+        addMessages(10);
+        assertEquals(10, history.size());
+        assertEquals(6, history.firstInMemory());
+        assertEquals(messages(0, 10), history.getPage(0, 10));
+    }
+
+    @Test
+    void readsAPageThatStartsOnDiskAndEndsInMemory() throws IOException {
+        addMessages(10);
+        assertEquals(messages(4, 8), history.getPage(4, 4));
+        assertEquals(messages(1, 3), history.getPage(1, 2));
+    }
+
+    @Test
+    void returnsFewerMessagesAtTheEnd() throws IOException {
+        addMessages(10);
+        assertEquals(messages(8, 10), history.getPage(8, 5));
+        assertEquals(new ArrayList<String>(), history.getPage(10, 5));
+    }
+
+    @Test
+    void pagesBackFromTheEnd() throws IOException {
+        addMessages(10);
+        assertEquals(messages(7, 10), history.getPageBefore(history.size(), 3));
+        assertEquals(messages(0, 2), history.getPageBefore(2, 3));
+    }
+
+    @Test
+    void keepsTextThatIsNotAscii() throws IOException {
+        List<String> texts = Arrays.asList("héllo", "日本語", "emoji 😀", "", "plain");
+        for (String text : texts) {
+            history.add(text);
+        }
+        history.add("one");
+        history.add("two");
+        assertEquals(texts, history.getPage(0, texts.size()));
+    }
+
+    @Test
+    void clearStartsOverFromIndexZero() throws IOException {
+        addMessages(10);
+        history.clear();
+        assertEquals(0, history.size());
+        addMessages(6);
+        assertEquals(messages(0, 6), history.getPage(0, 6));
+    }
+}
@@ -0,0 +1,265 @@
+package message;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class WireProtocolTest {
+
+    private static CipherEngine cipherEngine() throws GeneralSecurityException {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        return new CipherEngine(keyGenerator.generateKey());
+    }
+
+    //Reads an encoded frame back the way a peer does, and checks its type
+    private static ByteBuffer payload(ByteBuffer frame, FrameType expected) throws IOException {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        ByteBuffer read = WireProtocol.readFrame(new DataInputStream(new ByteArrayInputStream(bytes)));
+        assertEquals(expected, WireProtocol.readFrameType(read));
+        return read;
+    }
+
+    private static void assertRejected(ByteBuffer frame) {
+        try {
+            WireProtocol.decodeClientFrame(frame);
+            fail("Expected a ProtocolException");
+        } catch (ProtocolException expected) {
+            //the frame is refused instead of being misread
+        }
+    }
+
+    @Test
+    void preambleRoundTrips() throws ProtocolException {
+        Preamble preamble = new Preamble(WireProtocol.VERSION, Preamble.COMPRESSION);
+        Preamble decoded = WireProtocol.decodePreamble(WireProtocol.encodePreamble(preamble));
+        assertEquals(WireProtocol.VERSION, decoded.getVersion());
+        assertTrue(decoded.supports(Preamble.COMPRESSION));
+    }
+
+    @Test
+    void preambleWithoutTheMagicIsRefused() {
+        ByteBuffer objectStream = ByteBuffer.wrap(new byte[]{(byte) 0xAC, (byte) 0xED, 0, 5, 0, 0});
+        try {
+            WireProtocol.decodePreamble(objectStream);
+            fail("Expected a ProtocolException");
+        } catch (ProtocolException expected) {
+            //an old object stream client
+        }
+    }
+
+    @Test
+    void negotiationPicksWhatBothSidesSupport() throws ProtocolException {
+        Preamble agreed = WireProtocol.negotiate(new Preamble((byte) (WireProtocol.VERSION + 1), Preamble.COMPRESSION), (byte) 0);
+        assertEquals(WireProtocol.VERSION, agreed.getVersion());
+        assertFalse(agreed.supports(Preamble.COMPRESSION));
+        try {
+            WireProtocol.negotiate(new Preamble((byte) (WireProtocol.MIN_VERSION - 1), (byte) 0), Preamble.COMPRESSION);
+            fail("Expected a ProtocolException");
+        } catch (ProtocolException expected) {
+            //an older peer is refused
+        }
+    }
+
+    @Test
+    void handshakeRoundTrips() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        Handshake handshake = (Handshake) WireProtocol.decodeClientFrame(
+                payloadWithType(WireProtocol.encodeHandshake("alice", keyPair.getPublic(), 42)));
+        assertEquals("alice", handshake.getUsername());
+        assertEquals(42, handshake.getSinceSequence());
+        assertEquals(keyPair.getPublic(), handshake.getPublicKey());
+    }
+
+    @Test
+    void resumeRoundTrips() throws IOException {
+        byte[] ticket = {1, 2, 3, 4};
+        Handshake resume = (Handshake) WireProtocol.decodeClientFrame(payloadWithType(WireProtocol.encodeResume("bob", ticket, 7)));
+        assertEquals("bob", resume.getUsername());
+        assertArrayEquals(ticket, resume.getTicket());
+        assertEquals(7, resume.getSinceSequence());
+        assertNull(resume.getPublicKey());
+    }
+
+    @Test
+    void messageKeepsItsSequenceAndCiphertext() throws Exception {
+        CipherEngine cipherEngine = cipherEngine();
+        Message encrypted = new Message("alice", "hello", cipherEngine).withSequence(99);
+        Message decoded = WireProtocol.decodeMessage(payload(WireProtocol.encodeMessage(FrameType.CHAT, encrypted), FrameType.CHAT));
+        assertEquals(99, decoded.getSequence());
+        Message plain = decoded.decrypt(cipherEngine);
+        assertEquals("alice", plain.getSender());
+        assertEquals("hello", plain.getText());
+    }
+
+    @Test
+    void directMessageCarriesItsSenderAndRecipient() throws Exception {
+        Message encrypted = new Message("alice", "psst", cipherEngine());
+        DirectMessage fromClient = WireProtocol.decodeDirectMessage(
+                payload(WireProtocol.encodeDirectMessage(new DirectMessage("bob", encrypted)), FrameType.DIRECT));
+        assertNull(fromClient.getSender());
+        assertEquals("bob", fromClient.getRecipient());
+        assertArrayEquals(encrypted.getCiphertext(), fromClient.getMessage().getCiphertext());
+
+        DirectMessage fromServer = WireProtocol.decodeDirectMessage(
+                payload(WireProtocol.encodeDirectMessage(new DirectMessage("alice -> x", "bob", encrypted)), FrameType.DIRECT));
+        assertEquals("alice -> x", fromServer.getSender());
+        assertEquals("bob", fromServer.getRecipient());
+    }
+
+    @Test
+    void channelMessageCarriesItsSenderAndChannel() throws Exception {
+        Message encrypted = new Message("alice", "hi all", cipherEngine());
+        ChannelMessage decoded = WireProtocol.decodeChannelMessage(
+                payload(WireProtocol.encodeChannelMessage(new ChannelMessage("alice", "games", encrypted)), FrameType.CHANNEL));
+        assertEquals("alice", decoded.getSender());
+        assertEquals("games", decoded.getChannel());
+        assertArrayEquals(encrypted.getCiphertext(), decoded.getMessage().getCiphertext());
+    }
+
+    @Test
+    void presenceUpdatesRoundTrip() throws IOException {
+        List<String> users = Arrays.asList("alice", "bob");
+        PresenceUpdate snapshot = WireProtocol.decodePresence(FrameType.PRESENCE,
+                payload(WireProtocol.encodePresence(PresenceUpdate.snapshot(5, users)), FrameType.PRESENCE));
+        assertTrue(snapshot.isSnapshot());
+        assertEquals(5, snapshot.getSequence());
+        assertEquals(users, snapshot.getOnlineUsers());
+        assertNull(snapshot.getChannel());
+
+        PresenceUpdate left = WireProtocol.decodePresence(FrameType.PRESENCE_DELTA,
+                payload(WireProtocol.encodePresence(PresenceUpdate.left("games", 6, "bob")), FrameType.PRESENCE_DELTA));
+        assertFalse(left.isSnapshot());
+        assertEquals(PresenceUpdate.Kind.LEFT, left.getKind());
+        assertEquals("games", left.getChannel());
+        assertEquals("bob", left.getUsername());
+        assertEquals(6, left.getSequence());
+    }
+
+    @Test
+    void channelRequestRoundTrips() throws IOException {
+        ChannelRequest request = (ChannelRequest) WireProtocol.decodeClientFrame(
+                payloadWithType(WireProtocol.encodeChannelRequest(new ChannelRequest(ChannelRequest.Kind.JOIN, "games"))));
+        assertEquals(ChannelRequest.Kind.JOIN, request.getKind());
+        assertEquals("games", request.getChannel());
+    }
+
+    @Test
+    void ticketAndResumeChallengeRoundTrip() throws IOException {
+        ResumptionTicket ticket = WireProtocol.decodeTicket(
+                payload(WireProtocol.encodeTicket(new ResumptionTicket(new byte[]{1, 2, 3}, new byte[]{4, 5})), FrameType.TICKET));
+        assertArrayEquals(new byte[]{1, 2, 3}, ticket.getTicket());
+        assertArrayEquals(new byte[]{4, 5}, ticket.getWrappedKey());
+
+        byte[] challenge = new byte[WireProtocol.RESUME_CHALLENGE_LENGTH];
+        Arrays.fill(challenge, (byte) 7);
+        assertArrayEquals(challenge, WireProtocol.decodeResumeChallenge(
+                payload(WireProtocol.encodeResumeChallenge(challenge), FrameType.RESUME_CHALLENGE)));
+        try {
+            WireProtocol.decodeResumeChallenge(ByteBuffer.wrap(new byte[3]));
+            fail("Expected a ProtocolException");
+        } catch (ProtocolException expected) {
+            //a challenge of the wrong length
+        }
+    }
+
+    @Test
+    void resumeProofDependsOnKeyChallengeAndUser() throws Exception {
+        SecretKey key = KeyGenerator.getInstance("AES").generateKey();
+        SecretKey otherKey = KeyGenerator.getInstance("AES").generateKey();
+        byte[] challenge = new byte[WireProtocol.RESUME_CHALLENGE_LENGTH];
+        byte[] proof = WireProtocol.resumeProof(key, challenge, "alice");
+        assertArrayEquals(proof, WireProtocol.resumeProof(key, challenge, "alice"));
+        assertFalse(Arrays.equals(proof, WireProtocol.resumeProof(otherKey, challenge, "alice")));
+        assertFalse(Arrays.equals(proof, WireProtocol.resumeProof(key, challenge, "bob")));
+        challenge[0] = 1;
+        assertFalse(Arrays.equals(proof, WireProtocol.resumeProof(key, challenge, "alice")));
+    }
+
+    @Test
+    void errorRoundTrips() throws IOException {
+        assertEquals("The username alice is already taken", WireProtocol.decodeError(
+                payload(WireProtocol.encodeError("The username alice is already taken"), FrameType.ERROR)));
+    }
+
+    @Test
+    void compressedFrameUnpacksToTheFrameInside() throws IOException {
+        String[] names = new String[200];
+        Arrays.fill(names, "a rather long username");
+        ByteBuffer presence = WireProtocol.encodePresence(PresenceUpdate.snapshot(1, Arrays.asList(names)));
+        ByteBuffer compressed = WireProtocol.encodeCompressed(presence.duplicate(), new PayloadCompression(64, null));
+        assertTrue(compressed.remaining() < presence.remaining());
+        ByteBuffer inner = WireProtocol.decodeCompressed(payload(compressed, FrameType.COMPRESSED));
+        assertEquals(FrameType.PRESENCE, WireProtocol.readFrameType(inner));
+        assertEquals(Arrays.asList(names), WireProtocol.decodePresence(FrameType.PRESENCE, inner).getOnlineUsers());
+    }
+
+    @Test
+    void measuresFramesThatHaveArrivedInParts() throws ProtocolException {
+        ByteBuffer frame = WireProtocol.encodeError("partial");
+        int length = frame.remaining();
+        assertEquals(-1, WireProtocol.nextFrameLength(ByteBuffer.wrap(frame.array(), 0, 3)));
+        assertEquals(-1, WireProtocol.nextFrameLength(ByteBuffer.wrap(frame.array(), 0, length - 1)));
+        assertEquals(length, WireProtocol.nextFrameLength(frame));
+        assertEquals(0, frame.position());
+    }
+
+    @Test
+    void refusesFrameLengthsOutOfRange() {
+        for (int length : new int[]{0, -1, WireProtocol.MAX_FRAME_LENGTH + 1}) {
+            try {
+                WireProtocol.nextFrameLength(ByteBuffer.allocate(8).putInt(0, length));
+                fail("Expected a ProtocolException for a length of " + length);
+            } catch (ProtocolException expected) {
+                //a broken or malicious peer
+            }
+        }
+    }
+
+    @Test
+    void refusesBrokenFramesFromAClient() {
+        //an unknown frame type
+        assertRejected(ByteBuffer.wrap(new byte[]{99}));
+        //a frame type only the server sends
+        assertRejected(ByteBuffer.wrap(new byte[]{FrameType.TICKET.getTag()}));
+        //a handshake that ends in the middle of the username
+        assertRejected(ByteBuffer.wrap(new byte[]{FrameType.HANDSHAKE.getTag(), 0, 10, 'a'}));
+        //a direct message whose sender is longer than the frame
+        assertRejected(ByteBuffer.wrap(new byte[]{FrameType.DIRECT.getTag(), 0x7f, 0}));
+        //a chat message without its sequence number
+        assertRejected(ByteBuffer.wrap(new byte[]{FrameType.CHAT.getTag(), 1, 2}));
+    }
+
+    @Test
+    void presenceResyncHasNoPayload() throws IOException {
+        assertSame(FrameType.PRESENCE_RESYNC, WireProtocol.decodeClientFrame(payloadWithType(WireProtocol.encodePresenceResync())));
+    }
+
+    //The type and payload of an encoded frame, for decodeClientFrame() which reads the type itself
+    private static ByteBuffer payloadWithType(ByteBuffer frame) {
+        frame.position(frame.position() + WireProtocol.LENGTH_FIELD_SIZE);
+        return frame.slice();
+    }
+}
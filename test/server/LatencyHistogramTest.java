@@ -0,0 +1,76 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+
+    @Test
+    void smallValuesHaveABucketEach() {
+        for (long value = 0; value < 16; value++) {
+            assertEquals(value, LatencyHistogram.bucketOf(value));
+            assertEquals(value, LatencyHistogram.highestValueIn((int) value));
+        }
+    }
+
+    @Test
+    void everyValueFallsIntoTheBucketThatCoversIt() {
+        long[] values = {16, 17, 100, 1000, 4095, 4096, 123_456_789, Long.MAX_VALUE / 3, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(value <= LatencyHistogram.highestValueIn(bucket), "value " + value);
+            assertTrue(value > LatencyHistogram.highestValueIn(bucket - 1), "value " + value);
+        }
+    }
+
+    @Test
+    void bucketsAreAtMostAnEighthWide() {
+        for (long value = 16; value > 0 && value < Long.MAX_VALUE / 2; value = value * 3 + 1) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            long width = LatencyHistogram.highestValueIn(bucket) - LatencyHistogram.highestValueIn(bucket - 1);
+            assertTrue(width <= value / 8 + 1, "value " + value + " width " + width);
+        }
+    }
+
+    @Test
+    void bucketsFollowEachOtherWithoutGaps() {
+        for (int bucket = 1; LatencyHistogram.highestValueIn(bucket) > 0 && LatencyHistogram.highestValueIn(bucket) < Long.MAX_VALUE; bucket++) {
+            assertEquals(bucket, LatencyHistogram.bucketOf(LatencyHistogram.highestValueIn(bucket)));
+            assertEquals(bucket, LatencyHistogram.bucketOf(LatencyHistogram.highestValueIn(bucket - 1) + 1));
+        }
+    }
+
+    @Test
+    void percentilesAreWithinAnEighthOfTheValue() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros * 1000);
+        }
+        LatencySummary summary = histogram.summarize();
+        assertEquals(1000, summary.getCount());
+        assertEquals(500_500, summary.getMeanNanos());
+        assertEquals(1_000_000, summary.getMaxNanos());
+        assertWithinAnEighth(500_000, summary.getP50Nanos());
+        assertWithinAnEighth(990_000, summary.getP99Nanos());
+        assertWithinAnEighth(999_000, summary.getP999Nanos());
+        assertTrue(summary.getP999Nanos() <= summary.getMaxNanos());
+    }
+
+    private static void assertWithinAnEighth(long expected, long actual) {
+        assertTrue(actual >= expected && actual <= expected + expected / 8, "expected about " + expected + " but got " + actual);
+    }
+
+    @Test
+    void negativeValuesCountAsZeroAndResetForgetsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.summarize().getCount());
+        assertEquals(0, histogram.summarize().getMaxNanos());
+        histogram.reset();
+        LatencySummary summary = histogram.summarize();
+        assertEquals(0, summary.getCount());
+        assertEquals(0, summary.getP99Nanos());
+    }
+}
@@ -0,0 +1,156 @@
+package server;
+
+import message.MessageHistory;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageJournalTest {
+
+    @TempDir
+    File directory;
+
+    private final List<MessageHistory> histories = new ArrayList<>();
+
+    @AfterEach
+    void closeHistories() throws IOException {
+        for (MessageHistory history : histories) {
+            history.close();
+        }
+    }
+
+    private MessageJournal journal(long segmentSize, int retainedSegments) {
+        return new MessageJournal(directory, segmentSize, retainedSegments, 5, new ServerMetrics(null));
+    }
+
+    private MessageHistory history() {
+        MessageHistory history = new MessageHistory(1000);
+        histories.add(history);
+        return history;
+    }
+
+    private void write(String... messages) throws IOException {
+        MessageJournal journal = journal(1024 * 1024, 8);
+        journal.open(history());
+        for (String message : messages) {
+            journal.append(message, true);
+        }
+        journal.close();
+    }
+
+    //Reads the journal back the way the server does when it starts
+    private List<String> recover(MessageJournal journal) throws IOException {
+        MessageHistory history = history();
+        long recovered = journal.open(history);
+        journal.close();
+        assertEquals(history.size(), recovered);
+        return history.getPage(0, (int) recovered);
+    }
+
+    private File onlySegment() {
+        File[] segments = segments();
+        assertEquals(1, segments.length);
+        return segments[0];
+    }
+
+    private File[] segments() {
+        File[] segments = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("journal-") && name.endsWith(".log");
+            }
+        });
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    @Test
+    void readsBackWhatWasAppended() throws IOException {
+        write("one", "two", "drei ü");
+        assertEquals(Arrays.asList("one", "two", "drei ü"), recover(journal(1024 * 1024, 8)));
+    }
+
+    @Test
+    void appendsAfterWhatWasReadBack() throws IOException {
+        write("one", "two");
+        write("three");
+        assertEquals(Arrays.asList("one", "two", "three"), recover(journal(1024 * 1024, 8)));
+    }
+
+    @Test
+    void cutsOffAHalfWrittenRecord() throws IOException {
+        write("one", "two");
+        File segment = onlySegment();
+        long intact = segment.length();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            //the header of a record whose text never made it to the disk
+            file.seek(intact);
+            file.writeInt(100);
+            file.writeInt(0);
+            file.write(new byte[10]);
+        }
+        MessageJournal journal = journal(1024 * 1024, 8);
+        assertEquals(Arrays.asList("one", "two"), recover(journal));
+        assertEquals(1, journal.getRepairs().size());
+        assertEquals(intact, segment.length());
+
+        write("three");
+        assertEquals(Arrays.asList("one", "two", "three"), recover(journal(1024 * 1024, 8)));
+    }
+
+    @Test
+    void stopsAtARecordWithAWrongChecksum() throws IOException {
+        write("one", "two", "three");
+        File segment = onlySegment();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            //the last byte of "three"
+            file.seek(segment.length() - 1);
+            file.write('X');
+        }
+        MessageJournal journal = journal(1024 * 1024, 8);
+        assertEquals(Arrays.asList("one", "two"), recover(journal));
+        assertEquals(1, journal.getRepairs().size());
+    }
+
+    @Test
+    void keepsOnlyTheMostRecentSegments() throws IOException, InterruptedException {
+        MessageJournal journal = journal(1, 2);
+        journal.open(history());
+        List<String> appended = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            String message = "message " + i;
+            journal.append(message, true);
+            appended.add(message);
+            //a segment of 1 byte is full after every batch, so this makes one segment per message
+            Thread.sleep(20);
+        }
+        journal.close();
+        assertTrue(segments().length <= 2);
+
+        List<String> recovered = recover(journal(1, 2));
+        assertTrue(recovered.size() >= 1 && recovered.size() <= 2);
+        assertEquals(appended.subList(appended.size() - recovered.size(), appended.size()), recovered);
+    }
+
+    @Test
+    void ignoresMessagesAppendedAfterClose() throws IOException {
+        MessageJournal journal = journal(1024 * 1024, 8);
+        journal.open(history());
+        journal.append("kept", true);
+        journal.close();
+        journal.append("too late", true);
+        assertEquals(Arrays.asList("kept"), recover(journal(1024 * 1024, 8)));
+    }
+}
@@ -0,0 +1,146 @@
+package server;
+
+import message.FrameType;
+import message.Message;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboundQueueTest {
+
+    private static OutboundQueue queue(int capacity, SlowConsumerPolicy policy, long timeoutMillis) {
+        ServerSettings settings = new ServerSettings();
+        settings.setOutboundQueueCapacity(capacity);
+        settings.setSlowConsumerPolicy(policy);
+        settings.setSlowConsumerTimeoutMillis(timeoutMillis);
+        return new OutboundQueue(settings);
+    }
+
+    private static OutboundFrame chat(String text) {
+        return new OutboundFrame(FrameType.CHAT, new Message("alice", text));
+    }
+
+    private static OutboundFrame handshake() {
+        return new OutboundFrame(FrameType.HANDSHAKE, new Message(new byte[32]));
+    }
+
+    @Test
+    void framesComeOutInTheOrderTheyWereOffered() {
+        OutboundQueue queue = queue(4, SlowConsumerPolicy.DISCONNECT, 0);
+        OutboundFrame first = chat("1");
+        OutboundFrame second = chat("2");
+        assertTrue(queue.offer(first, false));
+        assertTrue(queue.offer(second, false));
+        assertEquals(2, queue.size());
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void disconnectRefusesAFrameWhenFull() {
+        OutboundQueue queue = queue(2, SlowConsumerPolicy.DISCONNECT, 0);
+        assertTrue(queue.offer(chat("1"), true));
+        assertTrue(queue.offer(chat("2"), true));
+        assertFalse(queue.offer(chat("3"), true));
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    void dropOldestKeepsTheFramesThatCanNotBeDropped() {
+        OutboundQueue queue = queue(2, SlowConsumerPolicy.DROP_OLDEST, 0);
+        OutboundFrame sessionKey = handshake();
+        OutboundFrame last = chat("3");
+        queue.offer(sessionKey, false);
+        queue.offer(chat("2"), false);
+        assertTrue(queue.offer(last, false));
+        assertSame(sessionKey, queue.poll());
+        assertSame(last, queue.poll());
+    }
+
+    @Test
+    void dropOldestGivesUpWhenNothingCanBeDropped() {
+        OutboundQueue queue = queue(1, SlowConsumerPolicy.DROP_OLDEST, 0);
+        queue.offer(handshake(), false);
+        assertFalse(queue.offer(chat("1"), false));
+    }
+
+    @Test
+    void blockDoesNotWaitForACallerThatMayNot() {
+        OutboundQueue queue = queue(1, SlowConsumerPolicy.BLOCK, 10_000);
+        queue.offer(chat("1"), false);
+        long start = System.nanoTime();
+        assertFalse(queue.offer(chat("2"), false));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    void blockGivesUpAfterTheTimeout() {
+        OutboundQueue queue = queue(1, SlowConsumerPolicy.BLOCK, 50);
+        queue.offer(chat("1"), false);
+        long start = System.nanoTime();
+        assertFalse(queue.offer(chat("2"), true));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    void blockWaitsUntilTheWriterMakesRoom() throws InterruptedException {
+        final OutboundQueue queue = queue(1, SlowConsumerPolicy.BLOCK, 10_000);
+        OutboundFrame first = chat("1");
+        OutboundFrame second = chat("2");
+        queue.offer(first, false);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        writer.start();
+        assertTrue(queue.offer(second, true));
+        writer.join();
+        assertSame(second, queue.poll());
+    }
+
+    @Test
+    void awaitRoomOnlyWaitsWithBlock() {
+        OutboundQueue queue = queue(1, SlowConsumerPolicy.DISCONNECT, 10_000);
+        queue.offer(chat("1"), false);
+        long start = System.nanoTime();
+        queue.awaitRoom(start + TimeUnit.SECONDS.toNanos(10));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    void awaitRoomGivesUpAtTheDeadline() {
+        OutboundQueue queue = queue(1, SlowConsumerPolicy.BLOCK, 10_000);
+        queue.offer(chat("1"), false);
+        long start = System.nanoTime();
+        queue.awaitRoom(start + TimeUnit.MILLISECONDS.toNanos(50));
+        long waited = System.nanoTime() - start;
+        assertTrue(waited >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(waited < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    void closeWakesTheWriterAndIgnoresLaterFrames() throws InterruptedException {
+        OutboundQueue queue = queue(1, SlowConsumerPolicy.BLOCK, 10_000);
+        queue.offer(chat("1"), false);
+        assertTrue(queue.close());
+        assertFalse(queue.close());
+        assertNull(queue.take());
+        assertTrue(queue.offer(chat("2"), true));
+        assertEquals(0, queue.size());
+    }
+}